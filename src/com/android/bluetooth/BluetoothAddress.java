@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Attributable;
+
+/**
+ * Immutable 48-bit Bluetooth device address packed into a long.
+ *
+ * <p>Instances are interned in a small direct-mapped cache, so converting the address of a
+ * device that was seen recently from bytes or from a string allocates nothing. The string
+ * form, in the upper-case "00:11:22:AA:BB:CC" format of
+ * {@link Utils#getAddressStringFromByte}, is created once per instance.
+ *
+ * @hide
+ */
+public final class BluetoothAddress {
+    private static final int ADDRESS_LENGTH = 6;
+    private static final int STRING_LENGTH = 17;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // Must be a power of two.
+    private static final int CACHE_SIZE = 1024;
+    private static final BluetoothAddress[] sCache = new BluetoothAddress[CACHE_SIZE];
+
+    private final long mValue;
+    // Lazily created; racing threads create equal values, so no synchronization is needed.
+    private String mString;
+
+    private BluetoothAddress(long value) {
+        mValue = value;
+    }
+
+    /**
+     * Returns the address whose 48 least significant bits are |value|.
+     */
+    public static BluetoothAddress of(long value) {
+        value &= 0xFFFFFFFFFFFFL;
+        int slot = (int) (value ^ (value >>> 24)) & (CACHE_SIZE - 1);
+        BluetoothAddress address = sCache[slot];
+        if (address == null || address.mValue != value) {
+            address = new BluetoothAddress(value);
+            sCache[slot] = address;
+        }
+        return address;
+    }
+
+    /**
+     * Returns the address of a 6 byte array in network order, as reported by the stack.
+     */
+    public static BluetoothAddress fromBytes(byte[] address) {
+        if (address == null || address.length != ADDRESS_LENGTH) {
+            throw new IllegalArgumentException("Invalid address length");
+        }
+        return of(pack(address));
+    }
+
+    /**
+     * Returns the address of a string such as "00:11:22:AA:BB:CC", in either case.
+     */
+    public static BluetoothAddress fromString(String address) {
+        return of(pack(address));
+    }
+
+    /**
+     * Packs a 6 byte address into the low 48 bits of a long.
+     */
+    public static long pack(byte[] address) {
+        long value = 0;
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            value = (value << 8) | (address[i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Packs an address string such as "00:11:22:AA:BB:CC" into the low 48 bits of a long.
+     */
+    public static long pack(String address) {
+        if (address == null || address.length() != STRING_LENGTH) {
+            throw new IllegalArgumentException("Invalid address: " + address);
+        }
+        long value = 0;
+        for (int i = 0; i < STRING_LENGTH; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    throw new IllegalArgumentException("Invalid address: " + address);
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid address: " + address);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    public long toLong() {
+        return mValue;
+    }
+
+    /**
+     * Returns a new 6 byte array holding the address in network order.
+     */
+    public byte[] toBytes() {
+        byte[] address = new byte[ADDRESS_LENGTH];
+        for (int i = ADDRESS_LENGTH - 1; i >= 0; i--) {
+            address[i] = (byte) (mValue >>> (8 * (ADDRESS_LENGTH - 1 - i)));
+        }
+        return address;
+    }
+
+    /**
+     * Returns a {@link BluetoothDevice} for this address without any attribution source, to be
+     * handed to remote callers. A new instance is returned on each call, as devices are mutable
+     * and may be attributed by their receiver; only the address string is shared.
+     */
+    public BluetoothDevice getAnonymousDevice() {
+        return Attributable.setAttributionSource(
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(toString()), null);
+    }
+
+    @Override
+    public String toString() {
+        String string = mString;
+        if (string == null) {
+            char[] chars = new char[STRING_LENGTH];
+            for (int i = 0; i < ADDRESS_LENGTH; i++) {
+                int octet = (int) (mValue >>> (8 * (ADDRESS_LENGTH - 1 - i))) & 0xff;
+                chars[i * 3] = HEX_DIGITS[octet >>> 4];
+                chars[i * 3 + 1] = HEX_DIGITS[octet & 0xf];
+                if (i < ADDRESS_LENGTH - 1) {
+                    chars[i * 3 + 2] = ':';
+                }
+            }
+            string = new String(chars);
+            mString = string;
+        }
+        return string;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BluetoothAddress)) {
+            return false;
+        }
+        return mValue == ((BluetoothAddress) o).mValue;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(mValue);
+    }
+}
@@ -51,6 +51,7 @@ import android.util.Pair;
 
 import androidx.annotation.VisibleForTesting;
 
+import com.android.bluetooth.BluetoothAddress;
 import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
@@ -902,7 +903,7 @@ class AdapterProperties {
                         for (int j = 0; j < number; j++) {
                             System.arraycopy(val, j * BD_ADDR_LEN, addrByte, 0, BD_ADDR_LEN);
                             onBondStateChanged(mAdapter.getRemoteDevice(
-                                    Utils.getAddressStringFromByte(addrByte)),
+                                    BluetoothAddress.fromBytes(addrByte).toString()),
                                     BluetoothDevice.BOND_BONDED);
                         }
                         break;
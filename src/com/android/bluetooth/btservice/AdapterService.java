@@ -439,6 +439,13 @@ public class AdapterService extends Service {
 
     private final AdapterServiceHandler mHandler = new AdapterServiceHandler();
 
+    private final ProfileStartScheduler mProfileStartScheduler =
+            new ProfileStartScheduler(Looper.getMainLooper());
+
+    ProfileStartScheduler getProfileStartScheduler() {
+        return mProfileStartScheduler;
+    }
+
     private void updateInteropDatabase() {
         interopDatabaseClearNative();
 
@@ -716,6 +723,7 @@ public class AdapterService extends Service {
             setBluetoothClassFromConfig();
             mAdapterStateMachine.sendMessage(AdapterState.BREDR_STARTED);
         } else {
+            mProfileStartScheduler.beginStartup(supportedProfileServices);
             setAllProfileServiceStates(supportedProfileServices, BluetoothAdapter.STATE_ON);
         }
     }
@@ -3541,9 +3549,15 @@ public class AdapterService extends Service {
         writer.println("mSnoopLogSettingAtEnable = " + mSnoopLogSettingAtEnable);
         writer.println("mDefaultSnoopLogSettingAtEnable = " + mDefaultSnoopLogSettingAtEnable);
 
+        writer.println();
+        mRemoteDevices.dump(writer);
+
         writer.println();
         mAdapterStateMachine.dump(fd, writer, args);
 
+        writer.println();
+        mProfileStartScheduler.dump(writer);
+
         StringBuilder sb = new StringBuilder();
         for (ProfileService profile : mRegisteredProfiles) {
             profile.dump(sb);
@@ -3799,6 +3813,10 @@ public class AdapterService extends Service {
                 "scan_quota_window_millis";
         private static final String SCAN_TIMEOUT_MILLIS =
                 "scan_timeout_millis";
+        private static final String PARALLEL_PROFILE_STARTUP =
+                "parallel_profile_startup";
+        private static final String LAZY_PROFILE_ACTIVATION =
+                "lazy_profile_activation";
 
         /**
          * Default denylist which matches Eddystone and iBeacon payloads.
@@ -3834,6 +3852,10 @@ public class AdapterService extends Service {
                         DEFAULT_SCAN_QUOTA_WINDOW_MILLIS);
                 mScanTimeoutMillis = properties.getLong(SCAN_TIMEOUT_MILLIS,
                         DEFAULT_SCAN_TIMEOUT_MILLIS);
+                mProfileStartScheduler.setParallelStartEnabled(
+                        properties.getBoolean(PARALLEL_PROFILE_STARTUP, false));
+                mProfileStartScheduler.setLazyActivationEnabled(
+                        properties.getBoolean(LAZY_PROFILE_ACTIVATION, false));
             }
         }
     }
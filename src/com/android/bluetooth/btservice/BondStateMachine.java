@@ -38,6 +38,7 @@ import android.os.Message;
 import android.os.UserHandle;
 import android.util.Log;
 
+import com.android.bluetooth.BluetoothAddress;
 import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.a2dp.A2dpService;
@@ -451,7 +452,7 @@ final class BondStateMachine extends StateMachine {
             infoLog("No record of the device:" + device);
             // This device will be added as part of the BONDING_STATE_CHANGE intent processing
             // in sendIntent above
-            device = mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
+            device = mAdapter.getRemoteDevice(BluetoothAddress.fromBytes(address).toString());
         }
 
         infoLog("bondStateChangeCallback: Status: " + status + " Address: " + device + " newState: "
@@ -29,7 +29,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.os.Debug;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.Log;
@@ -37,6 +39,9 @@ import android.util.Log;
 import com.android.bluetooth.BluetoothMetricsProto;
 import com.android.bluetooth.Utils;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Base class for a background service that runs a Bluetooth profile
  */
@@ -56,12 +61,20 @@ public abstract class ProfileService extends Service {
     //Profile services will not be automatically restarted.
     //They must be explicitly restarted by AdapterService
     private static final int PROFILE_SERVICE_MODE = Service.START_NOT_STICKY;
+    private static final long START_TIMEOUT_MILLIS = 5000;
     private BluetoothAdapter mAdapter;
     private IProfileServiceBinder mBinder;
     private final String mName;
     private AdapterService mAdapterService;
     private BroadcastReceiver mUserSwitchedReceiver;
-    private boolean mProfileStarted = false;
+    private volatile boolean mProfileStarted = false;
+    // Counted down once a scheduled start() has returned or was cancelled.
+    private volatile CountDownLatch mStartLatch;
+    // Whether start() was called for the last scheduled start. stop() and cleanup() are skipped
+    // if it was cancelled before start() ran.
+    private volatile boolean mStartCalled = false;
+    private final Object mActivationLock = new Object();
+    private volatile boolean mActivated = false;
     private volatile boolean mTestModeEnabled = false;
 
     public String getName() {
@@ -72,6 +85,94 @@ public abstract class ProfileService extends Service {
         return mProfileStarted;
     }
 
+    /**
+     * Returns true if {@link #start()} may run off the main thread, concurrently with the
+     * start of other profiles. Such a profile must not create handlers on the calling looper
+     * or touch other profiles in {@link #start()}.
+     */
+    protected boolean supportsParallelStart() {
+        return false;
+    }
+
+    /**
+     * Returns true if {@link #activate()} may be deferred until the profile is first used, when
+     * lazy activation is enabled. {@link #start()} must then leave the profile reachable by
+     * remote devices and callers, and every entry point that needs the deferred state must call
+     * {@link #ensureActivated()}. {@link #stop()} must cope with a profile never activated.
+     */
+    protected boolean supportsLazyActivation() {
+        return false;
+    }
+
+    /**
+     * Called once after {@link #start()}, right away or on first use if deferred, to do the
+     * heavyweight part of starting the profile.
+     *
+     * @return True in successful condition, False otherwise
+     */
+    protected boolean activate() {
+        return true;
+    }
+
+    protected boolean isActivated() {
+        return mActivated;
+    }
+
+    /**
+     * Runs {@link #activate()} if it was deferred. Safe to call from any thread.
+     *
+     * @return True if the profile is running and activated, False otherwise
+     */
+    protected boolean ensureActivated() {
+        if (mActivated) {
+            return true;
+        }
+        synchronized (mActivationLock) {
+            if (mActivated) {
+                return true;
+            }
+            if (!mProfileStarted) {
+                Log.w(mName, "ensureActivated() called, but the profile is not running.");
+                return false;
+            }
+            return doActivate();
+        }
+    }
+
+    private boolean doActivate() {
+        synchronized (mActivationLock) {
+            // The cost is only measured for the lazy activation dump, not on every profile start.
+            ProfileStartScheduler scheduler = mAdapterService.getProfileStartScheduler();
+            boolean measure = scheduler != null && scheduler.isLazyActivationEnabled();
+            Runtime runtime = Runtime.getRuntime();
+            long heapBytes = measure ? runtime.totalMemory() - runtime.freeMemory() : 0;
+            long nativeBytes = measure ? Debug.getNativeHeapAllocatedSize() : 0;
+            long startMillis = measure ? SystemClock.elapsedRealtime() : 0;
+            mActivated = activate();
+            if (!mActivated) {
+                Log.e(mName, "Error activating profile. activate() returned false.");
+                return false;
+            }
+            if (measure) {
+                scheduler.onProfileActivated(mName, SystemClock.elapsedRealtime() - startMillis,
+                        runtime.totalMemory() - runtime.freeMemory() - heapBytes,
+                        Debug.getNativeHeapAllocatedSize() - nativeBytes);
+            }
+            return true;
+        }
+    }
+
+    private boolean deferActivation() {
+        ProfileStartScheduler scheduler = mAdapterService.getProfileStartScheduler();
+        if (scheduler == null || !scheduler.isLazyActivationEnabled()
+                || !supportsLazyActivation()) {
+            return false;
+        }
+        Log.i(mName, "Deferring activation until first use");
+        scheduler.onActivationDeferred(mName);
+        return true;
+    }
+
     protected boolean isTestModeEnabled() {
         return mTestModeEnabled;
     }
@@ -250,7 +351,9 @@ public abstract class ProfileService extends Service {
     // Suppressed since this is called from framework
     @SuppressLint("AndroidFrameworkRequiresPermission")
     public void onDestroy() {
-        cleanup();
+        if (mStartLatch == null || mStartCalled) {
+            cleanup();
+        }
         if (mBinder != null) {
             mBinder.cleanup();
             mBinder = null;
@@ -306,7 +409,31 @@ public abstract class ProfileService extends Service {
         if (userManager.isUserUnlocked(currentUserId)) {
             setUserUnlocked(currentUserId);
         }
-        mProfileStarted = start();
+        mStartCalled = false;
+        mStartLatch = new CountDownLatch(1);
+        ProfileStartScheduler scheduler = mAdapterService.getProfileStartScheduler();
+        if (scheduler != null) {
+            scheduler.schedule(this);
+        } else {
+            startProfile();
+        }
+    }
+
+    /**
+     * Runs {@link #start()}, on the thread chosen by {@link ProfileStartScheduler}.
+     */
+    void startProfile() {
+        if (mStartLatch.getCount() == 0 || !mAdapterService.isStartedProfile(mName)) {
+            Log.w(mName, "Profile was stopped before start(), don't start");
+            mStartLatch.countDown();
+            return;
+        }
+        mStartCalled = true;
+        try {
+            mProfileStarted = start() && (deferActivation() || doActivate());
+        } finally {
+            mStartLatch.countDown();
+        }
         if (!mProfileStarted) {
             Log.e(mName, "Error starting profile. start() returned false.");
             return;
@@ -314,21 +441,48 @@ public abstract class ProfileService extends Service {
         mAdapterService.onProfileServiceStateChanged(this, BluetoothAdapter.STATE_ON);
     }
 
+    private void waitForStart() {
+        CountDownLatch startLatch = mStartLatch;
+        if (startLatch == null) {
+            return;
+        }
+        ProfileStartScheduler scheduler = mAdapterService.getProfileStartScheduler();
+        if ((scheduler != null && scheduler.cancel(this)) || !supportsParallelStart()) {
+            // Not started yet, or only ever started on this thread.
+            startLatch.countDown();
+            return;
+        }
+        try {
+            if (!startLatch.await(START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Log.e(mName, "Timed out waiting for start() before stopping");
+            }
+        } catch (InterruptedException e) {
+            Log.e(mName, "Interrupted waiting for start() before stopping", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void doStop() {
         if (mAdapterService == null || mAdapterService.isStartedProfile(mName)) {
             Log.w(mName, "Unexpectedly do Stop, don't stop.");
             return;
         }
+        waitForStart();
         if (!mProfileStarted) {
             Log.w(mName, "doStop() called, but the profile is not running.");
         }
-        mProfileStarted = false;
+        synchronized (mActivationLock) {
+            mProfileStarted = false;
+        }
         if (mAdapterService != null) {
             mAdapterService.onProfileServiceStateChanged(this, BluetoothAdapter.STATE_OFF);
         }
-        if (!stop()) {
+        if (!mStartCalled) {
+            Log.w(mName, "start() was never called, don't stop");
+        } else if (!stop()) {
             Log.e(mName, "Unable to stop profile");
         }
+        mActivated = false;
         if (mAdapterService != null) {
             mAdapterService.removeProfile(this);
         }
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.bluetooth.gatt.GattService;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the {@link ProfileService#start()} bodies of the profiles started on adapter enable.
+ *
+ * <p>When parallel startup is enabled, profiles that opt in with
+ * {@link ProfileService#supportsParallelStart()} are started on a small worker pool, while the
+ * others keep starting on the main thread. A profile whose dependencies are part of the same
+ * startup is held back until they have finished starting. The start latency of every profile
+ * and the total startup time are kept for dumpsys.
+ *
+ * <p>When lazy activation is enabled, profiles that opt in with
+ * {@link ProfileService#supportsLazyActivation()} defer {@link ProfileService#activate()} until
+ * first use. The measured cost of every activation is kept, so that dumpsys can report the
+ * startup time and memory saved by the profiles deferred in the last startup.
+ *
+ * @hide
+ */
+/*package*/ class ProfileStartScheduler {
+    private static final String TAG = "BluetoothProfileStartScheduler";
+
+    private static final int MAX_THREADS = 4;
+    private static final long THREAD_KEEP_ALIVE_MILLIS = 10000;
+    // Held back profiles are started anyway if their dependencies take longer than this.
+    @VisibleForTesting
+    static final long DEPENDENCY_TIMEOUT_MILLIS = 5000;
+
+    // Profiles that must only start once the listed profiles have started, by simple name.
+    private static final Map<String, String[]> DEPENDENCIES = new HashMap<>();
+
+    static {
+        // Listens to A2DP state and queries A2dpService for the active device.
+        DEPENDENCIES.put("AvrcpTargetService", new String[] {"A2dpService"});
+        // Routes browsed media to the A2DP sink stream.
+        DEPENDENCIES.put("AvrcpControllerService", new String[] {"A2dpSinkService"});
+    }
+
+    private final Handler mHandler;
+    private final Executor mExecutor;
+    private volatile boolean mParallelStartEnabled;
+    private volatile boolean mLazyActivationEnabled;
+
+    /**
+     * Cost of the last activation of a profile and whether it was deferred in the last startup.
+     */
+    private static class Activation {
+        boolean deferred;
+        boolean activated;
+        // Negative until the profile was activated once in this process.
+        long latencyMillis = -1;
+        long heapBytes;
+        long nativeHeapBytes;
+    }
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final Set<String> mPendingProfiles = new HashSet<>();
+    @GuardedBy("mLock")
+    private final List<ProfileService> mHeldProfiles = new ArrayList<>();
+    @GuardedBy("mLock")
+    private final Map<String, Long> mStartLatencies = new LinkedHashMap<>();
+    @GuardedBy("mLock")
+    private final Set<String> mParallelProfiles = new HashSet<>();
+    @GuardedBy("mLock")
+    private final Map<String, Activation> mActivations = new LinkedHashMap<>();
+    @GuardedBy("mLock")
+    private long mStartupBeginMillis;
+    @GuardedBy("mLock")
+    private long mStartupMillis = -1;
+
+    private final Runnable mDependencyTimeout = this::releaseHeldProfiles;
+
+    ProfileStartScheduler(Looper looper) {
+        this(new Handler(looper), newExecutor());
+    }
+
+    @VisibleForTesting
+    ProfileStartScheduler(Handler handler, Executor executor) {
+        mHandler = handler;
+        mExecutor = executor;
+    }
+
+    private static Executor newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                THREAD_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "BluetoothProfileStart"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    void setParallelStartEnabled(boolean enabled) {
+        mParallelStartEnabled = enabled;
+    }
+
+    void setLazyActivationEnabled(boolean enabled) {
+        mLazyActivationEnabled = enabled;
+    }
+
+    boolean isLazyActivationEnabled() {
+        return mLazyActivationEnabled;
+    }
+
+    /**
+     * Called before the profiles in |profiles| are asked to start.
+     */
+    void beginStartup(Class[] profiles) {
+        synchronized (mLock) {
+            mPendingProfiles.clear();
+            mHeldProfiles.clear();
+            mStartLatencies.clear();
+            mParallelProfiles.clear();
+            for (Activation activation : mActivations.values()) {
+                activation.deferred = false;
+                activation.activated = false;
+            }
+            for (Class profile : profiles) {
+                if (!GattService.class.getSimpleName().equals(profile.getSimpleName())) {
+                    mPendingProfiles.add(profile.getSimpleName());
+                }
+            }
+            mStartupBeginMillis = SystemClock.elapsedRealtime();
+            mStartupMillis = -1;
+        }
+        mHandler.removeCallbacks(mDependencyTimeout);
+        mHandler.postDelayed(mDependencyTimeout, DEPENDENCY_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Starts |profile|, now or once its dependencies have started. Must be called on the main
+     * thread.
+     */
+    void schedule(ProfileService profile) {
+        if (!mParallelStartEnabled) {
+            startProfile(profile);
+            return;
+        }
+        synchronized (mLock) {
+            if (hasPendingDependencies(profile.getName())) {
+                Log.i(TAG, "Holding back " + profile.getName() + " for its dependencies");
+                mHeldProfiles.add(profile);
+                return;
+            }
+        }
+        dispatch(profile);
+    }
+
+    /**
+     * Drops |profile| if it is still held back, returning true if it was.
+     */
+    boolean cancel(ProfileService profile) {
+        synchronized (mLock) {
+            mPendingProfiles.remove(profile.getName());
+            return mHeldProfiles.remove(profile);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private boolean hasPendingDependencies(String name) {
+        String[] dependencies = DEPENDENCIES.get(name);
+        if (dependencies == null) {
+            return false;
+        }
+        for (String dependency : dependencies) {
+            if (mPendingProfiles.contains(dependency)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dispatch(ProfileService profile) {
+        if (mParallelStartEnabled && profile.supportsParallelStart()) {
+            synchronized (mLock) {
+                mParallelProfiles.add(profile.getName());
+            }
+            mExecutor.execute(() -> startProfile(profile));
+        } else if (Looper.myLooper() == mHandler.getLooper()) {
+            startProfile(profile);
+        } else {
+            mHandler.post(() -> startProfile(profile));
+        }
+    }
+
+    private void startProfile(ProfileService profile) {
+        long startMillis = SystemClock.elapsedRealtime();
+        try {
+            profile.startProfile();
+        } finally {
+            onProfileStarted(profile.getName(), SystemClock.elapsedRealtime() - startMillis);
+        }
+    }
+
+    private void onProfileStarted(String name, long latencyMillis) {
+        List<ProfileService> released = new ArrayList<>();
+        synchronized (mLock) {
+            mStartLatencies.put(name, latencyMillis);
+            if (!mPendingProfiles.remove(name)) {
+                return;
+            }
+            if (mPendingProfiles.isEmpty()) {
+                mStartupMillis = SystemClock.elapsedRealtime() - mStartupBeginMillis;
+                mHandler.removeCallbacks(mDependencyTimeout);
+            }
+            for (Iterator<ProfileService> it = mHeldProfiles.iterator(); it.hasNext(); ) {
+                ProfileService profile = it.next();
+                if (!hasPendingDependencies(profile.getName())) {
+                    it.remove();
+                    released.add(profile);
+                }
+            }
+        }
+        for (ProfileService profile : released) {
+            dispatch(profile);
+        }
+    }
+
+    void onActivationDeferred(String name) {
+        synchronized (mLock) {
+            getActivation(name).deferred = true;
+        }
+    }
+
+    void onProfileActivated(String name, long latencyMillis, long heapBytes,
+            long nativeHeapBytes) {
+        synchronized (mLock) {
+            Activation activation = getActivation(name);
+            activation.activated = true;
+            activation.latencyMillis = latencyMillis;
+            // Other threads allocate and collect concurrently, so deltas may come out negative.
+            activation.heapBytes = Math.max(0, heapBytes);
+            activation.nativeHeapBytes = Math.max(0, nativeHeapBytes);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private Activation getActivation(String name) {
+        Activation activation = mActivations.get(name);
+        if (activation == null) {
+            activation = new Activation();
+            mActivations.put(name, activation);
+        }
+        return activation;
+    }
+
+    private void releaseHeldProfiles() {
+        List<ProfileService> released;
+        synchronized (mLock) {
+            released = new ArrayList<>(mHeldProfiles);
+            mHeldProfiles.clear();
+        }
+        for (ProfileService profile : released) {
+            Log.w(TAG, "Dependencies of " + profile.getName() + " did not start in time");
+            dispatch(profile);
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Profile startup (parallel " + mParallelStartEnabled + "):");
+            if (mStartupBeginMillis == 0) {
+                writer.println("  not started");
+                dumpActivations(writer);
+                return;
+            }
+            writer.println("  total: "
+                    + (mStartupMillis < 0 ? "in progress" : mStartupMillis + " ms"));
+            for (Map.Entry<String, Long> entry : mStartLatencies.entrySet()) {
+                writer.println("  " + entry.getKey() + ": " + entry.getValue() + " ms"
+                        + (mParallelProfiles.contains(entry.getKey()) ? " (parallel)" : ""));
+            }
+            for (ProfileService profile : mHeldProfiles) {
+                writer.println("  " + profile.getName() + ": waiting for dependencies");
+            }
+            dumpActivations(writer);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void dumpActivations(PrintWriter writer) {
+        writer.println("Lazy profile activation (enabled " + mLazyActivationEnabled + "):");
+        long savedMillis = 0;
+        long savedHeapBytes = 0;
+        long savedNativeHeapBytes = 0;
+        for (Map.Entry<String, Activation> entry : mActivations.entrySet()) {
+            Activation activation = entry.getValue();
+            String cost = activation.latencyMillis < 0 ? "cost unknown"
+                    : "cost " + activation.latencyMillis + " ms, heap "
+                            + activation.heapBytes / 1024 + " KB, native heap "
+                            + activation.nativeHeapBytes / 1024 + " KB";
+            String state = activation.deferred
+                    ? (activation.activated ? "deferred, activated on first use"
+                            : "deferred, not used yet")
+                    : (activation.activated ? "activated at startup" : "not started");
+            writer.println("  " + entry.getKey() + ": " + state + " (" + cost + ")");
+            if (activation.deferred && activation.latencyMillis >= 0) {
+                savedMillis += activation.latencyMillis;
+                if (!activation.activated) {
+                    savedHeapBytes += activation.heapBytes;
+                    savedNativeHeapBytes += activation.nativeHeapBytes;
+                }
+            }
+        }
+        // Based on the last measured cost, so profiles never activated in this process are not
+        // counted.
+        writer.println("  saved: startup " + savedMillis + " ms, heap " + savedHeapBytes / 1024
+                + " KB, native heap " + savedNativeHeapBytes / 1024 + " KB");
+    }
+}
@@ -40,18 +40,21 @@ import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.android.bluetooth.BluetoothAddress;
 import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.hfp.HeadsetHalConstants;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 
 final class RemoteDevices {
@@ -69,8 +72,13 @@ final class RemoteDevices {
     private static final int UUID_INTENT_DELAY = 6000;
     private static final int MESSAGE_UUID_INTENT = 1;
 
-    private final HashMap<String, DeviceProperties> mDevices;
-    private Queue<String> mDeviceQueue;
+    // Read without locking, written under mDeviceQueue.
+    private final ConcurrentHashMap<BluetoothAddress, DeviceProperties> mDevices;
+    // Devices that may be evicted, from least to most recently added or found. Bonded and
+    // bonding devices are pinned: they are dropped from here instead of from mDevices.
+    private final LinkedHashMap<BluetoothAddress, DeviceProperties> mDeviceQueue;
+    private long mEvictedDevices = 0;
+    private long mPinnedDevices = 0;
 
     private final Handler mHandler;
     private class RemoteDevicesHandler extends Handler {
@@ -142,8 +150,8 @@ final class RemoteDevices {
         sAdapter = BluetoothAdapter.getDefaultAdapter();
         sAdapterService = service;
         sSdpTracker = new ArrayList<BluetoothDevice>();
-        mDevices = new HashMap<String, DeviceProperties>();
-        mDeviceQueue = new LinkedList<String>();
+        mDevices = new ConcurrentHashMap<BluetoothAddress, DeviceProperties>();
+        mDeviceQueue = new LinkedHashMap<BluetoothAddress, DeviceProperties>(16, 0.75f, true);
         mHandler = new RemoteDevicesHandler(looper);
     }
 
@@ -180,11 +188,8 @@ final class RemoteDevices {
             sSdpTracker.clear();
         }
 
-        if (mDevices != null) {
+        synchronized (mDeviceQueue) {
             mDevices.clear();
-        }
-
-        if (mDeviceQueue != null) {
             mDeviceQueue.clear();
         }
     }
@@ -195,13 +200,11 @@ final class RemoteDevices {
     }
 
     DeviceProperties getDeviceProperties(BluetoothDevice device) {
-        synchronized (mDevices) {
-            return mDevices.get(device.getAddress());
-        }
+        return mDevices.get(BluetoothAddress.fromString(device.getAddress()));
     }
 
     BluetoothDevice getDevice(byte[] address) {
-        DeviceProperties prop = mDevices.get(Utils.getAddressStringFromByte(address));
+        DeviceProperties prop = mDevices.get(BluetoothAddress.fromBytes(address));
         if (prop == null) {
             return null;
         }
@@ -210,30 +213,63 @@ final class RemoteDevices {
 
     @VisibleForTesting
     DeviceProperties addDeviceProperties(byte[] address) {
-        synchronized (mDevices) {
-            DeviceProperties prop = new DeviceProperties();
-            prop.mDevice = sAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
-            prop.mAddress = address;
-            String key = Utils.getAddressStringFromByte(address);
+        BluetoothAddress key = BluetoothAddress.fromBytes(address);
+        DeviceProperties prop = new DeviceProperties();
+        prop.mDevice = sAdapter.getRemoteDevice(key.toString());
+        prop.mAddress = address;
+        synchronized (mDeviceQueue) {
             DeviceProperties pv = mDevices.put(key, prop);
-
-            if (pv == null) {
-                mDeviceQueue.offer(key);
-                if (mDeviceQueue.size() > MAX_DEVICE_QUEUE_SIZE) {
-                    String deleteKey = mDeviceQueue.poll();
-                    for (BluetoothDevice device : sAdapterService.getBondedDevices()) {
-                        if (device.getAddress().equals(deleteKey)) {
-                            return prop;
-                        }
-                    }
-                    debugLog("Removing device " + deleteKey + " from property map");
-                    mDevices.remove(deleteKey);
-                }
+            if (pv == null || mDeviceQueue.containsKey(key)) {
+                mDeviceQueue.put(key, prop);
             }
+            evictDevices();
             return prop;
         }
     }
 
+    /**
+     * Marks a device as recently used, so that it is evicted after devices not seen since.
+     */
+    private void touchDevice(byte[] address) {
+        BluetoothAddress key = BluetoothAddress.fromBytes(address);
+        synchronized (mDeviceQueue) {
+            DeviceProperties prop = mDevices.get(key);
+            if (prop != null && mDeviceQueue.get(key) == null && !prop.isBondingOrBonded()) {
+                // A device whose bond was removed becomes evictable again.
+                mDeviceQueue.put(key, prop);
+                evictDevices();
+            }
+        }
+    }
+
+    // Must be called with mDeviceQueue locked.
+    private void evictDevices() {
+        Iterator<Map.Entry<BluetoothAddress, DeviceProperties>> it =
+                mDeviceQueue.entrySet().iterator();
+        while (mDeviceQueue.size() > MAX_DEVICE_QUEUE_SIZE && it.hasNext()) {
+            Map.Entry<BluetoothAddress, DeviceProperties> eldest = it.next();
+            it.remove();
+            DeviceProperties prop = eldest.getValue();
+            if (prop.isBondingOrBonded()) {
+                mPinnedDevices++;
+                continue;
+            }
+            debugLog("Removing device " + prop.getDevice() + " from property map");
+            mDevices.remove(eldest.getKey(), prop);
+            mEvictedDevices++;
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mDeviceQueue) {
+            writer.println(TAG);
+            writer.println("  Devices: " + mDevices.size() + " (" + mDeviceQueue.size() + "/"
+                    + MAX_DEVICE_QUEUE_SIZE + " evictable)");
+            writer.println("  Evicted devices: " + mEvictedDevices + ", pinned devices: "
+                    + mPinnedDevices);
+        }
+    }
+
     class DeviceProperties {
         private String mName;
         private byte[] mAddress;
@@ -621,6 +657,7 @@ final class RemoteDevices {
             errorLog("Device Properties is null for Device:" + device);
             return;
         }
+        touchDevice(address);
 
         Intent intent = new Intent(BluetoothDevice.ACTION_FOUND);
         intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
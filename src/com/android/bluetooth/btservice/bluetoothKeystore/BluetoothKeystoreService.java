@@ -17,16 +17,19 @@
 package com.android.bluetooth.btservice.bluetoothkeystore;
 
 import android.annotation.Nullable;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
 import android.util.Log;
 
 import com.android.bluetooth.BluetoothKeystoreProto;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import com.google.protobuf.ByteString;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
@@ -42,14 +45,16 @@ import java.security.NoSuchProviderException;
 import java.security.ProviderException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.Base64;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -99,6 +104,12 @@ public class BluetoothKeystoreService {
 
     private static final int BUFFER_SIZE = 400 * 10;
 
+    // Number of threads computing each of the encrypt and decrypt queues.
+    private static final int COMPUTE_THREAD_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // Bound on the wait for the queued keys before saving the encrypted keys.
+    private static final long COMPUTE_IDLE_TIMEOUT_MS = 10000;
+
     private static final int CONFIG_COMPARE_INIT = 0b00;
     private static final int CONFIG_FILE_COMPARE_PASS = 0b01;
     private static final int CONFIG_BACKUP_COMPARE_PASS = 0b10;
@@ -106,18 +117,31 @@ public class BluetoothKeystoreService {
 
     BluetoothKeystoreNativeInterface mBluetoothKeystoreNativeInterface;
 
-    private ComputeDataThread mEncryptDataThread;
-    private ComputeDataThread mDecryptDataThread;
-    private Map<String, String> mNameEncryptKey = new HashMap<>();
-    private Map<String, String> mNameDecryptKey = new HashMap<>();
-    private BlockingQueue<String> mPendingDecryptKey = new LinkedBlockingQueue<>();
-    private BlockingQueue<String> mPendingEncryptKey = new LinkedBlockingQueue<>();
+    private final List<ComputeDataThread> mComputeDataThreads = new ArrayList<>();
+    // Written by several compute threads at once.
+    private Map<String, String> mNameEncryptKey = new ConcurrentHashMap<>();
+    private Map<String, String> mNameDecryptKey = new ConcurrentHashMap<>();
+    // One queue per compute thread. A key always goes to the same queue, so its tasks run in
+    // order.
+    private final List<BlockingQueue<String>> mPendingDecryptKeys = newComputeQueues();
+    private final List<BlockingQueue<String>> mPendingEncryptKeys = newComputeQueues();
+    // Number of queued or running compute tasks.
+    @GuardedBy("mComputeLock")
+    private int mPendingComputeCount;
+    private final Object mComputeLock = new Object();
     private final List<String> mEncryptKeyNameList = List.of("LinkKey", "LE_KEY_PENC", "LE_KEY_PID",
             "LE_KEY_LID", "LE_KEY_PCSRK", "LE_KEY_LENC", "LE_KEY_LCSRK");
+    // Section digests of bt_config.conf at the last checksum, to find the sections changed since.
+    private ConfigSectionDigests mConfigSectionDigests;
 
     private Base64.Decoder mDecoder = Base64.getDecoder();
     private Base64.Encoder mEncoder = Base64.getEncoder();
 
+    // Looked up once, cleared when the keystore rejects it.
+    private volatile SecretKey mSecretKey;
+    // Cipher instances are not thread safe, each compute thread keeps its own.
+    private final ThreadLocal<Cipher> mCipher = new ThreadLocal<>();
+
     public BluetoothKeystoreService(boolean isCommonCriteriaMode) {
         debugLog("new BluetoothKeystoreService isCommonCriteriaMode: " + isCommonCriteriaMode);
         mIsCommonCriteriaMode = isCommonCriteriaMode;
@@ -233,6 +257,7 @@ public class BluetoothKeystoreService {
     public void cleanupForCommonCriteriaModeDisable() {
         mNameDecryptKey.clear();
         mNameEncryptKey.clear();
+        mConfigSectionDigests = null;
     }
 
     /**
@@ -346,7 +371,7 @@ public class BluetoothKeystoreService {
      * Sets or removes the encryption key value.
      *
      * <p>If the value of decryptedString matches {@link #CONFIG_FILE_HASH} then
-     * read the hash file and decrypt the keys and place them into {@link mPendingEncryptKey}
+     * read the hash file and decrypt the keys and place them into {@link mPendingEncryptKeys}
      * otherwise cleanup all data and remove the keys.
      *
      * @param prefixString key to use
@@ -363,14 +388,14 @@ public class BluetoothKeystoreService {
                 cleanupAll();
             } else if (decryptedString.equals(CONFIG_FILE_HASH)) {
                 backupConfigEncryptionFile();
-                readHashFile(CONFIG_FILE_PATH, CONFIG_FILE_PREFIX);
+                removeStaleKeys(readHashFile(CONFIG_FILE_PATH, CONFIG_FILE_PREFIX));
                 //save Map
                 if (mNameDecryptKey.containsKey(CONFIG_FILE_PREFIX)
                         && mNameDecryptKey.get(CONFIG_FILE_PREFIX).equals(
                         mNameDecryptKey.get(CONFIG_BACKUP_PREFIX))) {
                     infoLog("Since the hash is same with previous, don't need encrypt again.");
                 } else {
-                    mPendingEncryptKey.put(prefixString);
+                    queueCompute(prefixString, true);
                 }
                 saveEncryptedKey();
             }
@@ -381,9 +406,44 @@ public class BluetoothKeystoreService {
             // clear the item by prefixString.
             mNameDecryptKey.remove(prefixString);
             mNameEncryptKey.remove(prefixString);
+        } else if (decryptedString.equals(mNameDecryptKey.get(prefixString))
+                && mNameEncryptKey.containsKey(prefixString)) {
+            infoLog("Since the key is same with previous, don't need encrypt again.");
         } else {
             mNameDecryptKey.put(prefixString, decryptedString);
-            mPendingEncryptKey.put(prefixString);
+            queueCompute(prefixString, true);
+        }
+    }
+
+    /**
+     * Removes the keys that are no longer in bt_config.conf.
+     *
+     * <p>Only the sections changed since the last checksum are looked at. Nothing is removed
+     * without a previous checksum, as the unchanged sections are not known then.
+     */
+    private void removeStaleKeys(@Nullable ConfigSectionDigests sections) {
+        if (sections == null) {
+            return;
+        }
+        ConfigSectionDigests previous = mConfigSectionDigests;
+        mConfigSectionDigests = sections;
+        if (previous == null) {
+            return;
+        }
+        List<String> changedSections = sections.getChangedSections(previous);
+        List<String> removedSections = sections.getRemovedSections(previous);
+        infoLog("removeStaleKeys: changed sections: " + changedSections.size()
+                + ", removed sections: " + removedSections.size()
+                + ", total sections: " + sections.getSections().size());
+        changedSections.addAll(removedSections);
+        for (String section : changedSections) {
+            for (String keyName : mEncryptKeyNameList) {
+                if (!sections.getKeyNames(section).contains(keyName)) {
+                    String prefixString = section + "-" + keyName;
+                    mNameDecryptKey.remove(prefixString);
+                    mNameEncryptKey.remove(prefixString);
+                }
+            }
         }
     }
 
@@ -410,6 +470,7 @@ public class BluetoothKeystoreService {
         stopThread();
         mNameEncryptKey.clear();
         mNameDecryptKey.clear();
+        mConfigSectionDigests = null;
         startThread();
     }
 
@@ -418,25 +479,84 @@ public class BluetoothKeystoreService {
      */
     @VisibleForTesting
     public void stopThread() {
-        try {
-            if (mEncryptDataThread != null) {
-                mEncryptDataThread.setWaitQueueEmptyForStop();
-                mEncryptDataThread.join();
-            }
-            if (mDecryptDataThread != null) {
-                mDecryptDataThread.setWaitQueueEmptyForStop();
-                mDecryptDataThread.join();
+        synchronized (mComputeDataThreads) {
+            try {
+                for (ComputeDataThread thread : mComputeDataThreads) {
+                    thread.setWaitQueueEmptyForStop();
+                }
+                for (ComputeDataThread thread : mComputeDataThreads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                reportBluetoothKeystoreException(e, "Interrupted while operating.");
             }
-        } catch (InterruptedException e) {
-            reportBluetoothKeystoreException(e, "Interrupted while operating.");
+            mComputeDataThreads.clear();
         }
     }
 
     private void startThread() {
-        mEncryptDataThread = new ComputeDataThread(true);
-        mDecryptDataThread = new ComputeDataThread(false);
-        mEncryptDataThread.start();
-        mDecryptDataThread.start();
+        synchronized (mComputeDataThreads) {
+            for (int i = 0; i < COMPUTE_THREAD_COUNT; i++) {
+                mComputeDataThreads.add(new ComputeDataThread(true, mPendingEncryptKeys.get(i)));
+                mComputeDataThreads.add(new ComputeDataThread(false, mPendingDecryptKeys.get(i)));
+            }
+            for (ComputeDataThread thread : mComputeDataThreads) {
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Wait until the compute threads are done with all queued keys, starting them if needed.
+     */
+    private void waitComputeIdle() {
+        synchronized (mComputeDataThreads) {
+            if (mComputeDataThreads.isEmpty()) {
+                startThread();
+            }
+            // The threads cannot be stopped while waiting, as that needs mComputeDataThreads.
+            synchronized (mComputeLock) {
+                long deadline = SystemClock.elapsedRealtime() + COMPUTE_IDLE_TIMEOUT_MS;
+                try {
+                    while (mPendingComputeCount > 0) {
+                        long remaining = deadline - SystemClock.elapsedRealtime();
+                        if (remaining <= 0) {
+                            reportBluetoothKeystoreException(new TimeoutException(),
+                                    mPendingComputeCount + " keys still queued for compute.");
+                            break;
+                        }
+                        mComputeLock.wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    reportBluetoothKeystoreException(e, "Interrupted while operating.");
+                }
+            }
+        }
+    }
+
+    private static List<BlockingQueue<String>> newComputeQueues() {
+        List<BlockingQueue<String>> queues = new ArrayList<>();
+        for (int i = 0; i < COMPUTE_THREAD_COUNT; i++) {
+            queues.add(new LinkedBlockingQueue<>());
+        }
+        return queues;
+    }
+
+    private void queueCompute(String prefixString, boolean doEncrypt)
+            throws InterruptedException {
+        List<BlockingQueue<String>> queues = doEncrypt ? mPendingEncryptKeys : mPendingDecryptKeys;
+        synchronized (mComputeLock) {
+            mPendingComputeCount++;
+        }
+        queues.get(Math.floorMod(prefixString.hashCode(), queues.size())).put(prefixString);
+    }
+
+    private void onComputeDone() {
+        synchronized (mComputeLock) {
+            if (--mPendingComputeCount == 0) {
+                mComputeLock.notifyAll();
+            }
+        }
     }
 
     /**
@@ -456,7 +576,7 @@ public class BluetoothKeystoreService {
      */
     @VisibleForTesting
     public void saveEncryptedKey() {
-        stopThread();
+        waitComputeIdle();
         List<String> configEncryptedLines = new LinkedList<>();
         List<String> keyEncryptedLines = new LinkedList<>();
         for (String key : mNameEncryptKey.keySet()) {
@@ -466,7 +586,6 @@ public class BluetoothKeystoreService {
                 keyEncryptedLines.add(getEncryptedKeyData(key));
             }
         }
-        startThread();
 
         try {
             if (!configEncryptedLines.isEmpty()) {
@@ -543,7 +662,7 @@ public class BluetoothKeystoreService {
             return false;
         }
 
-        readHashFile(hashFilePathString, prefixString);
+        ConfigSectionDigests sections = readHashFile(hashFilePathString, prefixString);
 
         if (!mNameEncryptKey.containsKey(prefixString)) {
             errorLog("compareFileHash: NameEncryptKey doesn't contain the key, prefix:"
@@ -557,21 +676,41 @@ public class BluetoothKeystoreService {
             return false;
         }
 
-        return decryptedData.equals(mNameDecryptKey.get(prefixString));
+        if (!decryptedData.equals(mNameDecryptKey.get(prefixString))) {
+            return false;
+        }
+        // The checksum is verified, so the sections can be the reference for the next save.
+        if (sections != null) {
+            mConfigSectionDigests = sections;
+        }
+        return true;
     }
 
-    private void readHashFile(String filePathString, String prefixString)
-            throws InterruptedException, NoSuchAlgorithmException {
+    /**
+     * Puts the checksum of a config file into mNameDecryptKey.
+     *
+     * @return the section digests of the file if it is bt_config.conf, null otherwise
+     */
+    private @Nullable ConfigSectionDigests readHashFile(String filePathString,
+            String prefixString) throws InterruptedException, NoSuchAlgorithmException {
         byte[] dataBuffer = new byte[BUFFER_SIZE];
         int bytesRead  = 0;
         boolean successful = false;
         int counter = 0;
+        ConfigSectionDigests sections = null;
         while (!successful && counter < TRY_MAX) {
-            try {
+            sections = CONFIG_FILE_PREFIX.equals(prefixString)
+                    ? new ConfigSectionDigests(mEncryptKeyNameList) : null;
+            try (InputStream fileStream = Files.newInputStream(Paths.get(filePathString))) {
                 MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-                InputStream fileStream = Files.newInputStream(Paths.get(filePathString));
                 while ((bytesRead = fileStream.read(dataBuffer)) != -1) {
                     messageDigest.update(dataBuffer, 0, bytesRead);
+                    if (sections != null) {
+                        sections.update(dataBuffer, 0, bytesRead);
+                    }
+                }
+                if (sections != null) {
+                    sections.finish();
                 }
 
                 byte[] messageDigestBytes = messageDigest.digest();
@@ -592,6 +731,7 @@ public class BluetoothKeystoreService {
         if (counter > 3) {
             errorLog("Fail to open file");
         }
+        return successful ? sections : null;
     }
 
     private void readChecksumFile(String filePathString, String prefixString) throws IOException {
@@ -618,35 +758,38 @@ public class BluetoothKeystoreService {
         if (!Files.exists(Paths.get(filePathString))) {
             return;
         }
-        List<String> allLinesString = Files.readAllLines(Paths.get(filePathString));
-        for (String line : allLinesString) {
-            if (line.startsWith("[")) {
-                name = line.replace("[", "").replace("]", "");
-                continue;
-            }
+        // Queue the keys while reading, so the compute threads start before the end of file.
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(filePathString))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("[")) {
+                    name = line.replace("[", "").replace("]", "");
+                    continue;
+                }
 
-            index = line.indexOf(" = ");
-            if (index < 0) {
-                continue;
-            }
-            key = line.substring(0, index);
+                index = line.indexOf(" = ");
+                if (index < 0) {
+                    continue;
+                }
+                key = line.substring(0, index);
 
-            if (!mEncryptKeyNameList.contains(key)) {
-                continue;
-            }
+                if (!mEncryptKeyNameList.contains(key)) {
+                    continue;
+                }
 
-            if (name == null) {
-                continue;
-            }
+                if (name == null) {
+                    continue;
+                }
 
-            prefixString = name + "-" + key;
-            dataString = line.substring(index + 3);
-            if (dataString.length() == 0) {
-                continue;
-            }
+                prefixString = name + "-" + key;
+                dataString = line.substring(index + 3);
+                if (dataString.length() == 0) {
+                    continue;
+                }
 
-            mNameDecryptKey.put(prefixString, dataString);
-            mPendingEncryptKey.put(prefixString);
+                mNameDecryptKey.put(prefixString, dataString);
+                queueCompute(prefixString, true);
+            }
         }
     }
 
@@ -660,18 +803,20 @@ public class BluetoothKeystoreService {
             if (!Files.exists(Paths.get(filePathString))) {
                 return;
             }
-            List<String> allLinesString = Files.readAllLines(Paths.get(filePathString));
-            for (String line : allLinesString) {
-                int index = line.lastIndexOf("-");
-                if (index < 0) {
-                    continue;
-                }
-                String prefixString = line.substring(0, index);
-                String encryptedString = line.substring(index + 1);
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(filePathString))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int index = line.lastIndexOf("-");
+                    if (index < 0) {
+                        continue;
+                    }
+                    String prefixString = line.substring(0, index);
+                    String encryptedString = line.substring(index + 1);
 
-                mNameEncryptKey.put(prefixString, encryptedString);
-                if (doDecrypt) {
-                    mPendingDecryptKey.put(prefixString);
+                    mNameEncryptKey.put(prefixString, encryptedString);
+                    if (doDecrypt) {
+                        queueCompute(prefixString, false);
+                    }
                 }
             }
         } catch (IOException e) {
@@ -715,8 +860,8 @@ public class BluetoothKeystoreService {
                 errorLog("encrypt: data is null");
                 return outputBase64;
             }
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            SecretKey secretKeyReference = getOrCreateSecretKey();
+            Cipher cipher = getCipher();
+            SecretKey secretKeyReference = getSecretKey();
 
             if (secretKeyReference != null) {
                 cipher.init(Cipher.ENCRYPT_MODE, secretKeyReference);
@@ -738,6 +883,7 @@ public class BluetoothKeystoreService {
         } catch (NoSuchPaddingException e) {
             reportKeystoreException(e, "encrypt had a padding exception");
         } catch (InvalidKeyException e) {
+            mSecretKey = null;
             reportKeystoreException(e, "encrypt received an invalid key");
         } catch (BadPaddingException e) {
             reportKeystoreException(e, "encrypt had a padding problem");
@@ -766,10 +912,10 @@ public class BluetoothKeystoreService {
             }
             encryptedDataBytes = mDecoder.decode(encryptedDataBase64);
             protobuf = BluetoothKeystoreProto.EncryptedData.parser().parseFrom(encryptedDataBytes);
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            Cipher cipher = getCipher();
             GCMParameterSpec spec =
                     new GCMParameterSpec(GCM_TAG_LENGTH, protobuf.getInitVector().toByteArray());
-            SecretKey secretKeyReference = getOrCreateSecretKey();
+            SecretKey secretKeyReference = getSecretKey();
 
             if (secretKeyReference != null) {
                 cipher.init(Cipher.DECRYPT_MODE, secretKeyReference, spec);
@@ -790,6 +936,7 @@ public class BluetoothKeystoreService {
         } catch (BadPaddingException e) {
             reportKeystoreException(e, "decrypt had bad padding");
         } catch (InvalidKeyException e) {
+            mSecretKey = null;
             reportKeystoreException(e, "decrypt had an invalid key");
         } catch (InvalidAlgorithmParameterException e) {
             reportKeystoreException(e, "decrypt had an invalid algorithm parameter");
@@ -814,9 +961,29 @@ public class BluetoothKeystoreService {
         return keyStore;
     }
 
+    private Cipher getCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = mCipher.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            mCipher.set(cipher);
+        }
+        return cipher;
+    }
+
+    private SecretKey getSecretKey() {
+        SecretKey secretKey = mSecretKey;
+        if (secretKey == null) {
+            secretKey = getOrCreateSecretKey();
+        }
+        return secretKey;
+    }
+
     // The getOrGenerate semantic on keystore is not thread safe, need to synchronized it.
     private synchronized SecretKey getOrCreateSecretKey() {
-        SecretKey secretKey = null;
+        SecretKey secretKey = mSecretKey;
+        if (secretKey != null) {
+            return secretKey;
+        }
         try {
             KeyStore keyStore = getKeyStore();
             if (keyStore.containsAlias(KEYALIAS)) { // The key exists in key store. Get the key.
@@ -857,6 +1024,7 @@ public class BluetoothKeystoreService {
         } catch (ProviderException e) {
             reportKeystoreException(e, "getOrCreateSecretKey had a provider exception.");
         }
+        mSecretKey = secretKey;
         return secretKey;
     }
 
@@ -883,7 +1051,8 @@ public class BluetoothKeystoreService {
     }
 
     /**
-     * A thread that decrypt data if the queue has new decrypt task.
+     * A thread that encrypt or decrypt data if the queue has new task. Each thread has its own
+     * queue.
      */
     private class ComputeDataThread extends Thread {
         private Map<String, String> mSourceDataMap;
@@ -891,21 +1060,20 @@ public class BluetoothKeystoreService {
         private BlockingQueue<String> mSourceQueue;
         private boolean mDoEncrypt;
 
-        private boolean mWaitQueueEmptyForStop;
+        private volatile boolean mWaitQueueEmptyForStop;
 
-        ComputeDataThread(boolean doEncrypt) {
+        ComputeDataThread(boolean doEncrypt, BlockingQueue<String> sourceQueue) {
             infoLog("ComputeDataThread: create, doEncrypt: " + doEncrypt);
             mWaitQueueEmptyForStop = false;
             mDoEncrypt = doEncrypt;
+            mSourceQueue = sourceQueue;
 
             if (mDoEncrypt) {
                 mSourceDataMap = mNameDecryptKey;
                 mTargetDataMap = mNameEncryptKey;
-                mSourceQueue = mPendingEncryptKey;
             } else {
                 mSourceDataMap = mNameEncryptKey;
                 mTargetDataMap = mNameDecryptKey;
-                mSourceQueue = mPendingDecryptKey;
             }
         }
 
@@ -915,31 +1083,49 @@ public class BluetoothKeystoreService {
             String prefixString;
             String sourceData;
             String targetData;
-            while (!mSourceQueue.isEmpty() || !mWaitQueueEmptyForStop) {
+            while (true) {
+                try {
+                    // Once asked to stop, drain the queue without blocking.
+                    prefixString = mWaitQueueEmptyForStop ? mSourceQueue.poll()
+                            : mSourceQueue.take();
+                } catch (InterruptedException e) {
+                    infoLog("Interrupted while operating.");
+                    continue;
+                }
+                if (prefixString == null) {
+                    break;
+                }
                 try {
-                    prefixString = mSourceQueue.take();
-                    if (mSourceDataMap.containsKey(prefixString)) {
-                        sourceData = mSourceDataMap.get(prefixString);
+                    sourceData = mSourceDataMap.get(prefixString);
+                    if (sourceData != null) {
                         targetData = tryCompute(sourceData, mDoEncrypt);
                         if (targetData != null) {
-                            mTargetDataMap.put(prefixString, targetData);
+                            storeComputedData(prefixString, sourceData, targetData);
                         } else {
                             errorLog("Computing of Data failed with prefixString: " + prefixString
                                     + ", doEncrypt: " + mDoEncrypt);
                         }
                     }
-                } catch (InterruptedException e) {
-                    infoLog("Interrupted while operating.");
+                } finally {
+                    // Also when an unchecked keystore error ends this thread, so that waiters
+                    // are not blocked by the key.
+                    onComputeDone();
                 }
             }
             infoLog("ComputeDataThread: Stop, doEncrypt: " + mDoEncrypt);
         }
 
+        // The key may have been changed or removed while computing. The result is dropped then,
+        // so a stale value never overwrites a newer one nor brings back a removed key.
+        private void storeComputedData(String prefixString, String sourceData,
+                String targetData) {
+            mTargetDataMap.compute(prefixString, (key, oldData) ->
+                    sourceData.equals(mSourceDataMap.get(key)) ? targetData : oldData);
+        }
+
         public void setWaitQueueEmptyForStop() {
             mWaitQueueEmptyForStop = true;
-            if (mPendingEncryptKey.isEmpty()) {
-                interrupt();
-            }
+            interrupt();
         }
     }
 }
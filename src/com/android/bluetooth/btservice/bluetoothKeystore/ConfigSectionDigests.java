@@ -0,0 +1,139 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice.bluetoothkeystore;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SHA-256 digests of each [section] of a bt_config file, along with the encrypted key names
+ * present in each section.
+ *
+ * <p>Fed with the same buffers as the whole file checksum, so both are computed in one read.
+ */
+/*package*/ class ConfigSectionDigests {
+    private final List<String> mKeyNames;
+    private final MessageDigest mMessageDigest;
+    private final ByteArrayOutputStream mLine = new ByteArrayOutputStream();
+    private final Map<String, byte[]> mDigests = new HashMap<>();
+    private final Map<String, Set<String>> mSectionKeyNames = new HashMap<>();
+    private String mSection;
+
+    ConfigSectionDigests(List<String> keyNames) throws NoSuchAlgorithmException {
+        mKeyNames = keyNames;
+        mMessageDigest = MessageDigest.getInstance("SHA-256");
+    }
+
+    /**
+     * Feeds the next |length| bytes of the file.
+     */
+    void update(byte[] data, int offset, int length) {
+        int lineStart = offset;
+        for (int index = offset; index < offset + length; index++) {
+            if (data[index] == '\n') {
+                mLine.write(data, lineStart, index + 1 - lineStart);
+                onLine();
+                lineStart = index + 1;
+            }
+        }
+        mLine.write(data, lineStart, offset + length - lineStart);
+    }
+
+    /**
+     * Called once the whole file has been fed.
+     */
+    void finish() {
+        if (mLine.size() > 0) {
+            onLine();
+        }
+        endSection();
+        mSection = null;
+    }
+
+    private void onLine() {
+        byte[] line = mLine.toByteArray();
+        mLine.reset();
+        String text = new String(line, StandardCharsets.UTF_8).trim();
+        if (text.startsWith("[")) {
+            endSection();
+            mSection = text.replace("[", "").replace("]", "");
+            mSectionKeyNames.put(mSection, new HashSet<>());
+        } else if (mSection != null) {
+            int index = text.indexOf(" = ");
+            if (index > 0 && mKeyNames.contains(text.substring(0, index))) {
+                mSectionKeyNames.get(mSection).add(text.substring(0, index));
+            }
+        }
+        mMessageDigest.update(line);
+    }
+
+    private void endSection() {
+        if (mSection != null) {
+            mDigests.put(mSection, mMessageDigest.digest());
+        } else {
+            // Lines before the first section do not hold any key.
+            mMessageDigest.reset();
+        }
+    }
+
+    Set<String> getSections() {
+        return mDigests.keySet();
+    }
+
+    /**
+     * Encrypted key names present in |section|, empty if there is no such section.
+     */
+    Set<String> getKeyNames(String section) {
+        Set<String> keyNames = mSectionKeyNames.get(section);
+        return keyNames != null ? keyNames : new HashSet<>();
+    }
+
+    /**
+     * Sections that are new or whose content differs from |previous|.
+     */
+    List<String> getChangedSections(ConfigSectionDigests previous) {
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, byte[]> entry : mDigests.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), previous.mDigests.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Sections of |previous| that are no longer present.
+     */
+    List<String> getRemovedSections(ConfigSectionDigests previous) {
+        List<String> removed = new ArrayList<>();
+        for (String section : previous.mDigests.keySet()) {
+            if (!mDigests.containsKey(section)) {
+                removed.add(section);
+            }
+        }
+        return removed;
+    }
+}
@@ -46,7 +46,9 @@ import com.google.common.collect.EvictingQueue;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -67,15 +69,29 @@ public class DatabaseManager {
     private MetadataDatabase mDatabase = null;
     private boolean mMigratedFromSettingsGlobal = false;
 
+    // Ordered from least to most recently connected, which is kept up to date by moving a
+    // device to the end whenever its last_active_time is bumped.
     @VisibleForTesting
-    final Map<String, Metadata> mMetadataCache = new HashMap<>();
+    final Map<String, Metadata> mMetadataCache = new LinkedHashMap<>();
+    // Address of the only device with is_active_a2dp_device set, guarded by mMetadataCache.
+    private String mActiveA2dpAddress = null;
     private final Semaphore mSemaphore = new Semaphore(1);
     private static final int METADATA_CHANGED_LOG_MAX_SIZE = 20;
     private final EvictingQueue<String> mMetadataChangedLog;
 
+    // Updated rows waiting to be written in one transaction, at most one per address.
+    private final Map<String, Metadata> mPendingWrites = new LinkedHashMap<>();
+    private long mWriteBehindWindowMillis = WRITE_BEHIND_WINDOW_MILLIS;
+    // Write amplification counters, guarded by mPendingWrites.
+    private long mUpdateRequests = 0;
+    private long mRowsWritten = 0;
+    private long mWriteTransactions = 0;
+
     private static final int LOAD_DATABASE_TIMEOUT = 500; // milliseconds
+    private static final int FLUSH_DATABASE_TIMEOUT = 1000; // milliseconds
+    private static final long WRITE_BEHIND_WINDOW_MILLIS = 100;
     private static final int MSG_LOAD_DATABASE = 0;
-    private static final int MSG_UPDATE_DATABASE = 1;
+    private static final int MSG_FLUSH_DATABASE = 1;
     private static final int MSG_DELETE_DATABASE = 2;
     private static final int MSG_CLEAR_DATABASE = 100;
     private static final String LOCAL_STORAGE = "LocalStorage";
@@ -139,11 +155,8 @@ public class DatabaseManager {
                     }
                     break;
                 }
-                case MSG_UPDATE_DATABASE: {
-                    Metadata data = (Metadata) msg.obj;
-                    synchronized (mDatabase) {
-                        mDatabase.insert(data);
-                    }
+                case MSG_FLUSH_DATABASE: {
+                    flushPendingWrites();
                     break;
                 }
                 case MSG_DELETE_DATABASE: {
@@ -207,6 +220,9 @@ public class DatabaseManager {
                 Metadata metadata = mMetadataCache.get(address);
                 if (metadata != null) {
                     mMetadataCache.remove(address);
+                    if (address.equals(mActiveA2dpAddress)) {
+                        mActiveA2dpAddress = null;
+                    }
                     deleteDatabase(metadata);
                 }
             }
@@ -548,10 +564,12 @@ public class DatabaseManager {
             // Updates last_active_time to the current counter value and increments the counter
             Metadata metadata = mMetadataCache.get(address);
             metadata.last_active_time = MetadataDatabase.sCurrentConnectionNumber++;
+            moveToMostRecent(address, metadata);
 
             // Only update is_active_a2dp_device if an a2dp device is connected
             if (isA2dpDevice) {
                 metadata.is_active_a2dp_device = true;
+                mActiveA2dpAddress = address;
             }
 
             Log.d(TAG, "Updating last connected time for device: xx:xx:xx:xx:xx:xx to "
@@ -581,6 +599,9 @@ public class DatabaseManager {
             Metadata metadata = mMetadataCache.get(address);
             if (metadata.is_active_a2dp_device) {
                 metadata.is_active_a2dp_device = false;
+                if (address.equals(mActiveA2dpAddress)) {
+                    mActiveA2dpAddress = null;
+                }
                 Log.d(TAG, "setDisconnection: Updating is_active_device to false for device: "
                         + device);
                 updateDatabase(metadata);
@@ -594,13 +615,15 @@ public class DatabaseManager {
     private void resetActiveA2dpDevice() {
         synchronized (mMetadataCache) {
             Log.d(TAG, "resetActiveA2dpDevice()");
-            for (Map.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
-                Metadata metadata = entry.getValue();
-                if (metadata.is_active_a2dp_device) {
-                    Log.d(TAG, "resetActiveA2dpDevice");
-                    metadata.is_active_a2dp_device = false;
-                    updateDatabase(metadata);
-                }
+            if (mActiveA2dpAddress == null) {
+                return;
+            }
+            Metadata metadata = mMetadataCache.get(mActiveA2dpAddress);
+            mActiveA2dpAddress = null;
+            if (metadata != null && metadata.is_active_a2dp_device) {
+                Log.d(TAG, "resetActiveA2dpDevice");
+                metadata.is_active_a2dp_device = false;
+                updateDatabase(metadata);
             }
         }
     }
@@ -615,9 +638,7 @@ public class DatabaseManager {
     public List<BluetoothDevice> getMostRecentlyConnectedDevices() {
         List<BluetoothDevice> mostRecentlyConnectedDevices = new ArrayList<>();
         synchronized (mMetadataCache) {
-            List<Metadata> sortedMetadata = new ArrayList<>(mMetadataCache.values());
-            sortedMetadata.sort((o1, o2) -> Long.compare(o2.last_active_time, o1.last_active_time));
-            for (Metadata metadata : sortedMetadata) {
+            for (Metadata metadata : mMetadataCache.values()) {
                 try {
                     mostRecentlyConnectedDevices.add(BluetoothAdapter.getDefaultAdapter()
                             .getRemoteDevice(metadata.getAddress()));
@@ -627,6 +648,7 @@ public class DatabaseManager {
                 }
             }
         }
+        Collections.reverse(mostRecentlyConnectedDevices);
         return mostRecentlyConnectedDevices;
     }
 
@@ -637,22 +659,27 @@ public class DatabaseManager {
      */
     public BluetoothDevice getMostRecentlyConnectedA2dpDevice() {
         synchronized (mMetadataCache) {
-            for (Map.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
-                Metadata metadata = entry.getValue();
-                if (metadata.is_active_a2dp_device) {
-                    try {
-                        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
-                                metadata.getAddress());
-                    } catch (IllegalArgumentException ex) {
-                        Log.d(TAG, "getMostRecentlyConnectedA2dpDevice: Invalid address for "
-                                + "device " + metadata.getAddress());
-                    }
-                }
+            if (mActiveA2dpAddress == null) {
+                return null;
+            }
+            try {
+                return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(mActiveA2dpAddress);
+            } catch (IllegalArgumentException ex) {
+                Log.d(TAG, "getMostRecentlyConnectedA2dpDevice: Invalid address for "
+                        + "device " + mActiveA2dpAddress);
             }
         }
         return null;
     }
 
+    /**
+     * Moves |metadata| to the most recently connected end of {@link #mMetadataCache}.
+     */
+    private void moveToMostRecent(String address, Metadata metadata) {
+        mMetadataCache.remove(address);
+        mMetadataCache.put(address, metadata);
+    }
+
     /**
      *
      * @param metadataList is the list of metadata
@@ -730,6 +757,11 @@ public class DatabaseManager {
      */
     public void factoryReset() {
         Log.w(TAG, "factoryReset");
+        // Pending updates would bring back rows that are about to be cleared.
+        synchronized (mPendingWrites) {
+            mPendingWrites.clear();
+            mHandler.removeMessages(MSG_FLUSH_DATABASE);
+        }
         Message message = mHandler.obtainMessage(MSG_CLEAR_DATABASE);
         mHandler.sendMessage(message);
     }
@@ -741,16 +773,28 @@ public class DatabaseManager {
         removeUnusedMetadata();
         mAdapterService.unregisterReceiver(mReceiver);
         if (mHandlerThread != null) {
-            mHandlerThread.quit();
+            // Write pending updates before the handler thread goes away.
+            mHandler.removeMessages(MSG_FLUSH_DATABASE);
+            mHandler.sendEmptyMessage(MSG_FLUSH_DATABASE);
+            mHandlerThread.quitSafely();
+            try {
+                mHandlerThread.join(FLUSH_DATABASE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "cleanup: interrupted while flushing database");
+            }
             mHandlerThread = null;
         }
         mMetadataCache.clear();
+        mActiveA2dpAddress = null;
     }
 
     void createMetadata(String address, boolean isActiveA2dpDevice) {
         Metadata data = new Metadata(address);
         data.is_active_a2dp_device = isActiveA2dpDevice;
-        mMetadataCache.put(address, data);
+        moveToMostRecent(address, data);
+        if (isActiveA2dpDevice) {
+            mActiveA2dpAddress = address;
+        }
         updateDatabase(data);
         logMetadataChange(address, "Metadata created");
     }
@@ -786,10 +830,27 @@ public class DatabaseManager {
                 return;
             }
             mMigratedFromSettingsGlobal = true;
-            for (Metadata data : list) {
+            mActiveA2dpAddress = null;
+            // The list is ordered by descending last_active_time
+            for (int index = list.size() - 1; index >= 0; index--) {
+                Metadata data = list.get(index);
                 String address = data.getAddress();
                 Log.v(TAG, "cacheMetadata: found device xx:xx:xx:xx:xx:xx");
-                mMetadataCache.put(address, data);
+                moveToMostRecent(address, data);
+            }
+            // Keep only the most recent active a2dp device, older flags may be left over from
+            // migration.
+            for (int index = 0; index < list.size(); index++) {
+                Metadata data = list.get(index);
+                if (!data.is_active_a2dp_device || LOCAL_STORAGE.equals(data.getAddress())) {
+                    continue;
+                }
+                if (mActiveA2dpAddress == null) {
+                    mActiveA2dpAddress = data.getAddress();
+                } else {
+                    data.is_active_a2dp_device = false;
+                    updateDatabase(data);
+                }
             }
             Log.i(TAG, "cacheMetadata: Database is ready");
         }
@@ -996,9 +1057,42 @@ public class DatabaseManager {
             return;
         }
         Log.d(TAG, "updateDatabase xx:xx:xx:xx:xx:xx");
-        Message message = mHandler.obtainMessage(MSG_UPDATE_DATABASE);
-        message.obj = data;
-        mHandler.sendMessage(message);
+        synchronized (mPendingWrites) {
+            mUpdateRequests++;
+            if (mPendingWrites.isEmpty()) {
+                mHandler.sendEmptyMessageDelayed(MSG_FLUSH_DATABASE, mWriteBehindWindowMillis);
+            }
+            mPendingWrites.put(data.getAddress(), data);
+        }
+    }
+
+    /**
+     * Writes all pending updates in one transaction. Runs on the handler thread.
+     */
+    private void flushPendingWrites() {
+        Metadata[] rows;
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            rows = mPendingWrites.values().toArray(new Metadata[0]);
+            mPendingWrites.clear();
+        }
+        synchronized (mDatabase) {
+            mDatabase.insert(rows);
+        }
+        synchronized (mPendingWrites) {
+            mRowsWritten += rows.length;
+            mWriteTransactions++;
+        }
+    }
+
+    /**
+     * Sets how long updates are held back to be written together.
+     */
+    @VisibleForTesting
+    void setWriteBehindWindowMillis(long windowMillis) {
+        mWriteBehindWindowMillis = windowMillis;
     }
 
     @VisibleForTesting
@@ -1009,6 +1103,9 @@ public class DatabaseManager {
             return;
         }
         logMetadataChange(address, "Metadata deleted");
+        synchronized (mPendingWrites) {
+            mPendingWrites.remove(address);
+        }
         Message message = mHandler.obtainMessage(MSG_DELETE_DATABASE);
         message.obj = data.getAddress();
         mHandler.sendMessage(message);
@@ -1058,6 +1155,11 @@ public class DatabaseManager {
      */
     public void dump(PrintWriter writer) {
         writer.println("\nBluetoothDatabase:");
+        synchronized (mPendingWrites) {
+            writer.println("  Write-behind: " + mUpdateRequests + " updates, " + mRowsWritten
+                    + " rows written in " + mWriteTransactions + " transactions, "
+                    + mPendingWrites.size() + " pending");
+        }
         writer.println("  Metadata Changes:");
         for (String log : mMetadataChangedLog) {
             writer.println("    " + log);
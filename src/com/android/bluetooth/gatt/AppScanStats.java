@@ -31,13 +31,15 @@ import com.android.internal.app.IBatteryStats;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * ScanStats class helps keep track of information about scans
@@ -64,7 +66,7 @@ import java.util.Objects;
     /* Battery stats is used to keep track of scans and result stats */ IBatteryStats
             mBatteryStats;
 
-    class LastScan {
+    static class LastScan {
         public long duration;
         public long suspendDuration;
         public long suspendStartTime;
@@ -77,7 +79,7 @@ import java.util.Objects;
         public boolean isCallbackScan;
         public boolean isBatchScan;
         public boolean isLegacy;
-        public int results;
+        public final AtomicInteger results = new AtomicInteger();
         public int scannerId;
         public int scanMode;
         public int scanCallbackType;
@@ -107,7 +109,6 @@ import java.util.Objects;
             this.reportDelayMillis = reportDelayMillis;
             this.numOfMatchesPerFilter = numOfMatchesPerFilter;
             this.matchMode = matchMode;
-            this.results = 0;
             this.scannerId = scannerId;
             this.suspendDuration = 0;
             this.suspendStartTime = 0;
@@ -116,6 +117,167 @@ import java.util.Objects;
         }
     }
 
+    /**
+     * Fixed-size ring of the most recently stopped scans. Each scan is stored in primitive
+     * arrays, so recording one allocates nothing, and is only turned back into a
+     * {@link LastScan} when dumping.
+     */
+    static class ScanHistory {
+        private static final int FLAG_OPPORTUNISTIC = 1 << 0;
+        private static final int FLAG_TIMEOUT = 1 << 1;
+        private static final int FLAG_BACKGROUND = 1 << 2;
+        private static final int FLAG_FILTER = 1 << 3;
+        private static final int FLAG_CALLBACK = 1 << 4;
+        private static final int FLAG_BATCH = 1 << 5;
+        private static final int FLAG_LEGACY = 1 << 6;
+
+        private long[] mTimestamps;
+        private long[] mDurations;
+        private long[] mSuspendDurations;
+        private long[] mReportDelayMillis;
+        private int[] mFlags;
+        private int[] mResultCounts;
+        private int[] mScannerIds;
+        private int[] mScanModes;
+        private int[] mCallbackTypes;
+        private int[] mPhys;
+        private int[] mScanResultTypes;
+        private int[] mNumOfMatchesPerFilter;
+        private int[] mMatchModes;
+        private String[] mFilterStrings;
+        private int mHead = 0;
+        private int mSize = 0;
+
+        ScanHistory(int capacity) {
+            allocate(Math.max(capacity, 1));
+        }
+
+        private void allocate(int capacity) {
+            mTimestamps = new long[capacity];
+            mDurations = new long[capacity];
+            mSuspendDurations = new long[capacity];
+            mReportDelayMillis = new long[capacity];
+            mFlags = new int[capacity];
+            mResultCounts = new int[capacity];
+            mScannerIds = new int[capacity];
+            mScanModes = new int[capacity];
+            mCallbackTypes = new int[capacity];
+            mPhys = new int[capacity];
+            mScanResultTypes = new int[capacity];
+            mNumOfMatchesPerFilter = new int[capacity];
+            mMatchModes = new int[capacity];
+            mFilterStrings = new String[capacity];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        int getCapacity() {
+            return mTimestamps.length;
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        /**
+         * Changes the number of scans kept, keeping the most recent ones.
+         */
+        void setCapacity(int capacity) {
+            capacity = Math.max(capacity, 1);
+            if (capacity == mTimestamps.length) {
+                return;
+            }
+            LastScan[] kept = new LastScan[Math.min(mSize, capacity)];
+            for (int i = 0; i < kept.length; i++) {
+                kept[i] = get(mSize - kept.length + i, null);
+            }
+            allocate(capacity);
+            mHead = 0;
+            mSize = 0;
+            for (LastScan scan : kept) {
+                add(scan);
+            }
+        }
+
+        /**
+         * Records a stopped scan, overwriting the oldest one if the ring is full.
+         */
+        void add(LastScan scan) {
+            int index;
+            if (mSize == mTimestamps.length) {
+                index = mHead;
+                mHead = (mHead + 1) % mTimestamps.length;
+            } else {
+                index = (mHead + mSize) % mTimestamps.length;
+                mSize++;
+            }
+            int flags = 0;
+            flags |= scan.isOpportunisticScan ? FLAG_OPPORTUNISTIC : 0;
+            flags |= scan.isTimeout ? FLAG_TIMEOUT : 0;
+            flags |= scan.isBackgroundScan ? FLAG_BACKGROUND : 0;
+            flags |= scan.isFilterScan ? FLAG_FILTER : 0;
+            flags |= scan.isCallbackScan ? FLAG_CALLBACK : 0;
+            flags |= scan.isBatchScan ? FLAG_BATCH : 0;
+            flags |= scan.isLegacy ? FLAG_LEGACY : 0;
+            mFlags[index] = flags;
+            mTimestamps[index] = scan.timestamp;
+            mDurations[index] = scan.duration;
+            mSuspendDurations[index] = scan.suspendDuration;
+            mReportDelayMillis[index] = scan.reportDelayMillis;
+            mResultCounts[index] = scan.results.get();
+            mScannerIds[index] = scan.scannerId;
+            mScanModes[index] = scan.scanMode;
+            mCallbackTypes[index] = scan.scanCallbackType;
+            mPhys[index] = scan.phy;
+            mScanResultTypes[index] = scan.scanResultType;
+            mNumOfMatchesPerFilter[index] = scan.numOfMatchesPerFilter;
+            mMatchModes[index] = scan.matchMode;
+            mFilterStrings[index] = scan.filterString;
+        }
+
+        /**
+         * Returns the start time of the |position|-th oldest scan.
+         */
+        long getTimestamp(int position) {
+            return mTimestamps[(mHead + position) % mTimestamps.length];
+        }
+
+        /**
+         * Copies the |position|-th oldest scan into |scan|, or into a new {@link LastScan} if
+         * |scan| is null.
+         */
+        LastScan get(int position, LastScan scan) {
+            int index = (mHead + position) % mTimestamps.length;
+            int flags = mFlags[index];
+            if (scan == null) {
+                scan = new LastScan(0, false, false, false, 0, 0, 0, 0, 0, 0, 0, 0);
+            }
+            scan.timestamp = mTimestamps[index];
+            scan.duration = mDurations[index];
+            scan.suspendDuration = mSuspendDurations[index];
+            scan.reportDelayMillis = mReportDelayMillis[index];
+            scan.results.set(mResultCounts[index]);
+            scan.scannerId = mScannerIds[index];
+            scan.scanMode = mScanModes[index];
+            scan.scanCallbackType = mCallbackTypes[index];
+            scan.phy = mPhys[index];
+            scan.scanResultType = mScanResultTypes[index];
+            scan.numOfMatchesPerFilter = mNumOfMatchesPerFilter[index];
+            scan.matchMode = mMatchModes[index];
+            scan.filterString = mFilterStrings[index];
+            scan.isOpportunisticScan = (flags & FLAG_OPPORTUNISTIC) != 0;
+            scan.isTimeout = (flags & FLAG_TIMEOUT) != 0;
+            scan.isBackgroundScan = (flags & FLAG_BACKGROUND) != 0;
+            scan.isFilterScan = (flags & FLAG_FILTER) != 0;
+            scan.isCallbackScan = (flags & FLAG_CALLBACK) != 0;
+            scan.isBatchScan = (flags & FLAG_BATCH) != 0;
+            scan.isLegacy = (flags & FLAG_LEGACY) != 0;
+            return scan;
+        }
+    }
+
     static int getNumScanDurationsKept() {
         return AdapterService.getAdapterService().getScanQuotaCount();
     }
@@ -152,11 +314,18 @@ import java.util.Objects;
     private int mBalancedScan = 0;
     private int mLowLantencyScan = 0;
     private int mAmbientDiscoveryScan = 0;
-    private List<LastScan> mLastScans = new ArrayList<LastScan>();
-    private HashMap<Integer, LastScan> mOngoingScans = new HashMap<Integer, LastScan>();
+    // Stopped scans, created on the first stop since the quota is read from AdapterService.
+    private ScanHistory mLastScans;
+    // Written under the object lock, read without it when a result is delivered.
+    private final Map<Integer, LastScan> mOngoingScans =
+            new ConcurrentHashMap<Integer, LastScan>();
     public long startTime = 0;
     public long stopTime = 0;
-    public int results = 0;
+    private final LongAdder mResults = new LongAdder();
+    // Results offered to and delivered from coalescing windows, and the windows flushed.
+    private long mCoalescedResultsOffered = 0;
+    private long mCoalescedResultsDelivered = 0;
+    private long mCoalescedBatches = 0;
 
     AppScanStats(String name, WorkSource source, ContextMap map, GattService service) {
         appName = name;
@@ -171,14 +340,14 @@ import java.util.Objects;
         mWorkSource = source;
     }
 
-    synchronized void addResult(int scannerId) {
+    // Called for every delivered result, so it only touches concurrent counters and never
+    // takes the object lock.
+    void addResult(int scannerId) {
         LastScan scan = getScanFromScannerId(scannerId);
         if (scan != null) {
-            scan.results++;
-
             // Only update battery stats after receiving 100 new results in order
             // to lower the cost of the binder transaction
-            if (scan.results % 100 == 0) {
+            if (scan.results.incrementAndGet() % 100 == 0) {
                 try {
                     mBatteryStats.noteBleScanResults(mWorkSource, 100);
                 } catch (RemoteException e) {
@@ -189,7 +358,15 @@ import java.util.Objects;
             }
         }
 
-        results++;
+        mResults.increment();
+    }
+
+    // Records a flushed coalescing window, which delivered |delivered| of the |offered|
+    // results in a single batch callback.
+    synchronized void recordCoalescedResults(int offered, int delivered) {
+        mCoalescedResultsOffered += offered;
+        mCoalescedResultsDelivered += delivered;
+        mCoalescedBatches++;
     }
 
     boolean isScanning() {
@@ -286,10 +463,14 @@ import java.util.Objects;
             mTotalSuspendTime += suspendDuration;
         }
         mOngoingScans.remove(scannerId);
-        if (mLastScans.size() >= getNumScanDurationsKept()) {
-            mLastScans.remove(0);
+        int numScanDurationsKept = getNumScanDurationsKept();
+        if (mLastScans == null) {
+            mLastScans = new ScanHistory(numScanDurationsKept);
+        } else {
+            mLastScans.setCapacity(numScanDurationsKept);
         }
         mLastScans.add(scan);
+        int results = scan.results.get();
 
         BluetoothMetricsProto.ScanEvent scanEvent = BluetoothMetricsProto.ScanEvent.newBuilder()
                 .setScanEventType(BluetoothMetricsProto.ScanEvent.ScanEventType.SCAN_EVENT_STOP)
@@ -297,7 +478,7 @@ import java.util.Objects;
                         BluetoothMetricsProto.ScanEvent.ScanTechnologyType.SCAN_TECH_TYPE_LE)
                 .setEventTimeMillis(System.currentTimeMillis())
                 .setInitiator(truncateAppName(appName))
-                .setNumberResults(scan.results)
+                .setNumberResults(results)
                 .build();
         mGattService.addScanEvent(scanEvent);
 
@@ -326,13 +507,13 @@ import java.util.Objects;
             // Inform battery stats of any results it might be missing on scan stop
             boolean isUnoptimized =
                     !(scan.isFilterScan || scan.isBackgroundScan || scan.isOpportunisticScan);
-            mBatteryStats.noteBleScanResults(mWorkSource, scan.results % 100);
+            mBatteryStats.noteBleScanResults(mWorkSource, results % 100);
             mBatteryStats.noteBleScanStopped(mWorkSource, isUnoptimized);
         } catch (RemoteException e) {
             /* ignore */
         }
         BluetoothStatsLog.write(
-                BluetoothStatsLog.BLE_SCAN_RESULT_RECEIVED, mWorkSource, scan.results % 100);
+                BluetoothStatsLog.BLE_SCAN_RESULT_RECEIVED, mWorkSource, results % 100);
         BluetoothStatsLog.write(BluetoothStatsLog.BLE_SCAN_STATE_CHANGED, mWorkSource,
                 BluetoothStatsLog.BLE_SCAN_STATE_CHANGED__STATE__OFF,
                 scan.isFilterScan, scan.isBackgroundScan, scan.isOpportunisticScan);
@@ -372,11 +553,11 @@ import java.util.Objects;
     }
 
     synchronized boolean isScanningTooFrequently() {
-        if (mLastScans.size() < getNumScanDurationsKept()) {
+        if (mLastScans == null || mLastScans.size() < getNumScanDurationsKept()) {
             return false;
         }
 
-        return (SystemClock.elapsedRealtime() - mLastScans.get(0).timestamp)
+        return (SystemClock.elapsedRealtime() - mLastScans.getTimestamp(0))
                 < getExcessiveScanningPeriodMillis();
     }
 
@@ -623,14 +804,23 @@ import java.util.Objects;
                 + oppScan + " / " + lowPowerScan + " / " + balancedScan + " / " + lowLatencyScan
                 + " / " + ambientDiscoveryScan);
         sb.append("\n  Score                                                       : " + Score);
-        sb.append("\n  Total number of results                                     : " + results);
+        sb.append("\n  Total number of results                                     : "
+                + mResults.sum());
+        if (mCoalescedBatches > 0) {
+            sb.append("\n  Coalesced results (offered/delivered/batches)               : "
+                    + mCoalescedResultsOffered + " / " + mCoalescedResultsDelivered + " / "
+                    + mCoalescedBatches);
+            sb.append("\n  Callbacks saved by coalescing                               : "
+                    + (mCoalescedResultsOffered - mCoalescedBatches));
+        }
 
-        if (!mLastScans.isEmpty()) {
+        if (mLastScans != null && !mLastScans.isEmpty()) {
             sb.append("\n  Last " + mLastScans.size()
                     + " scans                                                :");
 
+            LastScan scan = null;
             for (int i = 0; i < mLastScans.size(); i++) {
-                LastScan scan = mLastScans.get(i);
+                scan = mLastScans.get(i, scan);
                 Date timestamp = new Date(currentTime - currTime + scan.timestamp);
                 sb.append("\n    " + DATE_FORMAT.format(timestamp) + " - ");
                 sb.append(scan.duration + "ms ");
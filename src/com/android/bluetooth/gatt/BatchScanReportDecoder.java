@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Cursor based decoder for the batch scan reports delivered by the stack.
+ *
+ * <p>The raw report is read in place through a little endian {@link ByteBuffer}. The address
+ * scratch buffer is reused for every record, and a full record costs a single allocation for
+ * the combined advertising and scan response data. Record lengths are bounds checked: decoding
+ * stops at the first malformed record and the records decoded so far are returned.
+ *
+ * <p>An instance decodes a single report and is not thread safe.
+ *
+ * @hide
+ */
+/* package */ class BatchScanReportDecoder {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "BatchScanReportDecoder";
+
+    static final int MAC_ADDRESS_LENGTH = 6;
+    // Address, address type, tx power, rssi and timestamp.
+    static final int TRUNCATED_RESULT_SIZE = 11;
+    // Address, address type, tx power, rssi, timestamp and advertise packet length.
+    static final int FULL_RESULT_HEADER_SIZE = 12;
+
+    private static final byte[] EMPTY_SCAN_RECORD = new byte[0];
+
+    private final ByteBuffer mBuffer;
+    private final Function<byte[], BluetoothDevice> mDeviceFactory;
+    private final byte[] mAddress = new byte[MAC_ADDRESS_LENGTH];
+
+    BatchScanReportDecoder(byte[] recordData,
+            Function<byte[], BluetoothDevice> deviceFactory) {
+        mBuffer = ByteBuffer.wrap(recordData).order(ByteOrder.LITTLE_ENDIAN);
+        mDeviceFactory = deviceFactory;
+    }
+
+    /**
+     * Converts a batch scan timestamp, in units of 50 ms, to nanoseconds.
+     */
+    static long timestampUnitsToNanos(int timestampUnit) {
+        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50L);
+    }
+
+    /**
+     * Decodes a report of truncated results, which only carry address, rssi and timestamp.
+     */
+    Set<ScanResult> decodeTruncated(int numRecords, long nowNanos) {
+        int available = mBuffer.remaining() / TRUNCATED_RESULT_SIZE;
+        if (numRecords > available) {
+            Log.w(TAG, "Truncated batch report holds " + available + " of " + numRecords
+                    + " records");
+            numRecords = available;
+        }
+        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
+        for (int i = 0; i < numRecords; ++i) {
+            BluetoothDevice device = readDevice();
+            // Skip address type and tx power level.
+            skip(2);
+            int rssi = mBuffer.get();
+            long timestampNanos = nowNanos - readTimestampNanos();
+            results.add(new ScanResult(device, ScanRecord.parseFromBytes(EMPTY_SCAN_RECORD),
+                    rssi, timestampNanos));
+        }
+        return results;
+    }
+
+    /**
+     * Decodes a report of full results, combining the advertise packet and scan response of
+     * each record into a single scan record.
+     */
+    Set<ScanResult> decodeFull(int numRecords, long nowNanos) {
+        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
+        while (mBuffer.hasRemaining()) {
+            int start = mBuffer.position();
+            if (mBuffer.remaining() < FULL_RESULT_HEADER_SIZE) {
+                logMalformed(start, "header");
+                break;
+            }
+            BluetoothDevice device = readDevice();
+            // Skip address type and tx power level.
+            skip(2);
+            int rssi = mBuffer.get();
+            long timestampNanos = nowNanos - readTimestampNanos();
+
+            int advertisePacketLen = Byte.toUnsignedInt(mBuffer.get());
+            if (mBuffer.remaining() < advertisePacketLen + 1) {
+                logMalformed(start, "advertise packet");
+                break;
+            }
+            int advertiseStart = mBuffer.position();
+            skip(advertisePacketLen);
+            int scanResponsePacketLen = Byte.toUnsignedInt(mBuffer.get());
+            if (mBuffer.remaining() < scanResponsePacketLen) {
+                logMalformed(start, "scan response packet");
+                break;
+            }
+
+            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
+            mBuffer.position(advertiseStart);
+            mBuffer.get(scanRecord, 0, advertisePacketLen);
+            skip(1);
+            mBuffer.get(scanRecord, advertisePacketLen, scanResponsePacketLen);
+            results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord), rssi,
+                    timestampNanos));
+        }
+        if (DBG && results.size() != numRecords) {
+            Log.d(TAG, "Decoded " + results.size() + " of " + numRecords + " full records");
+        }
+        return results;
+    }
+
+    private BluetoothDevice readDevice() {
+        // The address is sent in reverse byte order.
+        for (int i = MAC_ADDRESS_LENGTH - 1; i >= 0; i--) {
+            mAddress[i] = mBuffer.get();
+        }
+        return mDeviceFactory.apply(mAddress);
+    }
+
+    private long readTimestampNanos() {
+        return timestampUnitsToNanos(Short.toUnsignedInt(mBuffer.getShort()));
+    }
+
+    private void skip(int length) {
+        mBuffer.position(mBuffer.position() + length);
+    }
+
+    private void logMalformed(int offset, String part) {
+        Log.w(TAG, "Malformed batch record at offset " + offset + ": " + part
+                + " exceeds report length " + mBuffer.limit());
+    }
+}
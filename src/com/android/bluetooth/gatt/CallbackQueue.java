@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.SystemClock;
+
+/**
+ * FIFO of the callbacks held back while a transport is congested.
+ *
+ * <p>The queue is a ring buffer, so adding and removing a callback is O(1). The queued callbacks
+ * are operation completions the app waits for before its next operation, hence none is ever
+ * dropped: the ring doubles in size once full. Its size is bounded by the operations the app
+ * has in flight.
+ *
+ * @hide
+ */
+/*package*/ class CallbackQueue {
+    static final int DEFAULT_CAPACITY = 16;
+
+    private CallbackInfo[] mItems;
+    private long[] mQueuedTimes;
+    private int mHead = 0;
+    private int mSize = 0;
+
+    private long mQueued = 0;
+    private int mMaxSize = 0;
+    private long mDelivered = 0;
+    private long mTotalLatencyMillis = 0;
+    private long mMaxLatencyMillis = 0;
+
+    CallbackQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mItems = new CallbackInfo[capacity];
+        mQueuedTimes = new long[capacity];
+    }
+
+    synchronized int getCapacity() {
+        return mItems.length;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Queues a callback, growing the queue if it is full.
+     */
+    synchronized void add(CallbackInfo callbackInfo) {
+        mQueued++;
+        if (mSize == mItems.length) {
+            grow();
+        }
+        int index = (mHead + mSize) % mItems.length;
+        mItems[index] = callbackInfo;
+        mQueuedTimes[index] = SystemClock.elapsedRealtime();
+        mSize++;
+        mMaxSize = Math.max(mMaxSize, mSize);
+    }
+
+    private void grow() {
+        CallbackInfo[] items = new CallbackInfo[mItems.length * 2];
+        long[] queuedTimes = new long[items.length];
+        for (int i = 0; i < mSize; i++) {
+            int index = (mHead + i) % mItems.length;
+            items[i] = mItems[index];
+            queuedTimes[i] = mQueuedTimes[index];
+        }
+        mItems = items;
+        mQueuedTimes = queuedTimes;
+        mHead = 0;
+    }
+
+    /**
+     * Removes and returns the oldest callback, or null if the queue is empty.
+     */
+    synchronized CallbackInfo poll() {
+        if (mSize == 0) {
+            return null;
+        }
+        CallbackInfo callbackInfo = mItems[mHead];
+        long latency = SystemClock.elapsedRealtime() - mQueuedTimes[mHead];
+        mItems[mHead] = null;
+        mHead = (mHead + 1) % mItems.length;
+        mSize--;
+
+        mDelivered++;
+        mTotalLatencyMillis += latency;
+        mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latency);
+        return callbackInfo;
+    }
+
+    synchronized boolean hasStats() {
+        return mQueued > 0;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("queued=" + mQueued + ", pending=" + mSize + ", maxPending=" + mMaxSize
+                + ", delivered=" + mDelivered
+                + ", avgLatencyMs=" + (mDelivered > 0 ? mTotalLatencyMillis / mDelivered : 0)
+                + ", maxLatencyMs=" + mMaxLatencyMillis);
+    }
+}
@@ -29,14 +29,20 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Helper class that keeps track of registered GATT applications.
  * This class manages application callbacks and keeps track of GATT connections.
+ *
+ * <p>Applications and connections are indexed by ID, UUID and address. Changes are serialized,
+ * while lookups go through the concurrent indexes without taking a lock.
  * @hide
  */
 /*package*/ class ContextMap<C, T> {
@@ -66,7 +72,7 @@ import java.util.UUID;
         /** The UUID of the application */
         public UUID uuid;
 
-        /** The id of the application */
+        /** The id of the application, assigned through {@link #setId} */
         public int id;
 
         /** The package name of the application */
@@ -115,7 +121,8 @@ import java.util.UUID;
         public List<String> mAssociatedDevices;
 
         /** Internal callback info queue, waiting to be send on congestion clear */
-        private List<CallbackInfo> mCongestionQueue = new ArrayList<CallbackInfo>();
+        private final CallbackQueue mCongestionQueue =
+                new CallbackQueue(CallbackQueue.DEFAULT_CAPACITY);
 
         /**
          * Creates a new app context.
@@ -128,6 +135,17 @@ import java.util.UUID;
             this.appScanStats = appScanStats;
         }
 
+        /**
+         * Sets the ID assigned to the application by the stack.
+         */
+        void setId(int id) {
+            synchronized (mApps) {
+                mAppsById.remove(this.id, this);
+                this.id = id;
+                mAppsById.putIfAbsent(id, this);
+            }
+        }
+
         /**
          * Link death recipient
          */
@@ -164,21 +182,37 @@ import java.util.UUID;
         }
 
         CallbackInfo popQueuedCallback() {
-            if (mCongestionQueue.size() == 0) {
-                return null;
-            }
-            return mCongestionQueue.remove(0);
+            return mCongestionQueue.poll();
+        }
+
+        CallbackQueue getCongestionQueue() {
+            return mCongestionQueue;
         }
     }
 
     /** Our internal application list */
-    private List<App> mApps = new ArrayList<App>();
+    private final List<App> mApps = new CopyOnWriteArrayList<App>();
+
+    /** Application indexes, holding the first application added for each key */
+    private final Map<Integer, App> mAppsById = new ConcurrentHashMap<Integer, App>();
+    private final Map<UUID, App> mAppsByUuid = new ConcurrentHashMap<UUID, App>();
 
     /** Internal map to keep track of logging information by app name */
     private HashMap<Integer, AppScanStats> mAppScanStats = new HashMap<Integer, AppScanStats>();
 
-    /** Internal list of connected devices **/
-    private Set<Connection> mConnections = new HashSet<Connection>();
+    /** Internal map of connected devices by connection ID **/
+    private final Map<Integer, Connection> mConnections =
+            new ConcurrentHashMap<Integer, Connection>();
+
+    /** Connections of one application, by connection ID and upper case device address **/
+    private class AppConnections {
+        final Map<Integer, Connection> byConnId = new ConcurrentHashMap<Integer, Connection>();
+        final Map<String, Connection> byAddress = new ConcurrentHashMap<String, Connection>();
+    }
+
+    /** Connections by application ID **/
+    private final Map<Integer, AppConnections> mConnectionsByApp =
+            new ConcurrentHashMap<Integer, AppConnections>();
 
     /**
      * Add an entry to the application context list.
@@ -198,25 +232,30 @@ import java.util.UUID;
             }
             App app = new App(uuid, callback, info, appName, appScanStats);
             mApps.add(app);
+            mAppsById.putIfAbsent(app.id, app);
+            mAppsByUuid.putIfAbsent(uuid, app);
             appScanStats.isRegistered = true;
             return app;
         }
     }
 
+    // Must be called with mApps locked.
+    private void removeApp(App app) {
+        app.unlinkToDeath();
+        app.appScanStats.isRegistered = false;
+        mApps.remove(app);
+        mAppsById.remove(app.id, app);
+        mAppsByUuid.remove(app.uuid, app);
+    }
+
     /**
      * Remove the context for a given UUID
      */
     void remove(UUID uuid) {
         synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
-                    entry.unlinkToDeath();
-                    entry.appScanStats.isRegistered = false;
-                    i.remove();
-                    break;
-                }
+            App entry = findByUuid(uuid);
+            if (entry != null) {
+                removeApp(entry);
             }
         }
     }
@@ -227,16 +266,10 @@ import java.util.UUID;
     void remove(int id) {
         boolean find = false;
         synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    find = true;
-                    entry.unlinkToDeath();
-                    entry.appScanStats.isRegistered = false;
-                    i.remove();
-                    break;
-                }
+            App entry = findById(id);
+            if (entry != null) {
+                find = true;
+                removeApp(entry);
             }
         }
         if (find) {
@@ -246,24 +279,55 @@ import java.util.UUID;
 
     List<Integer> getAllAppsIds() {
         List<Integer> appIds = new ArrayList();
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                appIds.add(entry.id);
-            }
+        for (App entry : mApps) {
+            appIds.add(entry.id);
         }
         return appIds;
     }
 
     /**
-     * Add a new connection for a given application ID.
+     * Add a new connection for a given application ID. A connection with the same connection
+     * ID replaces the existing one.
      */
     void addConnection(int id, int connId, String address) {
         synchronized (mConnections) {
             App entry = getById(id);
             if (entry != null) {
-                mConnections.add(new Connection(connId, address, id));
+                Connection connection = new Connection(connId, address, id);
+                Connection previous = mConnections.put(connId, connection);
+                if (previous != null) {
+                    unindexConnection(previous);
+                }
+                AppConnections appConnections = mConnectionsByApp.get(id);
+                if (appConnections == null) {
+                    appConnections = new AppConnections();
+                    mConnectionsByApp.put(id, appConnections);
+                }
+                appConnections.byConnId.put(connId, connection);
+                appConnections.byAddress.putIfAbsent(address.toUpperCase(Locale.US), connection);
+            }
+        }
+    }
+
+    // Must be called with mConnections locked.
+    private void unindexConnection(Connection connection) {
+        AppConnections appConnections = mConnectionsByApp.get(connection.appId);
+        if (appConnections == null) {
+            return;
+        }
+        appConnections.byConnId.remove(connection.connId, connection);
+        if (appConnections.byConnId.isEmpty()) {
+            mConnectionsByApp.remove(connection.appId);
+            return;
+        }
+        String key = connection.address.toUpperCase(Locale.US);
+        if (appConnections.byAddress.remove(key, connection)) {
+            // Another connection of the app to the same device may remain.
+            for (Connection other : appConnections.byConnId.values()) {
+                if (other.address.equalsIgnoreCase(key)) {
+                    appConnections.byAddress.put(key, other);
+                    break;
+                }
             }
         }
     }
@@ -273,13 +337,9 @@ import java.util.UUID;
      */
     void removeConnection(int id, int connId) {
         synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                    break;
-                }
+            Connection connection = mConnections.remove(connId);
+            if (connection != null) {
+                unindexConnection(connection);
             }
         }
     }
@@ -289,61 +349,72 @@ import java.util.UUID;
      */
     void removeConnectionsByAppId(int appId) {
         synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.appId == appId) {
-                    i.remove();
-                }
+            AppConnections appConnections = mConnectionsByApp.remove(appId);
+            if (appConnections == null) {
+                return;
+            }
+            for (Connection connection : appConnections.byConnId.values()) {
+                mConnections.remove(connection.connId, connection);
+            }
+        }
+    }
+
+    private App findById(int id) {
+        App app = mAppsById.get(id);
+        if (app != null) {
+            return app;
+        }
+        // Not indexed, e.g. an ID shared by several applications.
+        for (App entry : mApps) {
+            if (entry.id == id) {
+                return entry;
             }
         }
+        return null;
+    }
+
+    private App findByUuid(UUID uuid) {
+        App app = mAppsByUuid.get(uuid);
+        if (app != null) {
+            return app;
+        }
+        for (App entry : mApps) {
+            if (entry.uuid.equals(uuid)) {
+                return entry;
+            }
+        }
+        return null;
     }
 
     /**
      * Get an application context by ID.
      */
     App getById(int id) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    return entry;
-                }
-            }
+        App app = findById(id);
+        if (app == null) {
+            Log.e(TAG, "Context not found for ID " + id);
         }
-        Log.e(TAG, "Context not found for ID " + id);
-        return null;
+        return app;
     }
 
     /**
      * Get an application context by UUID.
      */
     App getByUuid(UUID uuid) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
-                    return entry;
-                }
-            }
+        App app = findByUuid(uuid);
+        if (app == null) {
+            Log.e(TAG, "Context not found for UUID " + uuid);
         }
-        Log.e(TAG, "Context not found for UUID " + uuid);
-        return null;
+        return app;
     }
 
     /**
      * Get an application context by the calling Apps name.
      */
     App getByName(String name) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.name.equals(name)) {
-                    return entry;
-                }
+        for (App entry : mApps) {
+            if (entry.name.equals(name)) {
+                return entry;
             }
         }
         Log.e(TAG, "Context not found for name " + name);
@@ -354,13 +425,9 @@ import java.util.UUID;
      * Get an application context by the context info object.
      */
     App getByContextInfo(T contextInfo) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.info != null && entry.info.equals(contextInfo)) {
-                    return entry;
-                }
+        for (App entry : mApps) {
+            if (entry.info != null && entry.info.equals(contextInfo)) {
+                return entry;
             }
         }
         Log.e(TAG, "Context not found for info " + contextInfo);
@@ -390,12 +457,8 @@ import java.util.UUID;
      */
     Set<String> getConnectedDevices() {
         Set<String> addresses = new HashSet<String>();
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                addresses.add(connection.address);
-            }
+        for (Connection connection : mConnections.values()) {
+            addresses.add(connection.address);
         }
         return addresses;
     }
@@ -404,19 +467,9 @@ import java.util.UUID;
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        int appId = -1;
-        synchronized (mConnections) {
-            Iterator<Connection> ii = mConnections.iterator();
-            while (ii.hasNext()) {
-                Connection connection = ii.next();
-                if (connection.connId == connId) {
-                    appId = connection.appId;
-                    break;
-                }
-            }
-        }
-        if (appId >= 0) {
-            return getById(appId);
+        Connection connection = mConnections.get(connId);
+        if (connection != null && connection.appId >= 0) {
+            return getById(connection.appId);
         }
         return null;
     }
@@ -429,46 +482,28 @@ import java.util.UUID;
         if (entry == null) {
             return null;
         }
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.address.equalsIgnoreCase(address) && connection.appId == id) {
-                    return connection.connId;
-                }
-            }
+        AppConnections appConnections = mConnectionsByApp.get(id);
+        if (appConnections == null || address == null) {
+            return null;
         }
-        return null;
+        Connection connection = appConnections.byAddress.get(address.toUpperCase(Locale.US));
+        return connection != null ? connection.connId : null;
     }
 
     /**
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    return connection.address;
-                }
-            }
-        }
-        return null;
+        Connection connection = mConnections.get(connId);
+        return connection != null ? connection.address : null;
     }
 
     List<Connection> getConnectionByApp(int appId) {
-        List<Connection> currentConnections = new ArrayList<Connection>();
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.appId == appId) {
-                    currentConnections.add(connection);
-                }
-            }
+        AppConnections appConnections = mConnectionsByApp.get(appId);
+        if (appConnections == null) {
+            return new ArrayList<Connection>();
         }
-        return currentConnections;
+        return new ArrayList<Connection>(appConnections.byConnId.values());
     }
 
     /**
@@ -476,17 +511,18 @@ import java.util.UUID;
      */
     void clear() {
         synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
+            for (App entry : mApps) {
                 entry.unlinkToDeath();
                 entry.appScanStats.isRegistered = false;
-                i.remove();
             }
+            mApps.clear();
+            mAppsById.clear();
+            mAppsByUuid.clear();
         }
 
         synchronized (mConnections) {
             mConnections.clear();
+            mConnectionsByApp.clear();
         }
     }
 
@@ -495,10 +531,8 @@ import java.util.UUID;
      */
     Map<Integer, String> getConnectedMap() {
         Map<Integer, String> connectedmap = new HashMap<Integer, String>();
-        synchronized (mConnections) {
-            for (Connection conn : mConnections) {
-                connectedmap.put(conn.appId, conn.address);
-            }
+        for (Connection conn : mConnections.values()) {
+            connectedmap.put(conn.appId, conn.address);
         }
         return connectedmap;
     }
@@ -66,6 +66,7 @@ import android.provider.Settings;
 import android.text.format.DateUtils;
 import android.util.Log;
 
+import com.android.bluetooth.BluetoothAddress;
 import com.android.bluetooth.BluetoothMetricsProto;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
@@ -86,7 +87,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 /**
@@ -106,7 +106,6 @@ public class GattService extends ProfileService {
 
     private static final int MAC_ADDRESS_LENGTH = 6;
     // Batch scan related constants.
-    private static final int TRUNCATED_RESULT_SIZE = 11;
     private static final int TIME_STAMP_LENGTH = 2;
 
     private enum MatchOrigin {
@@ -136,6 +135,15 @@ public class GattService extends ProfileService {
      */
     private static final long DEFAULT_REPORT_DELAY_FLOOR = 5000;
 
+    /**
+     * Device config keys of the opt-in scan result coalescing: a comma separated list of
+     * packages, and the window in ms during which their results are collected.
+     */
+    private static final String SCAN_RESULT_COALESCING_PACKAGES = "scan_result_coalescing_packages";
+    private static final String SCAN_RESULT_COALESCING_WINDOW_MILLIS =
+            "scan_result_coalescing_window_millis";
+    private static final long DEFAULT_SCAN_RESULT_COALESCING_WINDOW = 500;
+
     // onFoundLost related constants
     private static final int ADVT_STATE_ONFOUND = 0;
     private static final int ADVT_STATE_ONLOST = 1;
@@ -233,6 +241,9 @@ public class GattService extends ProfileService {
     private AdvertiseManager mAdvertiseManager;
     private PeriodicScanManager mPeriodicScanManager;
     private ScanManager mScanManager;
+    // Reused by onScanResult() for each scan result, only ever called on the JNI callback thread.
+    private final ScanFilterIndex.Candidates mScanFilterCandidates =
+            new ScanFilterIndex.Candidates();
     private AppOpsManager mAppOps;
     private ICompanionDeviceManager mCompanionManager;
     private String mExposureNotificationPackage;
@@ -1195,7 +1206,15 @@ public class GattService extends ProfileService {
                     + ", originalAddress=" + originalAddress);
         }
 
-        byte[] legacyAdvData = Arrays.copyOfRange(advData, 0, 62);
+        // Parse the report once and share the immutable result with every scanner.
+        SharedScanResult sharedResult = new SharedScanResult(eventType, address, primaryPhy,
+                secondaryPhy, advertisingSid, txPower, rssi, periodicAdvInt, advData,
+                originalAddress, SystemClock.elapsedRealtimeNanos(), this::getAnonymousDevice);
+
+        ScanFilterIndex filterIndex = mScanManager.getRegularScanFilterIndex();
+        // Index lookups are cached per distinct result, as most scanners share the same one.
+        ScanResult indexedResult = null;
+        ScanFilterIndex.Candidates candidates = null;
 
         for (ScanClient client : mScanManager.getRegularScanQueue()) {
             ScannerMap.App app = mScannerMap.getById(client.scannerId);
@@ -1206,30 +1225,17 @@ public class GattService extends ProfileService {
                 continue;
             }
 
-            BluetoothDevice device = getAnonymousDevice(address);
-
             ScanSettings settings = client.settings;
-            byte[] scanRecordData;
             // This is for compability with applications that assume fixed size scan data.
-            if (settings.getLegacy()) {
-                if ((eventType & ET_LEGACY_MASK) == 0) {
-                    // If this is legacy scan, but nonlegacy result - skip.
-                    Log.i(TAG, "Non legacy result in legacy scan, skipping scanner id "
-                               + client.scannerId + ", eventType=" + eventType);
-                    continue;
-                } else {
-                    // Some apps are used to fixed-size advertise data.
-                    scanRecordData = legacyAdvData;
-                }
-            } else {
-                scanRecordData = advData;
+            boolean legacy = settings.getLegacy();
+            if (legacy && (eventType & ET_LEGACY_MASK) == 0) {
+                // If this is legacy scan, but nonlegacy result - skip.
+                Log.i(TAG, "Non legacy result in legacy scan, skipping scanner id "
+                           + client.scannerId + ", eventType=" + eventType);
+                continue;
             }
 
-            ScanRecord scanRecord = ScanRecord.parseFromBytes(scanRecordData);
-            ScanResult result =
-                    new ScanResult(device, eventType, primaryPhy, secondaryPhy, advertisingSid,
-                            txPower, rssi, periodicAdvInt, scanRecord,
-                            SystemClock.elapsedRealtimeNanos());
+            ScanResult result = sharedResult.getResult(legacy);
 
             if (client.hasDisavowedLocation) {
                 if (mLocationDenylistPredicate.test(result)) {
@@ -1264,7 +1270,11 @@ public class GattService extends ProfileService {
                 continue;
             }
 
-            MatchResult matchResult = matchesFilters(client, result, originalAddress);
+            if (result != indexedResult) {
+                indexedResult = result;
+                candidates = filterIndex.lookup(result, originalAddress, mScanFilterCandidates);
+            }
+            MatchResult matchResult = matchesFilters(client, result, originalAddress, candidates);
             if (!matchResult.getMatches()) {
                 if (VDBG || mAdapterService.getIsVerboseLoggingEnabledForAll()) {
                     Log.d(TAG, "result did not match filter for scanner id " + client.scannerId);
@@ -1273,10 +1283,7 @@ public class GattService extends ProfileService {
             }
 
             if (matchResult.getMatchOrigin() == MatchOrigin.ORIGINAL_ADDRESS) {
-                result = new ScanResult(getAnonymousDevice(originalAddress), eventType, primaryPhy,
-                        secondaryPhy, advertisingSid, txPower, rssi, periodicAdvInt, scanRecord,
-                            SystemClock.elapsedRealtimeNanos());
-
+                result = sharedResult.getOriginalAddressResult(legacy);
             }
 
             if ((settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_ALL_MATCHES) == 0) {
@@ -1287,6 +1294,10 @@ public class GattService extends ProfileService {
                 continue;
             }
 
+            if (mScanManager.coalesceScanResult(client, result)) {
+                continue;
+            }
+
             try {
                 app.appScanStats.addResult(client.scannerId);
                 if (app.callback != null) {
@@ -1306,6 +1317,20 @@ public class GattService extends ProfileService {
         }
     }
 
+    /**
+     * Delivers the results a coalescing client collected during one window as a single batch.
+     */
+    void onCoalescedScanResults(ScanClient client, ArrayList<ScanResult> results) {
+        ScannerMap.App app = mScannerMap.getById(client.scannerId);
+        if (app == null) {
+            return;
+        }
+        for (int i = 0; i < results.size(); i++) {
+            app.appScanStats.addResult(client.scannerId);
+        }
+        sendBatchScanResults(app, client, results);
+    }
+
     private void sendResultByPendingIntent(PendingIntentInfo pii, ScanResult result,
             int callbackType, ScanClient client) {
         ArrayList<ScanResult> results = new ArrayList<>();
@@ -1351,7 +1376,7 @@ public class GattService extends ProfileService {
         ScannerMap.App cbApp = mScannerMap.getByUuid(uuid);
         if (cbApp != null) {
             if (status == 0) {
-                cbApp.id = scannerId;
+                cbApp.setId(scannerId);
                 // If app is callback based, setup a death recipient. App will initiate the start.
                 // Otherwise, if PendingIntent based, start the scan directly.
                 if (cbApp.callback != null) {
@@ -1383,18 +1408,23 @@ public class GattService extends ProfileService {
 
     // Check if a scan record matches a specific filters.
     private MatchResult matchesFilters(ScanClient client, ScanResult scanResult) {
-        return matchesFilters(client, scanResult, null);
+        return matchesFilters(client, scanResult, null, null);
     }
 
 
-    // Check if a scan record matches a specific filters.
+    // Check if a scan record matches a specific filters. If candidates are given, filters the
+    // index ruled out for this scan record are skipped.
     private MatchResult matchesFilters(ScanClient client, ScanResult scanResult,
-            String originalAddress) {
+            String originalAddress, ScanFilterIndex.Candidates candidates) {
         if (client.filters == null || client.filters.isEmpty()) {
             // TODO: Do we really wanna return true here?
             return new MatchResult(true, MatchOrigin.PSEUDO_ADDRESS);
         }
-        for (ScanFilter filter : client.filters) {
+        for (int i = 0; i < client.filters.size(); i++) {
+            if (candidates != null && !candidates.isCandidate(client, i)) {
+                continue;
+            }
+            ScanFilter filter = client.filters.get(i);
             // Need to check the filter matches, and the original address without changing the API
             if (filter.matches(scanResult)) {
                 return new MatchResult(true, MatchOrigin.PSEUDO_ADDRESS);
@@ -1416,7 +1446,7 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByUuid(uuid);
         if (app != null) {
             if (status == 0) {
-                app.id = clientIf;
+                app.setId(clientIf);
                 app.linkToDeath(new ClientDeathRecipient(clientIf));
             } else {
                 mClientMap.remove(uuid);
@@ -2013,85 +2043,40 @@ public class GattService extends ProfileService {
         if (DBG) {
             Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
         }
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        long now = SystemClock.elapsedRealtimeNanos();
-        for (int i = 0; i < numRecords; ++i) {
-            byte[] record =
-                    extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE, TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
-            BluetoothDevice device = getAnonymousDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]), rssi,
-                    timestampNanos));
-        }
-        return results;
+        return new BatchScanReportDecoder(batchRecord, this::getAnonymousDevice)
+                .decodeTruncated(numRecords, SystemClock.elapsedRealtimeNanos());
+    }
+
+    // Scan and batch scan results of a device share one interned address string instead of
+    // formatting one per result.
+    @Override
+    protected BluetoothDevice getAnonymousDevice(String address) {
+        return BluetoothAddress.fromString(address).getAnonymousDevice();
+    }
+
+    @Override
+    protected BluetoothDevice getAnonymousDevice(byte[] address) {
+        return BluetoothAddress.fromBytes(address).getAnonymousDevice();
+    }
+
+    @VisibleForTesting
+    ScanManager getScanManager() {
+        return mScanManager;
     }
 
     @VisibleForTesting
     long parseTimestampNanos(byte[] data) {
-        long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data);
         // Timestamp is in every 50 ms.
-        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
+        return BatchScanReportDecoder.timestampUnitsToNanos(
+                NumberUtils.littleEndianByteArrayToInt(data));
     }
 
     private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
         if (DBG) {
             Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
         }
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        int position = 0;
-        long now = SystemClock.elapsedRealtimeNanos();
-        while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
-            // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = getAnonymousDevice(address);
-            position += 6;
-            // Skip address type.
-            position++;
-            // Skip tx power level.
-            position++;
-            int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
-            position += 2;
-
-            // Combine advertise packet and scan response packet.
-            int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
-            position += advertisePacketLen;
-            int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
-            position += scanResponsePacketLen;
-            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(scanResponseBytes, 0, scanRecord, advertisePacketLen,
-                    scanResponsePacketLen);
-            if (DBG) {
-                Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
-            }
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord), rssi,
-                    timestampNanos));
-        }
-        return results;
-    }
-
-    // Reverse byte array.
-    private void reverse(byte[] address) {
-        int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
-        }
-    }
-
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
+        return new BatchScanReportDecoder(batchRecord, this::getAnonymousDevice)
+                .decodeFull(numRecords, SystemClock.elapsedRealtimeNanos());
     }
 
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_SCAN)
@@ -2381,6 +2366,7 @@ public class GattService extends ProfileService {
         scanClient.hasScanWithoutLocationPermission =
                 Utils.checkCallerHasScanWithoutLocationPermission(this);
         scanClient.associatedDevices = getAssociatedDevices(callingPackage, scanClient.userHandle);
+        scanClient.coalescer = getScanResultCoalescer(callingPackage, settings);
 
         AppScanStats app = mScannerMap.getAppScanStatsById(scannerId);
         ScannerMap.App cbApp = mScannerMap.getById(scannerId);
@@ -2476,6 +2462,7 @@ public class GattService extends ProfileService {
         scanClient.hasScanWithoutLocationPermission = app.mHasScanWithoutLocationPermission;
         scanClient.associatedDevices = app.mAssociatedDevices;
         scanClient.hasDisavowedLocation = app.mHasDisavowedLocation;
+        scanClient.coalescer = getScanResultCoalescer(piInfo.callingPackage, piInfo.settings);
 
         AppScanStats scanStats = mScannerMap.getAppScanStatsById(scannerId);
         if (scanStats != null) {
@@ -3210,7 +3197,7 @@ public class GattService extends ProfileService {
         }
         ServerMap.App app = mServerMap.getByUuid(uuid);
         if (app != null) {
-            app.id = serverIf;
+            app.setId(serverIf);
             app.linkToDeath(new ServerDeathRecipient(serverIf));
             app.callback.onServerRegistered(status, serverIf);
         }
@@ -3833,6 +3820,36 @@ public class GattService extends ProfileService {
         }
     }
 
+    /**
+     * Returns a coalescer for an unbatched ALL_MATCHES scan of a package that is opted in to
+     * scan result coalescing through device config, or null.
+     */
+    private ScanResultCoalescer getScanResultCoalescer(String callingPackage,
+            ScanSettings settings) {
+        if (callingPackage == null
+                || settings.getCallbackType() != ScanSettings.CALLBACK_TYPE_ALL_MATCHES
+                || settings.getReportDelayMillis() != 0) {
+            return null;
+        }
+
+        // Need to clear identity to pass device config permission check
+        long callerToken = Binder.clearCallingIdentity();
+        String packages = DeviceConfig.getString(DeviceConfig.NAMESPACE_BLUETOOTH,
+                SCAN_RESULT_COALESCING_PACKAGES, "");
+        long windowMillis = DeviceConfig.getLong(DeviceConfig.NAMESPACE_BLUETOOTH,
+                SCAN_RESULT_COALESCING_WINDOW_MILLIS, DEFAULT_SCAN_RESULT_COALESCING_WINDOW);
+        Binder.restoreCallingIdentity(callerToken);
+
+        if (windowMillis <= 0 || !Arrays.asList(packages.split(",")).contains(callingPackage)) {
+            return null;
+        }
+        if (DBG) {
+            Log.d(TAG, "Coalescing scan results of " + callingPackage + " every "
+                    + windowMillis + "ms");
+        }
+        return new ScanResultCoalescer(windowMillis);
+    }
+
     /**
      * Ensures the report delay is either 0 or at least the floor value (5000ms)
      *
@@ -3874,10 +3891,9 @@ public class GattService extends ProfileService {
         }
 
         if (status == 0) {
-            List<HandleMap.Entry> entries = mHandleMap.getEntries();
+            List<HandleMap.Entry> entries = mHandleMap.getEntriesByServer(serverIf);
             for (HandleMap.Entry entry : entries) {
-                if (entry.type != HandleMap.TYPE_SERVICE || entry.serverIf != serverIf
-                        || !entry.started) {
+                if (entry.type != HandleMap.TYPE_SERVICE || !entry.started) {
                     continue;
                 }
 
@@ -3897,9 +3913,9 @@ public class GattService extends ProfileService {
          * The handles are copied into a new list to avoid race conditions.
          */
         List<Integer> handleList = new ArrayList<Integer>();
-        List<HandleMap.Entry> entries = mHandleMap.getEntries();
+        List<HandleMap.Entry> entries = mHandleMap.getEntriesByServer(serverIf);
         for (HandleMap.Entry entry : entries) {
-            if (entry.type != HandleMap.TYPE_SERVICE || entry.serverIf != serverIf) {
+            if (entry.type != HandleMap.TYPE_SERVICE) {
                 continue;
             }
             handleList.add(entry.handle);
@@ -3918,15 +3934,28 @@ public class GattService extends ProfileService {
         }
         sb.append("  Client:\n");
         for (Integer appId : mClientMap.getAllAppsIds()) {
-            println(sb, "    app_if: " + appId + ", appName: " + mClientMap.getById(appId).name);
+            ClientMap.App app = mClientMap.getById(appId);
+            println(sb, "    app_if: " + appId + ", appName: " + app.name);
+            dumpCongestionQueue(sb, app.getCongestionQueue());
         }
         sb.append("  Server:\n");
         for (Integer appId : mServerMap.getAllAppsIds()) {
-            println(sb, "    app_if: " + appId + ", appName: " + mServerMap.getById(appId).name);
+            ServerMap.App app = mServerMap.getById(appId);
+            println(sb, "    app_if: " + appId + ", appName: " + app.name);
+            dumpCongestionQueue(sb, app.getCongestionQueue());
         }
         sb.append("\n\n");
     }
 
+    private void dumpCongestionQueue(StringBuilder sb, CallbackQueue queue) {
+        if (!queue.hasStats()) {
+            return;
+        }
+        sb.append("      congestion queue: ");
+        queue.dump(sb);
+        sb.append("\n");
+    }
+
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
@@ -16,12 +16,15 @@
 package com.android.bluetooth.gatt;
 
 import android.util.Log;
+import android.util.SparseArray;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 class HandleMap {
@@ -87,6 +90,11 @@ class HandleMap {
     Map<Integer, Integer> mRequestMap = null;
     int mLastCharacteristic = 0;
 
+    // Indexes over mEntries: the first entry added for each handle, and the entries of each
+    // server in insertion order.
+    private final SparseArray<Entry> mEntriesByHandle = new SparseArray<Entry>();
+    private final SparseArray<List<Entry>> mEntriesByServer = new SparseArray<List<Entry>>();
+
     HandleMap() {
         mEntries = new ArrayList<Entry>();
         mRequestMap = new HashMap<Integer, Integer>();
@@ -94,49 +102,75 @@ class HandleMap {
 
     void clear() {
         mEntries.clear();
+        mEntriesByHandle.clear();
+        mEntriesByServer.clear();
         mRequestMap.clear();
     }
 
+    private void add(Entry entry) {
+        mEntries.add(entry);
+        if (mEntriesByHandle.get(entry.handle) == null) {
+            mEntriesByHandle.put(entry.handle, entry);
+        }
+        List<Entry> serverEntries = mEntriesByServer.get(entry.serverIf);
+        if (serverEntries == null) {
+            serverEntries = new ArrayList<Entry>();
+            mEntriesByServer.put(entry.serverIf, serverEntries);
+        }
+        serverEntries.add(entry);
+    }
+
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance,
             boolean advertisePreferred) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
+        add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
+        add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
                 mLastCharacteristic));
     }
 
     void setStarted(int serverIf, int handle, boolean started) {
-        for (Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE || entry.serverIf != serverIf
-                    || entry.handle != handle) {
-                continue;
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null || entry.type != TYPE_SERVICE || entry.serverIf != serverIf) {
+            // The handle may be shared with an older entry, fall back to the server's entries.
+            entry = null;
+            for (Entry serverEntry : getEntriesByServer(serverIf)) {
+                if (serverEntry.type == TYPE_SERVICE && serverEntry.handle == handle) {
+                    entry = serverEntry;
+                    break;
+                }
             }
-
+        }
+        if (entry != null) {
             entry.started = started;
-            return;
         }
     }
 
     Entry getByHandle(int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.handle == handle) {
-                return entry;
-            }
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null) {
+            Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
         }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
-        return null;
+        return entry;
     }
 
     boolean checkServiceExists(UUID uuid, int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE && entry.handle == handle && entry.uuid.equals(uuid)) {
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.type == TYPE_SERVICE && entry.uuid.equals(uuid)) {
+            return true;
+        }
+        // The handle may be shared with an older entry.
+        for (Entry other : mEntries) {
+            if (other.type == TYPE_SERVICE && other.handle == handle && other.uuid.equals(uuid)) {
                 return true;
             }
         }
@@ -144,18 +178,50 @@ class HandleMap {
     }
 
     void deleteService(int serverIf, int serviceHandle) {
-        for (Iterator<Entry> it = mEntries.iterator(); it.hasNext(); ) {
-            Entry entry = it.next();
-            if (entry.serverIf != serverIf) {
-                continue;
+        List<Entry> serverEntries = mEntriesByServer.get(serverIf);
+        if (serverEntries == null) {
+            return;
+        }
+        Set<Entry> removed = new HashSet<Entry>();
+        for (Entry entry : serverEntries) {
+            if (entry.handle == serviceHandle || entry.serviceHandle == serviceHandle) {
+                removed.add(entry);
             }
+        }
+        if (removed.isEmpty()) {
+            return;
+        }
+        serverEntries.removeAll(removed);
+        if (serverEntries.isEmpty()) {
+            mEntriesByServer.remove(serverIf);
+        }
+        mEntries.removeAll(removed);
 
-            if (entry.handle == serviceHandle || entry.serviceHandle == serviceHandle) {
-                it.remove();
+        boolean reindex = false;
+        for (Entry entry : removed) {
+            if (mEntriesByHandle.get(entry.handle) == entry) {
+                mEntriesByHandle.remove(entry.handle);
+                reindex = true;
+            }
+        }
+        if (reindex) {
+            // Another entry may still use a removed handle.
+            for (Entry entry : mEntries) {
+                if (mEntriesByHandle.get(entry.handle) == null) {
+                    mEntriesByHandle.put(entry.handle, entry);
+                }
             }
         }
     }
 
+    /**
+     * Returns the entries of a server in the order they were added.
+     */
+    List<Entry> getEntriesByServer(int serverIf) {
+        List<Entry> serverEntries = mEntriesByServer.get(serverIf);
+        return serverEntries != null ? serverEntries : Collections.<Entry>emptyList();
+    }
+
     List<Entry> getEntries() {
         return mEntries;
     }
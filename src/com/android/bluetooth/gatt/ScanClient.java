@@ -48,6 +48,8 @@ import java.util.Objects;
     public boolean hasScanWithoutLocationPermission;
     public boolean hasDisavowedLocation;
     public List<String> associatedDevices;
+    // Set if the results of this client are coalesced into batches, null otherwise.
+    public ScanResultCoalescer coalescer;
 
     public AppScanStats stats = null;
 
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable index over the software scan filters of a set of scan clients.
+ *
+ * <p>Every filter is stored under its most selective exact-match key: device address,
+ * manufacturer id, service data UUID or unmasked service UUID. Filters without any of these
+ * (masked UUIDs, names, ...) go into a residual list. A {@link #lookup} only visits the
+ * buckets of the keys present in a scan result, so the expensive {@link ScanFilter#matches}
+ * call is limited to the filters that can possibly match.
+ *
+ * <p>The index only narrows the candidates, the final decision is still made by
+ * {@link ScanFilter#matches}. Clients that were not part of the index when it was built report
+ * every filter as a candidate.
+ *
+ * @hide
+ */
+/* package */ class ScanFilterIndex {
+    static final ScanFilterIndex EMPTY = new ScanFilterIndex(new ArrayList<>());
+
+    private static class ClientFilters {
+        final List<ScanFilter> filters;
+        final int base;
+
+        ClientFilters(List<ScanFilter> filters, int base) {
+            this.filters = filters;
+            this.base = base;
+        }
+    }
+
+    private final SparseArray<ClientFilters> mClients = new SparseArray<>();
+    private final Map<String, List<Integer>> mByAddress = new HashMap<>();
+    private final SparseArray<List<Integer>> mByManufacturerId = new SparseArray<>();
+    private final Map<ParcelUuid, List<Integer>> mByServiceDataUuid = new HashMap<>();
+    private final Map<ParcelUuid, List<Integer>> mByServiceUuid = new HashMap<>();
+    private final List<Integer> mResidual = new ArrayList<>();
+    private final int mFilterCount;
+
+    /**
+     * Candidate filters of a single scan result, as returned by {@link #lookup}.
+     *
+     * <p>An instance can be handed back to {@link #lookup} to be reused for the next scan result,
+     * by the thread that owns it. It is then only valid for that last lookup.
+     */
+    static class Candidates {
+        private ScanFilterIndex mIndex;
+        // A filter is a candidate if its mark is the current generation, so that reusing the
+        // marks does not need clearing them.
+        private int[] mMarks = new int[0];
+        private int mGeneration;
+
+        private void reset(ScanFilterIndex index) {
+            mIndex = index;
+            if (mMarks.length < index.mFilterCount) {
+                mMarks = new int[index.mFilterCount];
+                mGeneration = 0;
+            }
+            if (++mGeneration == 0) {
+                Arrays.fill(mMarks, 0);
+                mGeneration = 1;
+            }
+        }
+
+        private void mark(List<Integer> filterIds) {
+            if (filterIds == null) {
+                return;
+            }
+            for (int i = 0; i < filterIds.size(); i++) {
+                mMarks[filterIds.get(i)] = mGeneration;
+            }
+        }
+
+        /**
+         * Returns false only if the filter at {@code position} of {@code client.filters} can
+         * not match the scan result this lookup was made for.
+         */
+        boolean isCandidate(ScanClient client, int position) {
+            ClientFilters clientFilters = mIndex.mClients.get(client.scannerId);
+            if (clientFilters == null || clientFilters.filters != client.filters) {
+                return true;
+            }
+            return mMarks[clientFilters.base + position] == mGeneration;
+        }
+    }
+
+    ScanFilterIndex(Collection<ScanClient> clients) {
+        int filterId = 0;
+        for (ScanClient client : clients) {
+            List<ScanFilter> filters = client.filters;
+            if (filters == null || filters.isEmpty()) {
+                continue;
+            }
+            mClients.put(client.scannerId, new ClientFilters(filters, filterId));
+            for (ScanFilter filter : filters) {
+                add(filter, filterId++);
+            }
+        }
+        mFilterCount = filterId;
+    }
+
+    private void add(ScanFilter filter, int filterId) {
+        if (filter.getDeviceAddress() != null) {
+            // Keyed case insensitively so that original address matches are found as well.
+            addTo(mByAddress, filter.getDeviceAddress().toUpperCase(Locale.US), filterId);
+        } else if (filter.getManufacturerId() >= 0) {
+            List<Integer> bucket = mByManufacturerId.get(filter.getManufacturerId());
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                mByManufacturerId.put(filter.getManufacturerId(), bucket);
+            }
+            bucket.add(filterId);
+        } else if (filter.getServiceDataUuid() != null) {
+            addTo(mByServiceDataUuid, filter.getServiceDataUuid(), filterId);
+        } else if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+            addTo(mByServiceUuid, filter.getServiceUuid(), filterId);
+        } else {
+            mResidual.add(filterId);
+        }
+    }
+
+    private static <K> void addTo(Map<K, List<Integer>> map, K key, int filterId) {
+        List<Integer> bucket = map.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            map.put(key, bucket);
+        }
+        bucket.add(filterId);
+    }
+
+    /**
+     * Returns the filters that may match {@code result}, or whose device address is
+     * {@code originalAddress}.
+     */
+    Candidates lookup(ScanResult result, String originalAddress) {
+        return lookup(result, originalAddress, new Candidates());
+    }
+
+    /**
+     * Same as {@link #lookup(ScanResult, String)}, but fills and returns {@code candidates}
+     * instead of allocating new ones.
+     */
+    Candidates lookup(ScanResult result, String originalAddress, Candidates candidates) {
+        candidates.reset(this);
+        if (mFilterCount == 0) {
+            return candidates;
+        }
+        candidates.mark(mResidual);
+
+        BluetoothDevice device = result.getDevice();
+        if (device != null && !mByAddress.isEmpty()) {
+            candidates.mark(mByAddress.get(device.getAddress()));
+        }
+        if (originalAddress != null && !mByAddress.isEmpty()) {
+            candidates.mark(mByAddress.get(originalAddress.toUpperCase(Locale.US)));
+        }
+
+        ScanRecord record = result.getScanRecord();
+        if (record == null) {
+            return candidates;
+        }
+        SparseArray<byte[]> manufacturerData = record.getManufacturerSpecificData();
+        if (manufacturerData != null && mByManufacturerId.size() > 0) {
+            for (int i = 0; i < manufacturerData.size(); i++) {
+                candidates.mark(mByManufacturerId.get(manufacturerData.keyAt(i)));
+            }
+        }
+        Map<ParcelUuid, byte[]> serviceData = record.getServiceData();
+        if (serviceData != null && !mByServiceDataUuid.isEmpty()) {
+            for (ParcelUuid uuid : serviceData.keySet()) {
+                candidates.mark(mByServiceDataUuid.get(uuid));
+            }
+        }
+        List<ParcelUuid> serviceUuids = record.getServiceUuids();
+        if (serviceUuids != null && !mByServiceUuid.isEmpty()) {
+            for (int i = 0; i < serviceUuids.size(); i++) {
+                candidates.mark(mByServiceUuid.get(serviceUuids.get(i)));
+            }
+        }
+        return candidates;
+    }
+}
@@ -24,6 +24,7 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
@@ -44,8 +45,10 @@ import android.view.Display;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
@@ -79,6 +82,7 @@ public class ScanManager {
     private static final int MSG_SUSPEND_SCANS = 4;
     private static final int MSG_RESUME_SCANS = 5;
     private static final int MSG_IMPORTANCE_CHANGE = 6;
+    private static final int MSG_FLUSH_COALESCED_RESULTS = 7;
     private static final String ACTION_REFRESH_BATCHED_SCAN =
             "com.android.bluetooth.gatt.REFRESH_BATCHED_SCAN";
 
@@ -100,6 +104,8 @@ public class ScanManager {
     private Set<ScanClient> mRegularScanClients;
     private Set<ScanClient> mBatchClients;
     private Set<ScanClient> mSuspendedScanClients;
+    // Rebuilt whenever mRegularScanClients changes, read from the scan result callback.
+    private volatile ScanFilterIndex mRegularScanFilterIndex = ScanFilterIndex.EMPTY;
     private HashMap<Integer, Integer> mPriorityMap = new HashMap<Integer, Integer>();
 
     private CountDownLatch mLatch;
@@ -170,6 +176,7 @@ public class ScanManager {
 
     void cleanup() {
         mRegularScanClients.clear();
+        mRegularScanFilterIndex = ScanFilterIndex.EMPTY;
         mBatchClients.clear();
         mSuspendedScanClients.clear();
         mScanNative.cleanup();
@@ -219,6 +226,44 @@ public class ScanManager {
         return mRegularScanClients;
     }
 
+    /**
+     * Returns the software filter index of the regular scan queue.
+     */
+    ScanFilterIndex getRegularScanFilterIndex() {
+        return mRegularScanFilterIndex;
+    }
+
+    private void updateRegularScanFilterIndex() {
+        mRegularScanFilterIndex = new ScanFilterIndex(mRegularScanClients);
+    }
+
+    /**
+     * Adds a client to the scan queues without starting a scan in the controller, so that
+     * recorded reports can be replayed through the result path.
+     */
+    @VisibleForTesting
+    void addReplayScanClient(ScanClient client) {
+        ScanSettings settings = client.settings;
+        if (settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES
+                && settings.getReportDelayMillis() != 0) {
+            mBatchClients.add(client);
+        } else {
+            mRegularScanClients.add(client);
+            updateRegularScanFilterIndex();
+        }
+    }
+
+    /**
+     * Removes a client added with {@link #addReplayScanClient}.
+     */
+    @VisibleForTesting
+    void removeReplayScanClient(ScanClient client) {
+        mBatchClients.remove(client);
+        if (mRegularScanClients.remove(client)) {
+            updateRegularScanFilterIndex();
+        }
+    }
+
     /**
      * Returns batch scan queue.
      */
@@ -257,11 +302,37 @@ public class ScanManager {
         sendMessage(MSG_FLUSH_BATCH_RESULTS, client);
     }
 
+    /**
+     * Queues a result of a client in coalescing mode. The first result of a window schedules
+     * delivery of the whole window once it ends.
+     *
+     * @return false if the client does not coalesce its results and the caller must deliver
+     *         the result itself
+     */
+    boolean coalesceScanResult(ScanClient client, ScanResult result) {
+        ScanResultCoalescer coalescer = client.coalescer;
+        if (coalescer == null) {
+            return false;
+        }
+        if (coalescer.offer(result)) {
+            final ClientHandler handler = mHandler;
+            if (handler == null) {
+                Log.d(TAG, "coalesceScanResult: mHandler is null.");
+                coalescer.clear();
+                return true;
+            }
+            Message message = handler.obtainMessage(MSG_FLUSH_COALESCED_RESULTS, client);
+            handler.sendMessageDelayed(message, coalescer.getWindowMillis());
+        }
+        return true;
+    }
+
     void callbackDone(int scannerId, int status) {
         if (DBG) {
             Log.d(TAG, "callback done for scannerId - " + scannerId + " status - " + status);
         }
-        if (status == 0) {
+        // No latch is set up for reports that arrive before any command waited on one.
+        if (status == 0 && mLatch != null) {
             mLatch.countDown();
         }
         // TODO: add a callback for scan failure.
@@ -315,6 +386,9 @@ public class ScanManager {
                 case MSG_IMPORTANCE_CHANGE:
                     handleImportanceChange((UidImportance) msg.obj);
                     break;
+                case MSG_FLUSH_COALESCED_RESULTS:
+                    handleFlushCoalescedResults((ScanClient) msg.obj);
+                    break;
                 default:
                     // Shouldn't happen.
                     Log.e(TAG, "received an unkown message : " + msg.what);
@@ -363,6 +437,7 @@ public class ScanManager {
                 mScanNative.startBatchScan(client);
             } else {
                 mRegularScanClients.add(client);
+                updateRegularScanFilterIndex();
                 mScanNative.startRegularScan(client);
                 if (!mScanNative.isOpportunisticScanClient(client)) {
                     mScanNative.configureRegularScanParams();
@@ -397,6 +472,12 @@ public class ScanManager {
                 mSuspendedScanClients.remove(client);
             }
 
+            if (client.coalescer != null) {
+                // Results of a stopped scan are not delivered.
+                removeMessages(MSG_FLUSH_COALESCED_RESULTS, client);
+                client.coalescer.clear();
+            }
+
             if (mRegularScanClients.contains(client)) {
                 mScanNative.stopRegularScan(client);
 
@@ -418,6 +499,17 @@ public class ScanManager {
             }
         }
 
+        void handleFlushCoalescedResults(ScanClient client) {
+            if (!mRegularScanClients.contains(client)) {
+                client.coalescer.clear();
+                return;
+            }
+            ArrayList<ScanResult> results = client.coalescer.drain(client.stats);
+            if (!results.isEmpty()) {
+                mService.onCoalescedScanResults(client, results);
+            }
+        }
+
         void handleFlushBatchResults(ScanClient client) {
             if (!mBatchClients.contains(client)) {
                 return;
@@ -928,6 +1020,7 @@ public class ScanManager {
                 }
             }
             mRegularScanClients.remove(client);
+            updateRegularScanFilterIndex();
             if (numRegularScanClients() == 0) {
                 if (DBG) {
                     Log.d(TAG, "stop scan");
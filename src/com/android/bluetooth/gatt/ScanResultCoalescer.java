@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Collects the scan results of one scan client during a coalescing window.
+ *
+ * <p>A result with the same device address and advertising payload as a result already pending
+ * in the window replaces it, so only the latest rssi and timestamp are kept. All other results
+ * are queued in arrival order and handed out together by {@link #drain}.
+ *
+ * <p>Results are offered from the stack callback thread and drained from the
+ * {@link ScanManager} handler thread.
+ *
+ * @hide
+ */
+/* package */ class ScanResultCoalescer {
+    private final long mWindowMillis;
+    private final ArrayList<ScanResult> mPending = new ArrayList<>();
+    // Address to the index in mPending of the last result from that address.
+    private final HashMap<String, Integer> mPendingIndex = new HashMap<>();
+    private int mOffered;
+
+    ScanResultCoalescer(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    /**
+     * Adds a result to the current window.
+     *
+     * @return true if this is the first result of a new window, in which case the caller must
+     *         schedule a {@link #drain} after {@link #getWindowMillis}
+     */
+    synchronized boolean offer(ScanResult result) {
+        mOffered++;
+        String address = result.getDevice() != null ? result.getDevice().getAddress() : null;
+        if (address != null) {
+            Integer index = mPendingIndex.get(address);
+            if (index != null && samePayload(mPending.get(index), result)) {
+                mPending.set(index, result);
+                return false;
+            }
+            mPendingIndex.put(address, mPending.size());
+        }
+        mPending.add(result);
+        return mPending.size() == 1;
+    }
+
+    /**
+     * Returns the results of the current window and starts a new one. The window is recorded
+     * in {@code stats}, if given.
+     */
+    synchronized ArrayList<ScanResult> drain(AppScanStats stats) {
+        ArrayList<ScanResult> results = new ArrayList<>(mPending);
+        if (stats != null && mOffered > 0) {
+            stats.recordCoalescedResults(mOffered, results.size());
+        }
+        clear();
+        return results;
+    }
+
+    synchronized void clear() {
+        mPending.clear();
+        mPendingIndex.clear();
+        mOffered = 0;
+    }
+
+    private static boolean samePayload(ScanResult a, ScanResult b) {
+        ScanRecord recordA = a.getScanRecord();
+        ScanRecord recordB = b.getScanRecord();
+        if (recordA == recordB) {
+            return true;
+        }
+        if (recordA == null || recordB == null) {
+            return false;
+        }
+        return a.getEventType() == b.getEventType()
+                && Arrays.equals(recordA.getBytes(), recordB.getBytes());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Holds a single advertising report while it is fanned out to every registered scanner.
+ *
+ * <p>The report is parsed at most once per view: the legacy (fixed 62 byte) and the extended
+ * {@link ScanResult} are built lazily on first use and then shared, as are the anonymous
+ * {@link BluetoothDevice} instances. {@link ScanResult} is immutable, so the same instance can be
+ * handed to every client that is allowed to see it.
+ *
+ * <p>Not thread safe; an instance is only used on the thread delivering the report.
+ *
+ * @hide
+ */
+/* package */ class SharedScanResult {
+    // Some apps are used to fixed-size advertise data.
+    static final int LEGACY_ADV_DATA_LENGTH = 62;
+
+    private final int mEventType;
+    private final int mPrimaryPhy;
+    private final int mSecondaryPhy;
+    private final int mAdvertisingSid;
+    private final int mTxPower;
+    private final int mRssi;
+    private final int mPeriodicAdvInt;
+    private final long mTimestampNanos;
+    private final byte[] mAdvData;
+    private final String mAddress;
+    private final String mOriginalAddress;
+    private final Function<String, BluetoothDevice> mDeviceFactory;
+
+    private BluetoothDevice mDevice;
+    private BluetoothDevice mOriginalDevice;
+    private ScanRecord mLegacyRecord;
+    private ScanRecord mExtendedRecord;
+    private ScanResult mLegacyResult;
+    private ScanResult mExtendedResult;
+    private ScanResult mLegacyOriginalResult;
+    private ScanResult mExtendedOriginalResult;
+    private int mParseCount;
+
+    SharedScanResult(int eventType, String address, int primaryPhy, int secondaryPhy,
+            int advertisingSid, int txPower, int rssi, int periodicAdvInt, byte[] advData,
+            String originalAddress, long timestampNanos,
+            Function<String, BluetoothDevice> deviceFactory) {
+        mEventType = eventType;
+        mAddress = address;
+        mPrimaryPhy = primaryPhy;
+        mSecondaryPhy = secondaryPhy;
+        mAdvertisingSid = advertisingSid;
+        mTxPower = txPower;
+        mRssi = rssi;
+        mPeriodicAdvInt = periodicAdvInt;
+        mAdvData = advData;
+        mOriginalAddress = originalAddress;
+        mTimestampNanos = timestampNanos;
+        mDeviceFactory = deviceFactory;
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    String getOriginalAddress() {
+        return mOriginalAddress;
+    }
+
+    /**
+     * Returns the result as seen by a scanner with the given legacy setting, reported against
+     * the (possibly resolvable) address of the advertiser.
+     */
+    ScanResult getResult(boolean legacy) {
+        if (legacy) {
+            if (mLegacyResult == null) {
+                mLegacyResult = buildResult(getDevice(), getRecord(true));
+            }
+            return mLegacyResult;
+        }
+        if (mExtendedResult == null) {
+            mExtendedResult = buildResult(getDevice(), getRecord(false));
+        }
+        return mExtendedResult;
+    }
+
+    /**
+     * Returns the result as seen by a scanner with the given legacy setting, reported against
+     * the original (identity) address of the advertiser.
+     */
+    ScanResult getOriginalAddressResult(boolean legacy) {
+        if (legacy) {
+            if (mLegacyOriginalResult == null) {
+                mLegacyOriginalResult = buildResult(getOriginalDevice(), getRecord(true));
+            }
+            return mLegacyOriginalResult;
+        }
+        if (mExtendedOriginalResult == null) {
+            mExtendedOriginalResult = buildResult(getOriginalDevice(), getRecord(false));
+        }
+        return mExtendedOriginalResult;
+    }
+
+    /** Returns how many times the advertising data was parsed, for tests. */
+    int getParseCount() {
+        return mParseCount;
+    }
+
+    private BluetoothDevice getDevice() {
+        if (mDevice == null) {
+            mDevice = mDeviceFactory.apply(mAddress);
+        }
+        return mDevice;
+    }
+
+    private BluetoothDevice getOriginalDevice() {
+        if (mOriginalDevice == null) {
+            mOriginalDevice = mDeviceFactory.apply(mOriginalAddress);
+        }
+        return mOriginalDevice;
+    }
+
+    private ScanRecord getRecord(boolean legacy) {
+        if (legacy) {
+            if (mLegacyRecord == null) {
+                mParseCount++;
+                mLegacyRecord = ScanRecord.parseFromBytes(
+                        Arrays.copyOfRange(mAdvData, 0, LEGACY_ADV_DATA_LENGTH));
+            }
+            return mLegacyRecord;
+        }
+        if (mExtendedRecord == null) {
+            mParseCount++;
+            mExtendedRecord = ScanRecord.parseFromBytes(mAdvData);
+        }
+        return mExtendedRecord;
+    }
+
+    private ScanResult buildResult(BluetoothDevice device, ScanRecord record) {
+        return new ScanResult(device, mEventType, mPrimaryPhy, mSecondaryPhy, mAdvertisingSid,
+                mTxPower, mRssi, mPeriodicAdvInt, record, mTimestampNanos);
+    }
+}
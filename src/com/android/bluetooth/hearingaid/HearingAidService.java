@@ -99,6 +99,12 @@ public class HearingAidService extends ProfileService {
         }
     }
 
+    @Override
+    protected boolean supportsParallelStart() {
+        // start() only uses its own HandlerThread and the native interface.
+        return true;
+    }
+
     @Override
     protected boolean start() {
         if (DBG) {
@@ -23,10 +23,13 @@ import android.bluetooth.BluetoothDevice;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.provider.CallLog;
 import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
@@ -36,8 +39,12 @@ import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.util.DevicePolicyUtils;
 import com.android.bluetooth.util.GsmAlphabet;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Helper for managing phonebook presentation over AT commands
@@ -70,12 +77,18 @@ public class AtPhonebook {
     private static final String INCOMING_CALL_WHERE = Calls.TYPE + "=" + Calls.INCOMING_TYPE;
     private static final String MISSED_CALL_WHERE = Calls.TYPE + "=" + Calls.MISSED_TYPE;
 
-    private class PhonebookResult {
-        public Cursor cursor; // result set of last query
-        public int numberColumn;
-        public int numberPresentationColumn;
-        public int typeColumn;
-        public int nameColumn;
+    /** A snapshot of a phone book, kept until its content provider reports a change. */
+    private static class PhonebookResult {
+        public final List<PhonebookEntry> entries = new ArrayList<>();
+        // Call log entries have no name or type, the name comes from a caller id lookup.
+        public boolean isCallLog;
+    }
+
+    private static class PhonebookEntry {
+        public String number;
+        public int numberPresentation = Calls.PRESENTATION_ALLOWED;
+        public String name;
+        public int type = -1;
     }
 
     private Context mContext;
@@ -90,8 +103,23 @@ public class AtPhonebook {
     // package and class name to which we send intent to check phone book access permission
     private final String mPairingPackage;
 
+    // Snapshots of the phone books, dropped when their content provider reports a change.
+    @GuardedBy("this")
     private final HashMap<String, PhonebookResult> mPhonebooks =
             new HashMap<String, PhonebookResult>(4);
+    // Caller id names by number, an empty name if the lookup found no contact.
+    @GuardedBy("this")
+    private final HashMap<String, String> mCallerIdNames = new HashMap<>();
+    @GuardedBy("this")
+    private boolean mObservingChanges;
+
+    @VisibleForTesting
+    final ContentObserver mContentObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            onProviderChanged(uri);
+        }
+    };
 
     static final int TYPE_UNKNOWN = -1;
     static final int TYPE_READ = 0;
@@ -103,16 +131,17 @@ public class AtPhonebook {
         mPairingPackage = context.getString(R.string.pairing_ui_package);
         mContentResolver = context.getContentResolver();
         mNativeInterface = nativeInterface;
-        mPhonebooks.put("DC", new PhonebookResult());  // dialled calls
-        mPhonebooks.put("RC", new PhonebookResult());  // received calls
-        mPhonebooks.put("MC", new PhonebookResult());  // missed calls
-        mPhonebooks.put("ME", new PhonebookResult());  // mobile phonebook
         mCurrentPhonebook = "ME";  // default to mobile phonebook
         mCpbrIndex1 = mCpbrIndex2 = -1;
     }
 
-    public void cleanup() {
+    public synchronized void cleanup() {
         mPhonebooks.clear();
+        mCallerIdNames.clear();
+        if (mObservingChanges) {
+            mContentResolver.unregisterContentObserver(mContentObserver);
+            mObservingChanges = false;
+        }
     }
 
     /** Returns the last dialled number, or null if no numbers have been called */
@@ -154,6 +183,12 @@ public class AtPhonebook {
         mCpbrIndex1 = mCpbrIndex2 = cpbrIndex;
     }
 
+    @VisibleForTesting
+    void setCpbrIndex(int cpbrIndex1, int cpbrIndex2) {
+        mCpbrIndex1 = cpbrIndex1;
+        mCpbrIndex2 = cpbrIndex2;
+    }
+
     private byte[] getByteAddress(BluetoothDevice device) {
         return Utils.getBytesFromAddress(device.getAddress());
     }
@@ -218,17 +253,15 @@ public class AtPhonebook {
                     atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                     break;
                 }
-                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true);
+                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook);
                 if (pbr == null) {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_SUPPORTED;
                     break;
                 }
-                int size = pbr.cursor.getCount();
+                int size = pbr.entries.size();
                 atCommandResponse =
                         "+CPBS: \"" + mCurrentPhonebook + "\"," + size + "," + getMaxPhoneBookSize(
                                 size);
-                pbr.cursor.close();
-                pbr.cursor = null;
                 atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                 break;
             case TYPE_TEST: // Test
@@ -251,7 +284,7 @@ public class AtPhonebook {
                 while (pb.startsWith("\"")) {
                     pb = pb.substring(1, pb.length());
                 }
-                if (getPhonebookResult(pb, false) == null && !"SM".equals(pb)) {
+                if (!"SM".equals(pb) && getPhonebookResult(pb) == null) {
                     if (DBG) {
                         log("Dont know phonebook: '" + pb + "'");
                     }
@@ -289,17 +322,15 @@ public class AtPhonebook {
                 if ("SM".equals(mCurrentPhonebook)) {
                     size = 0;
                 } else {
-                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook);
                     if (pbr == null) {
                         atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
                         mNativeInterface.atResponseCode(remoteDevice, atCommandResult,
                                 atCommandErrorCode);
                         break;
                     }
-                    size = pbr.cursor.getCount();
+                    size = pbr.entries.size();
                     log("handleCpbrCommand - size = " + size);
-                    pbr.cursor.close();
-                    pbr.cursor = null;
                 }
                 if (size == 0) {
                     /* Sending "+CPBR: (1-0)" can confused some carkits, send "1-1" * instead */
@@ -382,29 +413,25 @@ public class AtPhonebook {
         }
     }
 
-    /** Get the most recent result for the given phone book,
-     *  with the cursor ready to go.
-     *  If force then re-query that phonebook
-     *  Returns null if the cursor is not ready
+    /** Get the snapshot of the given phone book, querying it if there is none.
+     *  Snapshots are only kept while changes to the providers are observed.
+     *  Returns null if the phone book is unknown or cannot be queried
      */
-    private synchronized PhonebookResult getPhonebookResult(String pb, boolean force) {
+    private synchronized PhonebookResult getPhonebookResult(String pb) {
         if (pb == null) {
             return null;
         }
         PhonebookResult pbr = mPhonebooks.get(pb);
         if (pbr == null) {
-            pbr = new PhonebookResult();
-        }
-        if (force || pbr.cursor == null) {
-            if (!queryPhonebook(pb, pbr)) {
-                return null;
+            pbr = queryPhonebook(pb);
+            if (pbr != null && observeChanges()) {
+                mPhonebooks.put(pb, pbr);
             }
         }
-
         return pbr;
     }
 
-    private synchronized boolean queryPhonebook(String pb, PhonebookResult pbr) {
+    private synchronized PhonebookResult queryPhonebook(String pb) {
         String where;
         boolean ancillaryPhonebook = true;
 
@@ -418,49 +445,122 @@ public class AtPhonebook {
         } else if (pb.equals("MC")) {
             where = MISSED_CALL_WHERE;
         } else {
-            return false;
-        }
-
-        if (pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
+            return null;
         }
 
+        PhonebookResult pbr = new PhonebookResult();
+        Cursor cursor;
         if (ancillaryPhonebook) {
             Bundle queryArgs = new Bundle();
             queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, where);
             queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, Calls.DEFAULT_SORT_ORDER);
             queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, MAX_PHONEBOOK_SIZE);
-            pbr.cursor = mContentResolver.query(Calls.CONTENT_URI, CALLS_PROJECTION,
-                    queryArgs, null);
+            cursor = mContentResolver.query(Calls.CONTENT_URI, CALLS_PROJECTION, queryArgs, null);
 
-            if (pbr.cursor == null) {
-                return false;
+            if (cursor == null) {
+                return null;
+            }
+            pbr.isCallLog = true;
+            int numberColumn = cursor.getColumnIndexOrThrow(Calls.NUMBER);
+            int numberPresentationColumn =
+                    cursor.getColumnIndexOrThrow(Calls.NUMBER_PRESENTATION);
+            while (cursor.moveToNext()) {
+                PhonebookEntry entry = new PhonebookEntry();
+                entry.number = cursor.getString(numberColumn);
+                entry.numberPresentation = cursor.getInt(numberPresentationColumn);
+                pbr.entries.add(entry);
             }
-            pbr.numberColumn = pbr.cursor.getColumnIndexOrThrow(Calls.NUMBER);
-            pbr.numberPresentationColumn =
-                    pbr.cursor.getColumnIndexOrThrow(Calls.NUMBER_PRESENTATION);
-            pbr.typeColumn = -1;
-            pbr.nameColumn = -1;
         } else {
             Bundle queryArgs = new Bundle();
             queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, where);
             queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, MAX_PHONEBOOK_SIZE);
             final Uri phoneContentUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
-            pbr.cursor = mContentResolver.query(phoneContentUri, PHONES_PROJECTION,
-                    queryArgs, null);
+            cursor = mContentResolver.query(phoneContentUri, PHONES_PROJECTION, queryArgs, null);
+
+            if (cursor == null) {
+                return null;
+            }
+
+            int numberColumn = cursor.getColumnIndex(Phone.NUMBER);
+            int typeColumn = cursor.getColumnIndex(Phone.TYPE);
+            int nameColumn = cursor.getColumnIndex(Phone.DISPLAY_NAME);
+            while (cursor.moveToNext()) {
+                PhonebookEntry entry = new PhonebookEntry();
+                entry.number = numberColumn != -1 ? cursor.getString(numberColumn) : null;
+                entry.type = typeColumn != -1 ? cursor.getInt(typeColumn) : -1;
+                entry.name = nameColumn != -1 ? cursor.getString(nameColumn) : null;
+                pbr.entries.add(entry);
+            }
+        }
+        cursor.close();
+        Log.i(TAG, "Refreshed phonebook " + pb + " with " + pbr.entries.size() + " results");
+        return pbr;
+    }
 
-            if (pbr.cursor == null) {
-                return false;
+    /**
+     * Starts observing the call log and contacts providers, returning false if this is not
+     * possible.
+     */
+    private synchronized boolean observeChanges() {
+        if (!mObservingChanges) {
+            try {
+                mContentResolver.registerContentObserver(CallLog.CONTENT_URI, true,
+                        mContentObserver);
+                mContentResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                        mContentObserver);
+                mObservingChanges = true;
+            } catch (SecurityException e) {
+                Log.w(TAG, "Cannot observe phonebook changes, phonebooks will not be cached", e);
+                mContentResolver.unregisterContentObserver(mContentObserver);
             }
+        }
+        return mObservingChanges;
+    }
 
-            pbr.numberColumn = pbr.cursor.getColumnIndex(Phone.NUMBER);
-            pbr.numberPresentationColumn = -1;
-            pbr.typeColumn = pbr.cursor.getColumnIndex(Phone.TYPE);
-            pbr.nameColumn = pbr.cursor.getColumnIndex(Phone.DISPLAY_NAME);
+    private synchronized void onProviderChanged(Uri uri) {
+        if (DBG) {
+            log("onProviderChanged: " + uri);
+        }
+        if (uri == null || !CallLog.AUTHORITY.equals(uri.getAuthority())) {
+            // Contacts changed, which also changes the caller id names of the call logs.
+            mPhonebooks.remove("ME");
+            mCallerIdNames.clear();
+        }
+        if (uri == null || !ContactsContract.AUTHORITY.equals(uri.getAuthority())) {
+            mPhonebooks.remove("DC");
+            mPhonebooks.remove("RC");
+            mPhonebooks.remove("MC");
         }
-        Log.i(TAG, "Refreshed phonebook " + pb + " with " + pbr.cursor.getCount() + " results");
-        return true;
+    }
+
+    /**
+     * Returns the caller id name of |number|, or an empty name if there is no such contact.
+     * Names are kept until the contacts change, so each number is only looked up once.
+     */
+    private synchronized String getCallerIdName(String number) {
+        String name = mCallerIdNames.get(number);
+        if (name != null) {
+            return name;
+        }
+        Cursor c = mContentResolver.query(
+                Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
+                new String[]{
+                        PhoneLookup.DISPLAY_NAME
+                }, null, null, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                name = c.getString(0);
+            }
+            c.close();
+        }
+        if (name == null) {
+            if (DBG) {
+                log("Caller ID lookup failed for " + number);
+            }
+            name = "";
+        }
+        mCallerIdNames.put(number, name);
+        return name;
     }
 
     synchronized void resetAtState() {
@@ -496,9 +596,6 @@ public class AtPhonebook {
         log("processCpbrCommand");
         int atCommandResult = HeadsetHalConstants.AT_RESPONSE_ERROR;
         int atCommandErrorCode = -1;
-        String atCommandResponse = null;
-        StringBuilder response = new StringBuilder();
-        String record;
 
         // Shortcut SM phonebook
         if ("SM".equals(mCurrentPhonebook)) {
@@ -507,7 +604,7 @@ public class AtPhonebook {
         }
 
         // Check phonebook
-        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook);
         if (pbr == null) {
             Log.e(TAG, "pbr is null");
             atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
@@ -518,110 +615,92 @@ public class AtPhonebook {
         // Send OK instead of ERROR if these checks fail.
         // When we send error, certain kits like BMW disconnect the
         // Handsfree connection.
-        if (pbr.cursor.getCount() == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1
-                || mCpbrIndex1 > pbr.cursor.getCount()) {
+        int count = pbr.entries.size();
+        if (count == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1 || mCpbrIndex1 > count) {
             atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
             Log.e(TAG, "Invalid request or no results, returning");
             return atCommandResult;
         }
 
-        if (mCpbrIndex2 > pbr.cursor.getCount()) {
+        if (mCpbrIndex2 > count) {
             Log.w(TAG, "max index requested is greater than number of records"
                     + " available, resetting it");
-            mCpbrIndex2 = pbr.cursor.getCount();
+            mCpbrIndex2 = count;
         }
         // Process
         atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
-        int errorDetected = -1; // no error
-        pbr.cursor.moveToPosition(mCpbrIndex1 - 1);
         log("mCpbrIndex1 = " + mCpbrIndex1 + " and mCpbrIndex2 = " + mCpbrIndex2);
         for (int index = mCpbrIndex1; index <= mCpbrIndex2; index++) {
-            String number = pbr.cursor.getString(pbr.numberColumn);
-            String name = null;
-            int type = -1;
-            if (pbr.nameColumn == -1 && number != null && number.length() > 0) {
-                // try caller id lookup
-                // TODO: This code is horribly inefficient. I saw it
-                // take 7 seconds to process 100 missed calls.
-                Cursor c = mContentResolver.query(
-                        Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
-                        new String[]{
-                                PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE
-                        }, null, null, null);
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        name = c.getString(0);
-                        type = c.getInt(1);
-                    }
-                    c.close();
-                }
-                if (DBG && name == null) {
-                    log("Caller ID lookup failed for " + number);
-                }
-
-            } else if (pbr.nameColumn != -1) {
-                name = pbr.cursor.getString(pbr.nameColumn);
-            } else {
-                log("processCpbrCommand: empty name and number");
-            }
-            if (name == null) {
-                name = "";
-            }
-            name = name.trim();
-            if (name.length() > 28) {
-                name = name.substring(0, 28);
+            mNativeInterface.atResponseString(device,
+                    getCpbrRecord(index, pbr.entries.get(index - 1), pbr.isCallLog));
+        }
+        synchronized (this) {
+            if (!mObservingChanges) {
+                // Names cannot be invalidated without observing the contacts.
+                mCallerIdNames.clear();
             }
+        }
+        return atCommandResult;
+    }
 
-            if (pbr.typeColumn != -1) {
-                type = pbr.cursor.getInt(pbr.typeColumn);
-                name = name + "/" + getPhoneType(type);
-            }
+    private String getCpbrRecord(int index, PhonebookEntry entry, boolean isCallLog) {
+        String number = entry.number;
+        String name = null;
+        int numberPresentation = entry.numberPresentation;
+        if (numberPresentation != Calls.PRESENTATION_ALLOWED) {
+            // The name is replaced below, no need to look it up.
+            name = "";
+        } else if (isCallLog && number != null && number.length() > 0) {
+            // try caller id lookup
+            name = getCallerIdName(number);
+        } else if (!isCallLog) {
+            name = entry.name;
+        } else {
+            log("processCpbrCommand: empty name and number");
+        }
+        if (name == null) {
+            name = "";
+        }
+        name = name.trim();
+        if (name.length() > 28) {
+            name = name.substring(0, 28);
+        }
 
-            if (number == null) {
-                number = "";
-            }
-            int regionType = PhoneNumberUtils.toaFromString(number);
+        if (!isCallLog && entry.type != -1) {
+            name = name + "/" + getPhoneType(entry.type);
+        }
 
-            number = number.trim();
-            number = PhoneNumberUtils.stripSeparators(number);
-            if (number.length() > 30) {
-                number = number.substring(0, 30);
-            }
-            int numberPresentation = Calls.PRESENTATION_ALLOWED;
-            if (pbr.numberPresentationColumn != -1) {
-                numberPresentation = pbr.cursor.getInt(pbr.numberPresentationColumn);
-            }
-            if (numberPresentation != Calls.PRESENTATION_ALLOWED) {
-                number = "";
-                // TODO: there are 3 types of numbers should have resource
-                // strings for: unknown, private, and payphone
-                name = mContext.getString(R.string.unknownNumber);
-            }
+        if (number == null) {
+            number = "";
+        }
+        int regionType = PhoneNumberUtils.toaFromString(number);
 
-            // TODO(): Handle IRA commands. It's basically
-            // a 7 bit ASCII character set.
-            if (!name.isEmpty() && mCharacterSet.equals("GSM")) {
-                byte[] nameByte = GsmAlphabet.stringToGsm8BitPacked(name);
-                if (nameByte == null) {
-                    name = mContext.getString(R.string.unknownNumber);
-                } else {
-                    name = new String(nameByte);
-                }
-            }
+        number = number.trim();
+        number = PhoneNumberUtils.stripSeparators(number);
+        if (number.length() > 30) {
+            number = number.substring(0, 30);
+        }
+        if (numberPresentation != Calls.PRESENTATION_ALLOWED) {
+            number = "";
+            // TODO: there are 3 types of numbers should have resource
+            // strings for: unknown, private, and payphone
+            name = mContext.getString(R.string.unknownNumber);
+        }
 
-            record = "+CPBR: " + index + ",\"" + number + "\"," + regionType + ",\"" + name + "\"";
-            record = record + "\r\n\r\n";
-            atCommandResponse = record;
-            mNativeInterface.atResponseString(device, atCommandResponse);
-            if (!pbr.cursor.moveToNext()) {
-                break;
+        // TODO(): Handle IRA commands. It's basically
+        // a 7 bit ASCII character set.
+        if (!name.isEmpty() && mCharacterSet.equals("GSM")) {
+            byte[] nameByte = GsmAlphabet.stringToGsm8BitPacked(name);
+            if (nameByte == null) {
+                name = mContext.getString(R.string.unknownNumber);
+            } else {
+                name = new String(nameByte);
             }
         }
-        if (pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
-        }
-        return atCommandResult;
+
+        String record =
+                "+CPBR: " + index + ",\"" + number + "\"," + regionType + ",\"" + name + "\"";
+        return record + "\r\n\r\n";
     }
 
     /**
@@ -35,6 +35,7 @@ import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
@@ -88,6 +89,10 @@ public class HidDeviceService extends ProfileService {
     private HidDeviceServiceHandler mHandler;
 
     private class HidDeviceServiceHandler extends Handler {
+        HidDeviceServiceHandler(Looper looper) {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             if (DBG) {
@@ -519,6 +524,16 @@ public class HidDeviceService extends ProfileService {
         return true;
     }
 
+    // With lazy activation, the native interface is only initialized by registerApp(). The
+    // other entry points need a registered app, so they never activate the service themselves.
+    private boolean checkActivated() {
+        if (!isActivated()) {
+            Log.w(TAG, "checkActivated(): no app registered since the service started");
+            return false;
+        }
+        return true;
+    }
+
     private boolean checkCallingUid() {
         int callingUid = Binder.getCallingUid();
         if (callingUid != mUserUid) {
@@ -531,6 +546,10 @@ public class HidDeviceService extends ProfileService {
     synchronized boolean registerApp(BluetoothHidDeviceAppSdpSettings sdp,
             BluetoothHidDeviceAppQosSettings inQos, BluetoothHidDeviceAppQosSettings outQos,
             IBluetoothHidDeviceCallback callback) {
+        if (!ensureActivated()) {
+            Log.w(TAG, "registerApp(): failed because the service could not be activated");
+            return false;
+        }
         if (mUserUid != 0) {
             Log.w(TAG, "registerApp(): failed because another app is registered");
             return false;
@@ -590,6 +609,9 @@ public class HidDeviceService extends ProfileService {
             Log.d(TAG, "unregisterAppUid(): uid=" + uid);
         }
 
+        if (!checkActivated()) {
+            return false;
+        }
         if (mUserUid != 0 && (uid == mUserUid || uid < Process.FIRST_APPLICATION_UID)) {
             mUserUid = 0;
             return mHidDeviceNativeInterface.unregisterApp();
@@ -605,7 +627,7 @@ public class HidDeviceService extends ProfileService {
             Log.d(TAG, "sendReport(): device=" + device + " id=" + id);
         }
 
-        return checkDevice(device) && checkCallingUid()
+        return checkActivated() && checkDevice(device) && checkCallingUid()
                 && mHidDeviceNativeInterface.sendReport(id, data);
     }
 
@@ -614,7 +636,7 @@ public class HidDeviceService extends ProfileService {
             Log.d(TAG, "replyReport(): device=" + device + " type=" + type + " id=" + id);
         }
 
-        return checkDevice(device) && checkCallingUid()
+        return checkActivated() && checkDevice(device) && checkCallingUid()
                 && mHidDeviceNativeInterface.replyReport(type, id, data);
     }
 
@@ -623,7 +645,7 @@ public class HidDeviceService extends ProfileService {
             Log.d(TAG, "unplug(): device=" + device);
         }
 
-        return checkDevice(device) && checkCallingUid()
+        return checkActivated() && checkDevice(device) && checkCallingUid()
                 && mHidDeviceNativeInterface.unplug();
     }
 
@@ -638,7 +660,8 @@ public class HidDeviceService extends ProfileService {
             Log.d(TAG, "connect(): device=" + device);
         }
 
-        return checkCallingUid() && mHidDeviceNativeInterface.connect(device);
+        return checkActivated() && checkCallingUid()
+                && mHidDeviceNativeInterface.connect(device);
     }
 
     /**
@@ -652,6 +675,9 @@ public class HidDeviceService extends ProfileService {
             Log.d(TAG, "disconnect(): device=" + device);
         }
 
+        if (!checkActivated()) {
+            return false;
+        }
         int callingUid = Binder.getCallingUid();
         if (callingUid != mUserUid && callingUid >= Process.FIRST_APPLICATION_UID) {
             Log.w(TAG, "disconnect(): caller UID doesn't match user UID");
@@ -721,7 +747,7 @@ public class HidDeviceService extends ProfileService {
             Log.d(TAG, "reportError(): device=" + device + " error=" + error);
         }
 
-        return checkDevice(device) && checkCallingUid()
+        return checkActivated() && checkDevice(device) && checkCallingUid()
                 && mHidDeviceNativeInterface.reportError(error);
     }
 
@@ -742,14 +768,31 @@ public class HidDeviceService extends ProfileService {
         mDatabaseManager = Objects.requireNonNull(AdapterService.getAdapterService().getDatabase(),
                 "DatabaseManager cannot be null when HidDeviceService starts");
 
-        mHandler = new HidDeviceServiceHandler();
         mHidDeviceNativeInterface = HidDeviceNativeInterface.getInstance();
+        setHidDeviceService(this);
+        return true;
+    }
+
+    @Override
+    protected boolean supportsLazyActivation() {
+        // Nothing can connect before an app registers and adds its SDP record.
+        return true;
+    }
+
+    @Override
+    protected boolean activate() {
+        if (DBG) {
+            Log.d(TAG, "activate()");
+        }
+
+        // May be called from a binder thread, so run the handler on the main thread like the
+        // rest of the profile.
+        mHandler = new HidDeviceServiceHandler(Looper.getMainLooper());
         mHidDeviceNativeInterface.init();
         mNativeAvailable = true;
         mActivityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
         mActivityManager.addOnUidImportanceListener(mUidImportanceListener,
                 FOREGROUND_IMPORTANCE_CUTOFF);
-        setHidDeviceService(this);
         return true;
     }
 
@@ -769,7 +812,10 @@ public class HidDeviceService extends ProfileService {
             mHidDeviceNativeInterface.cleanup();
             mNativeAvailable = false;
         }
-        mActivityManager.removeOnUidImportanceListener(mUidImportanceListener);
+        if (mActivityManager != null) {
+            mActivityManager.removeOnUidImportanceListener(mUidImportanceListener);
+            mActivityManager = null;
+        }
         return true;
     }
 
@@ -90,6 +90,12 @@ public class LeAudioService extends ProfileService {
         Log.i(TAG, "create()");
     }
 
+    @Override
+    protected boolean supportsParallelStart() {
+        // start() only uses its own HandlerThread and the native interface.
+        return true;
+    }
+
     @Override
     protected boolean start() {
         Log.i(TAG, "start()");
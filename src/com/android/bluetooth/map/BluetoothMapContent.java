@@ -21,6 +21,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
@@ -57,7 +58,9 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @TargetApi(19)
 public class BluetoothMapContent {
@@ -153,6 +156,17 @@ public class BluetoothMapContent {
     private int mRemoteFeatureMask = BluetoothMapUtils.MAP_FEATURE_DEFAULT_BITMASK;
     private int mMsgListingVersion = BluetoothMapUtils.MAP_MESSAGE_LISTING_FORMAT_V10;
 
+    // Message listing sizes of this session, as car kits poll the same folder repeatedly.
+    private static final int MSG_LISTING_COUNT_CACHE_SIZE = 8;
+    private static final long MSG_LISTING_COUNT_CACHE_MS = 2000;
+    private final Map<String, MsgListingCount> mMsgListingCounts =
+            new LinkedHashMap<String, MsgListingCount>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MsgListingCount> eldest) {
+                    return size() > MSG_LISTING_COUNT_CACHE_SIZE;
+                }
+            };
+
     static final String[] SMS_PROJECTION = new String[]{
             BaseColumns._ID,
             Sms.THREAD_ID,
@@ -1388,37 +1402,13 @@ public class BluetoothMapContent {
         return e;
     }
 
-    /* TODO: Change to use SmsMmsContacts.getContactNameFromPhone() with proper use of
-     *       caching. */
+    /**
+     * Lookup a contact name in the Android Contacts database, through the shared
+     * {@link MapContactNameCache}.
+     * @return the name of the contact or null, if no contact was found.
+     */
     public static String getContactNameFromPhone(String phone, ContentResolver resolver) {
-        String name = null;
-        //Handle possible exception for empty phone address
-        if (TextUtils.isEmpty(phone)) {
-            return name;
-        }
-
-        Uri uri =
-                Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, Uri.encode(phone));
-
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
-        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
-        String orderBy = Contacts.DISPLAY_NAME + " ASC";
-        Cursor c = null;
-        try {
-            c = resolver.query(uri, projection, selection, null, orderBy);
-            if (c != null) {
-                int colIndex = c.getColumnIndex(Contacts.DISPLAY_NAME);
-                if (c.getCount() >= 1) {
-                    c.moveToFirst();
-                    name = c.getString(colIndex);
-                }
-            }
-        } finally {
-            if (c != null) {
-                c.close();
-            }
-        }
-        return name;
+        return MapContactNameCache.getInstance().getName(phone, resolver);
     }
 
     private static final String[] RECIPIENT_ID_PROJECTION = {Threads.RECIPIENT_IDS};
@@ -2193,6 +2183,87 @@ public class BluetoothMapContent {
         }
     }
 
+    /**
+     * Merges the date ordered cursors of a message listing, one element at a time, in the order
+     * {@link BluetoothMapMessageListing#sort()} would give. Only the current row of each cursor
+     * is turned into an element, hence the rows before the requested segment are never kept.
+     */
+    private class MessageListingMerge {
+        private final FilterInfo mFi;
+        private final BluetoothMapAppParams mAp;
+        // Indexed by FilterInfo.TYPE_*, the order in which equal dates are listed.
+        private final Cursor[] mCursors = new Cursor[FilterInfo.TYPE_IM + 1];
+        private final BluetoothMapMessageListingElement[] mHeads =
+                new BluetoothMapMessageListingElement[FilterInfo.TYPE_IM + 1];
+        // Email and IM share the message columns of FilterInfo.
+        private int mMessageColumnsType = -1;
+
+        MessageListingMerge(FilterInfo fi, BluetoothMapAppParams ap) {
+            mFi = fi;
+            mAp = ap;
+        }
+
+        void add(int msgType, Cursor c) {
+            mCursors[msgType] = c;
+            advance(msgType);
+        }
+
+        /**
+         * Points |fi| to the columns of the |msgType| cursor.
+         */
+        void useColumns(int msgType) {
+            mFi.mMsgType = msgType;
+            if (mMessageColumnsType != msgType) {
+                if (msgType == FilterInfo.TYPE_EMAIL) {
+                    mFi.setEmailMessageColumns(mCursors[msgType]);
+                    mMessageColumnsType = msgType;
+                } else if (msgType == FilterInfo.TYPE_IM) {
+                    mFi.setImMessageColumns(mCursors[msgType]);
+                    mMessageColumnsType = msgType;
+                }
+            }
+        }
+
+        /**
+         * Moves the cursor of |msgType| to its next listed row and creates its element.
+         */
+        private void advance(int msgType) {
+            Cursor c = mCursors[msgType];
+            useColumns(msgType);
+            mHeads[msgType] = null;
+            while (c.moveToNext()) {
+                if (msgType == FilterInfo.TYPE_EMAIL || msgType == FilterInfo.TYPE_IM
+                        || matchAddresses(c, mFi, mAp)) {
+                    if (V) {
+                        BluetoothMapUtils.printCursor(c);
+                    }
+                    mHeads[msgType] = element(c, mFi, mAp);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Returns the next element of the listing, or null once all cursors are exhausted. The
+         * sender, recipient and other details are not set.
+         */
+        BluetoothMapMessageListingElement next() {
+            int next = -1;
+            for (int msgType = 0; msgType < mHeads.length; msgType++) {
+                if (mHeads[msgType] != null
+                        && (next < 0 || mHeads[msgType].compareTo(mHeads[next]) < 0)) {
+                    next = msgType;
+                }
+            }
+            if (next < 0) {
+                return null;
+            }
+            BluetoothMapMessageListingElement e = mHeads[next];
+            advance(next);
+            return e;
+        }
+    }
+
     /**
      * Get a listing of message in folder after applying filter.
      * @param folderElement Must contain a valid folder string != null
@@ -2226,6 +2297,7 @@ public class BluetoothMapContent {
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
+        MessageListingMerge merge = new MessageListingMerge(fi, ap);
         Cursor smsCursor = null;
         Cursor mmsCursor = null;
         Cursor emailCursor = null;
@@ -2262,21 +2334,12 @@ public class BluetoothMapContent {
                     smsCursor = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION, where, null,
                             Sms.DATE + " DESC" + limit);
                     if (smsCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         if (D) {
                             Log.d(TAG, "Found " + smsCursor.getCount() + " sms messages.");
                         }
                         fi.setSmsColumns(smsCursor);
-                        while (smsCursor.moveToNext()) {
-                            if (matchAddresses(smsCursor, fi, ap)) {
-                                if (V) {
-                                    BluetoothMapUtils.printCursor(smsCursor);
-                                }
-                                e = element(smsCursor, fi, ap);
-                                bmList.add(e);
-                            }
-                        }
+                        merge.add(FilterInfo.TYPE_SMS, smsCursor);
                     }
                 }
             }
@@ -2304,21 +2367,12 @@ public class BluetoothMapContent {
                     mmsCursor = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION, where, null,
                             Mms.DATE + " DESC" + limit);
                     if (mmsCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         fi.setMmsColumns(mmsCursor);
                         if (D) {
                             Log.d(TAG, "Found " + mmsCursor.getCount() + " mms messages.");
                         }
-                        while (mmsCursor.moveToNext()) {
-                            if (matchAddresses(mmsCursor, fi, ap)) {
-                                if (V) {
-                                    BluetoothMapUtils.printCursor(mmsCursor);
-                                }
-                                e = element(mmsCursor, fi, ap);
-                                bmList.add(e);
-                            }
-                        }
+                        merge.add(FilterInfo.TYPE_MMS, mmsCursor);
                     }
                 }
             }
@@ -2349,21 +2403,10 @@ public class BluetoothMapContent {
                                     where, null,
                                     BluetoothMapContract.MessageColumns.DATE + " DESC" + limit);
                     if (emailCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
-                        // store column index so we dont have to look them up anymore (optimization)
-                        fi.setEmailMessageColumns(emailCursor);
-                        int cnt = 0;
                         if (D) {
                             Log.d(TAG, "Found " + emailCursor.getCount() + " email messages.");
                         }
-                        while (emailCursor.moveToNext()) {
-                            if (V) {
-                                BluetoothMapUtils.printCursor(emailCursor);
-                            }
-                            e = element(emailCursor, fi, ap);
-                            bmList.add(e);
-                        }
-                        //   emailCursor.close();
+                        merge.add(FilterInfo.TYPE_EMAIL, emailCursor);
                     }
                 }
             }
@@ -2392,25 +2435,30 @@ public class BluetoothMapContent {
                         BluetoothMapContract.BT_INSTANT_MESSAGE_PROJECTION, where, null,
                         BluetoothMapContract.MessageColumns.DATE + " DESC" + limit);
                 if (imCursor != null) {
-                    BluetoothMapMessageListingElement e = null;
-                    // store column index so we dont have to look them up anymore (optimization)
-                    fi.setImMessageColumns(imCursor);
                     if (D) {
                         Log.d(TAG, "Found " + imCursor.getCount() + " im messages.");
                     }
-                    while (imCursor.moveToNext()) {
-                        if (V) {
-                            BluetoothMapUtils.printCursor(imCursor);
-                        }
-                        e = element(imCursor, fi, ap);
-                        bmList.add(e);
-                    }
+                    merge.add(FilterInfo.TYPE_IM, imCursor);
                 }
             }
 
-            /* Enable this if post sorting and segmenting needed */
-            bmList.sort();
-            bmList.segment(ap.getMaxListCount(), offsetNum);
+            /* Only the requested segment of the merged cursors is turned into the listing */
+            int maxListCount = ap.getMaxListCount() > 0 ? ap.getMaxListCount() : Integer.MAX_VALUE;
+            boolean hasUnread = false;
+            BluetoothMapMessageListingElement e;
+            for (int skipped = 0; skipped < offsetNum && (e = merge.next()) != null; skipped++) {
+                hasUnread |= !e.getReadBool();
+            }
+            while (bmList.getCount() < maxListCount && (e = merge.next()) != null) {
+                bmList.add(e);
+            }
+            // The new message flag covers the whole listing, not only the segment
+            while (!hasUnread && (e = merge.next()) != null) {
+                hasUnread = !e.getReadBool();
+            }
+            if (hasUnread) {
+                bmList.setHasUnread();
+            }
             List<BluetoothMapMessageListingElement> list = bmList.getList();
             int listSize = list.size();
             Cursor tmpCursor = null;
@@ -2435,6 +2483,7 @@ public class BluetoothMapContent {
                     fi.mMsgType = FilterInfo.TYPE_IM;
                 }
                 if (tmpCursor != null) {
+                    merge.useColumns(fi.mMsgType);
                     tmpCursor.moveToPosition(ele.getCursorIndex());
                     setSenderAddressing(ele, tmpCursor, fi, ap);
                     setSenderName(ele, tmpCursor, fi, ap);
@@ -2478,6 +2527,53 @@ public class BluetoothMapContent {
         return bmList;
     }
 
+    /**
+     * Size of a message listing and presence of unread messages in it.
+     */
+    public static class MsgListingCount {
+        private int mSize;
+        private boolean mHasUnread;
+        // Validity of the cached counts.
+        private long mVersion;
+        private long mTimestamp;
+
+        public int getSize() {
+            return mSize;
+        }
+
+        public boolean hasUnread() {
+            return mHasUnread;
+        }
+    }
+
+    /* The queries of a single provider needed by msgListingCount() */
+    private static class MsgCountQuery {
+        final Uri mUri;
+        final String mReadColumn;
+        final String mDateColumn;
+        // Null if the size, or the unread messages, are not counted in this provider.
+        final String mWhere;
+        final String mUnreadWhere;
+        // Non null if both are counted in one pass over the rows matching this clause.
+        String mPassWhere;
+        // True if the rows of the pass must be filtered by read status to count the size.
+        boolean mPassFilterReadStatus;
+
+        MsgCountQuery(Uri uri, String readColumn, String dateColumn, String where,
+                String unreadWhere) {
+            mUri = uri;
+            mReadColumn = readColumn;
+            mDateColumn = dateColumn;
+            mWhere = where;
+            mUnreadWhere = unreadWhere;
+        }
+
+        @Override
+        public String toString() {
+            return mUri + " [" + mWhere + "] [" + mUnreadWhere + "]";
+        }
+    }
+
     /**
      * Get the size of the message listing
      * @param folderElement Must contain a valid folder string != null
@@ -2485,11 +2581,64 @@ public class BluetoothMapContent {
      * @return Integer equal to message listing size
      */
     public int msgListingSize(BluetoothMapFolderElement folderElement, BluetoothMapAppParams ap) {
+        return msgListingCount(folderElement, ap).getSize();
+    }
+
+    /**
+     * Return true if there are unread messages in the requested list of messages
+     * @param folderElement folder where the message listing should come from
+     * @param ap application parameter object
+     * @return true if unread messages are in the list, else false
+     */
+    public boolean msgListingHasUnread(BluetoothMapFolderElement folderElement,
+            BluetoothMapAppParams ap) {
+        return msgListingCount(folderElement, ap).hasUnread();
+    }
+
+    /**
+     * Get the size of the message listing and whether it has unread messages, with one pass per
+     * provider when the filters allow it. The result is cached for this session until the messages
+     * change, see {@link BluetoothMapMasInstance#invalidateMsgListingCounts}, for at most
+     * {@link #MSG_LISTING_COUNT_CACHE_MS}.
+     * @param folderElement Must contain a valid folder string != null
+     * @param ap Parameters specifying message content and filters
+     * @return the message listing size and unread flag
+     */
+    public MsgListingCount msgListingCount(BluetoothMapFolderElement folderElement,
+            BluetoothMapAppParams ap) {
         if (D) {
-            Log.d(TAG, "msgListingSize: folder = " + folderElement.getName());
+            Log.d(TAG, "msgListingCount: folder = " + folderElement.getName());
+        }
+        List<MsgCountQuery> queries = getMsgCountQueries(folderElement, ap);
+        // The where clauses hold the folder and every filter used.
+        String key = queries.toString();
+        long version = mMasInstance != null ? mMasInstance.getMsgListingCountVersion() : 0;
+        MsgListingCount count = mMsgListingCounts.get(key);
+        if (count != null && count.mVersion == version
+                && SystemClock.elapsedRealtime() - count.mTimestamp < MSG_LISTING_COUNT_CACHE_MS) {
+            if (D) {
+                Log.d(TAG, "msgListingCount: cached size = " + count.mSize);
+            }
+            return count;
+        }
+
+        count = new MsgListingCount();
+        count.mVersion = version;
+        count.mTimestamp = SystemClock.elapsedRealtime();
+        for (MsgCountQuery query : queries) {
+            countMessages(query, ap, count);
         }
-        int cnt = 0;
+        mMsgListingCounts.put(key, count);
+        if (D) {
+            Log.d(TAG, "msgListingCount: size = " + count.mSize + " hasUnread = "
+                    + count.mHasUnread);
+        }
+        return count;
+    }
 
+    private List<MsgCountQuery> getMsgCountQueries(BluetoothMapFolderElement folderElement,
+            BluetoothMapAppParams ap) {
+        List<MsgCountQuery> queries = new ArrayList<>();
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
@@ -2497,125 +2646,121 @@ public class BluetoothMapContent {
         if (smsSelected(fi, ap) && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_SMS;
             String where = setWhereFilter(folderElement, fi, ap);
-            Cursor c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION, where, null,
-                    Sms.DATE + " DESC");
-            try {
-                if (c != null) {
-                    cnt = c.getCount();
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
-            }
+            String unreadWhere = setWhereFilterFolderType(folderElement, fi);
+            unreadWhere += " AND " + Sms.READ + "=0 ";
+            unreadWhere += setWhereFilterPeriod(ap, fi);
+            queries.add(newMsgCountQuery(Sms.CONTENT_URI, Sms.READ, Sms.DATE, where, unreadWhere,
+                    folderElement, fi, ap));
         }
 
         if (mmsSelected(ap) && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_MMS;
             String where = setWhereFilter(folderElement, fi, ap);
-            Cursor c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION, where, null,
-                    Mms.DATE + " DESC");
-            try {
-                if (c != null) {
-                    cnt += c.getCount();
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
-            }
+            String unreadWhere = setWhereFilterFolderType(folderElement, fi);
+            unreadWhere += " AND " + Mms.READ + "=0 ";
+            unreadWhere += setWhereFilterPeriod(ap, fi);
+            queries.add(newMsgCountQuery(Mms.CONTENT_URI, Mms.READ, Mms.DATE, where, unreadWhere,
+                    folderElement, fi, ap));
         }
 
-        if (emailSelected(ap) && folderElement.hasEmailContent()) {
+        boolean emailSizeSelected = emailSelected(ap) && folderElement.hasEmailContent();
+        boolean emailUnreadSelected = emailSelected(ap) && folderElement.getFolderId() != -1;
+        if (emailSizeSelected || emailUnreadSelected) {
             fi.mMsgType = FilterInfo.TYPE_EMAIL;
-            String where = setWhereFilter(folderElement, fi, ap);
-            if (!where.isEmpty()) {
-                Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
-                Cursor c = mResolver.query(contentUri, BluetoothMapContract.BT_MESSAGE_PROJECTION,
-                        where, null, BluetoothMapContract.MessageColumns.DATE + " DESC");
-                try {
-                    if (c != null) {
-                        cnt += c.getCount();
-                    }
-                } finally {
-                    if (c != null) {
-                        c.close();
-                    }
+            String where = null;
+            if (emailSizeSelected) {
+                where = setWhereFilter(folderElement, fi, ap);
+            }
+            String unreadWhere = null;
+            if (emailUnreadSelected) {
+                unreadWhere = setWhereFilterFolderType(folderElement, fi);
+                if (!unreadWhere.isEmpty()) {
+                    unreadWhere += " AND " + BluetoothMapContract.MessageColumns.FLAG_READ + "=0 ";
+                    unreadWhere += setWhereFilterPeriod(ap, fi);
                 }
             }
+            Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
+            queries.add(newMsgCountQuery(contentUri, BluetoothMapContract.MessageColumns.FLAG_READ,
+                    BluetoothMapContract.MessageColumns.DATE, where, unreadWhere, folderElement,
+                    fi, ap));
         }
 
         if (imSelected(ap) && folderElement.hasImContent()) {
             fi.mMsgType = FilterInfo.TYPE_IM;
             String where = setWhereFilter(folderElement, fi, ap);
-            if (!where.isEmpty()) {
-                Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
-                Cursor c = mResolver.query(contentUri,
-                        BluetoothMapContract.BT_INSTANT_MESSAGE_PROJECTION, where, null,
-                        BluetoothMapContract.MessageColumns.DATE + " DESC");
-                try {
-                    if (c != null) {
-                        cnt += c.getCount();
-                    }
-                } finally {
-                    if (c != null) {
-                        c.close();
-                    }
-                }
+            String unreadWhere = where;
+            if (!unreadWhere.isEmpty()) {
+                unreadWhere += " AND " + BluetoothMapContract.MessageColumns.FLAG_READ + "=0 ";
+                unreadWhere += setWhereFilterPeriod(ap, fi);
             }
+            Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
+            queries.add(newMsgCountQuery(contentUri, BluetoothMapContract.MessageColumns.FLAG_READ,
+                    BluetoothMapContract.MessageColumns.DATE, where, unreadWhere, folderElement,
+                    fi, ap));
         }
-
-        if (D) {
-            Log.d(TAG, "msgListingSize: size = " + cnt);
-        }
-        return cnt;
+        return queries;
     }
 
-    /**
-     * Return true if there are unread messages in the requested list of messages
-     * @param folderElement folder where the message listing should come from
-     * @param ap application parameter object
-     * @return true if unread messages are in the list, else false
-     */
-    public boolean msgListingHasUnread(BluetoothMapFolderElement folderElement,
-            BluetoothMapAppParams ap) {
-        if (D) {
-            Log.d(TAG, "msgListingHasUnread: folder = " + folderElement.getName());
-        }
-        int cnt = 0;
-
-        /* Cache some info used throughout filtering */
-        FilterInfo fi = new FilterInfo();
-        setFilterInfo(fi);
+    private MsgCountQuery newMsgCountQuery(Uri uri, String readColumn, String dateColumn,
+            String where, String unreadWhere, BluetoothMapFolderElement folderElement,
+            FilterInfo fi, BluetoothMapAppParams ap) {
+        if (where != null && where.isEmpty()) {
+            where = null;
+        }
+        if (unreadWhere != null && unreadWhere.isEmpty()) {
+            unreadWhere = null;
+        }
+        MsgCountQuery query = new MsgCountQuery(uri, readColumn, dateColumn, where, unreadWhere);
+        if (where == null || unreadWhere == null) {
+            return query;
+        }
+        String unreadFilter = " AND " + readColumn + "=0 ";
+        String folderWhere = setWhereFilterFolderType(folderElement, fi);
+        String periodWhere = setWhereFilterPeriod(ap, fi);
+        if (unreadWhere.equals(where + unreadFilter + periodWhere)) {
+            // The unread messages are the unread rows of the listing.
+            query.mPassWhere = where;
+        } else if (unreadWhere.equals(folderWhere + unreadFilter + periodWhere)
+                && where.equals(folderWhere + setWhereFilterReadStatus(ap, fi) + periodWhere)) {
+            // Both only differ from the folder and period by the read status.
+            query.mPassWhere = folderWhere + periodWhere;
+            query.mPassFilterReadStatus = true;
+        }
+        return query;
+    }
 
-        if (smsSelected(fi, ap) && folderElement.hasSmsMmsContent()) {
-            fi.mMsgType = FilterInfo.TYPE_SMS;
-            String where = setWhereFilterFolderType(folderElement, fi);
-            where += " AND " + Sms.READ + "=0 ";
-            where += setWhereFilterPeriod(ap, fi);
-            Cursor c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION, where, null,
-                    Sms.DATE + " DESC");
+    private void countMessages(MsgCountQuery query, BluetoothMapAppParams ap,
+            MsgListingCount count) {
+        if (query.mPassWhere != null) {
+            Cursor c = mResolver.query(query.mUri,
+                    new String[]{BaseColumns._ID, query.mReadColumn}, query.mPassWhere, null,
+                    null);
             try {
                 if (c != null) {
-                    cnt = c.getCount();
+                    while (c.moveToNext()) {
+                        Integer read = c.isNull(1) ? null : c.getInt(1);
+                        if (!query.mPassFilterReadStatus || matchReadStatus(read, ap)) {
+                            count.mSize++;
+                        }
+                        if (read != null && read == 0) {
+                            count.mHasUnread = true;
+                        }
+                    }
                 }
             } finally {
                 if (c != null) {
                     c.close();
                 }
             }
+            return;
         }
 
-        if (mmsSelected(ap) && folderElement.hasSmsMmsContent()) {
-            fi.mMsgType = FilterInfo.TYPE_MMS;
-            String where = setWhereFilterFolderType(folderElement, fi);
-            where += " AND " + Mms.READ + "=0 ";
-            where += setWhereFilterPeriod(ap, fi);
-            Cursor c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION, where, null,
-                    Sms.DATE + " DESC");
+        if (query.mWhere != null) {
+            Cursor c = mResolver.query(query.mUri, new String[]{BaseColumns._ID}, query.mWhere,
+                    null, null);
             try {
                 if (c != null) {
-                    cnt += c.getCount();
+                    count.mSize += c.getCount();
                 }
             } finally {
                 if (c != null) {
@@ -2624,54 +2769,32 @@ public class BluetoothMapContent {
             }
         }
 
-
-        if (emailSelected(ap) && folderElement.getFolderId() != -1) {
-            fi.mMsgType = FilterInfo.TYPE_EMAIL;
-            String where = setWhereFilterFolderType(folderElement, fi);
-            if (!where.isEmpty()) {
-                where += " AND " + BluetoothMapContract.MessageColumns.FLAG_READ + "=0 ";
-                where += setWhereFilterPeriod(ap, fi);
-                Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
-                Cursor c = mResolver.query(contentUri, BluetoothMapContract.BT_MESSAGE_PROJECTION,
-                        where, null, BluetoothMapContract.MessageColumns.DATE + " DESC");
-                try {
-                    if (c != null) {
-                        cnt += c.getCount();
-                    }
-                } finally {
-                    if (c != null) {
-                        c.close();
-                    }
+        if (query.mUnreadWhere != null && !count.mHasUnread) {
+            Cursor c = mResolver.query(query.mUri, new String[]{BaseColumns._ID},
+                    query.mUnreadWhere, null, query.mDateColumn + " DESC LIMIT 1");
+            try {
+                if (c != null && c.getCount() > 0) {
+                    count.mHasUnread = true;
                 }
-            }
-        }
-
-        if (imSelected(ap) && folderElement.hasImContent()) {
-            fi.mMsgType = FilterInfo.TYPE_IM;
-            String where = setWhereFilter(folderElement, fi, ap);
-            if (!where.isEmpty()) {
-                where += " AND " + BluetoothMapContract.MessageColumns.FLAG_READ + "=0 ";
-                where += setWhereFilterPeriod(ap, fi);
-                Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
-                Cursor c = mResolver.query(contentUri,
-                        BluetoothMapContract.BT_INSTANT_MESSAGE_PROJECTION, where, null,
-                        BluetoothMapContract.MessageColumns.DATE + " DESC");
-                try {
-                    if (c != null) {
-                        cnt += c.getCount();
-                    }
-                } finally {
-                    if (c != null) {
-                        c.close();
-                    }
+            } finally {
+                if (c != null) {
+                    c.close();
                 }
             }
         }
+    }
 
-        if (D) {
-            Log.d(TAG, "msgListingHasUnread: numUnread = " + cnt);
+    /* Same as the clause of setWhereFilterReadStatus(), for a read column value. */
+    private static boolean matchReadStatus(Integer read, BluetoothMapAppParams ap) {
+        if (ap.getFilterReadStatus() != -1) {
+            if ((ap.getFilterReadStatus() & 0x02) != 0) {
+                return read != null && read == 1;
+            }
+            if ((ap.getFilterReadStatus() & 0x01) != 0) {
+                return read != null && read == 0;
+            }
         }
-        return cnt > 0;
+        return true;
     }
 
     /**
@@ -59,6 +59,7 @@ import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.map.BluetoothMapbMessageMime.MimePart;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
 import com.android.bluetooth.mapapi.BluetoothMapContract.MessageColumns;
+import com.android.internal.annotations.VisibleForTesting;
 
 import com.google.android.mms.pdu.PduHeaders;
 
@@ -76,6 +77,7 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -459,7 +461,43 @@ public class BluetoothMapContentObserver {
         return smsType;
     }
 
-    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+    // SMS/MMS changes notified within this delay are handled in a single pass.
+    @VisibleForTesting
+    static final long SMS_MMS_CHANGE_DELAY_MS = 200;
+    // Passes that only query the notified messages are followed by a full pass after this delay,
+    // to catch changes whose notification did not name the message.
+    @VisibleForTesting
+    static final long SMS_MMS_RECONCILE_DELAY_MS = 60000;
+    // Above this many notified messages, a full pass is cheaper than listing their ids.
+    private static final int MAX_CHANGED_MESSAGE_IDS = 100;
+
+    // Folders the SMS and MMS providers notify message URIs in, e.g. content://sms/inbox/12.
+    private static final Set<String> SMS_URI_FOLDERS = new HashSet<>(
+            Arrays.asList("inbox", "sent", "draft", "outbox", "failed", "queued"));
+    private static final Set<String> MMS_URI_FOLDERS = new HashSet<>(
+            Arrays.asList("inbox", "sent", "drafts", "outbox"));
+
+    private final Handler mHandler = new Handler();
+    private final Runnable mSmsMmsChangeRunnable = this::handleSmsMmsChanges;
+    private final Runnable mSmsMmsReconcileRunnable = () -> {
+        handleMsgListChangesSms();
+        handleMsgListChangesMms();
+    };
+
+    /* Changes notified since the last pass, only accessed on the mHandler thread. */
+    private final Set<Long> mChangedSmsIds = new HashSet<>();
+    private final Set<Long> mChangedMmsIds = new HashSet<>();
+    private boolean mSmsFullPassPending = false;
+    private boolean mMmsFullPassPending = false;
+    // The providers notify MmsSms.CONTENT_URI along with every message URI, hence it only needs
+    // a full pass when no message URI was notified with it.
+    private boolean mSmsMmsChangePending = false;
+
+    /* Highest message ids seen by the last pass, guarded by the matching message list. */
+    private long mSmsMaxId = -1;
+    private long mMmsMaxId = -1;
+
+    private final ContentObserver mObserver = new ContentObserver(mHandler) {
         @Override
         public void onChange(boolean selfChange) {
             onChange(selfChange, null);
@@ -1007,6 +1045,9 @@ public class BluetoothMapContentObserver {
         if (mEnableSmsMms) {
             //this is sms/mms
             mResolver.registerContentObserver(MmsSms.CONTENT_URI, false, mObserver);
+            /* The message URIs notified along with it tell which messages changed */
+            mResolver.registerContentObserver(Sms.CONTENT_URI, true, mObserver);
+            mResolver.registerContentObserver(Mms.CONTENT_URI, true, mObserver);
             mObserverRegistered = true;
         }
 
@@ -1054,6 +1095,8 @@ public class BluetoothMapContentObserver {
             Log.d(TAG, "unregisterObserver");
         }
         mResolver.unregisterContentObserver(mObserver);
+        mHandler.removeCallbacks(mSmsMmsChangeRunnable);
+        mHandler.removeCallbacks(mSmsMmsReconcileRunnable);
         mObserverRegistered = false;
         if (mProviderClient != null) {
             mProviderClient.close();
@@ -1228,6 +1271,9 @@ public class BluetoothMapContentObserver {
             }
         }
 
+        // The MCE may ask for the listing as soon as it gets the event, before the list of
+        // messages is updated at the end of this pass. Cached listing counts are stale then.
+        mMasInstance.invalidateMsgListingCounts();
         try {
             mMnsClient.sendEvent(evt.encode(), mMasId);
         } catch (UnsupportedEncodingException ex) {
@@ -1258,16 +1304,19 @@ public class BluetoothMapContentObserver {
                 return;
             }
 
+            long maxId = -1;
             try {
                 if (c != null && c.moveToFirst()) {
+                    SmsColumns columns = new SmsColumns(c);
                     do {
-                        long id = c.getLong(c.getColumnIndex(Sms._ID));
-                        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
-                        int read = c.getInt(c.getColumnIndex(Sms.READ));
+                        long id = c.getLong(columns.mId);
+                        int type = c.getInt(columns.mType);
+                        int threadId = c.getInt(columns.mThreadId);
+                        int read = c.getInt(columns.mRead);
 
                         Msg msg = new Msg(id, type, threadId, read);
                         msgListSms.put(id, msg);
+                        maxId = Math.max(maxId, id);
                     } while (c.moveToNext());
                 }
             } finally {
@@ -1278,22 +1327,26 @@ public class BluetoothMapContentObserver {
 
             synchronized (getMsgListSms()) {
                 getMsgListSms().clear();
+                mSmsMaxId = maxId;
                 setMsgListSms(msgListSms, true); // Set initial folder version counter
             }
 
             HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
 
             c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
+            maxId = -1;
             try {
                 if (c != null && c.moveToFirst()) {
+                    MmsColumns columns = new MmsColumns(c);
                     do {
-                        long id = c.getLong(c.getColumnIndex(Mms._ID));
-                        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
-                        int read = c.getInt(c.getColumnIndex(Mms.READ));
+                        long id = c.getLong(columns.mId);
+                        int type = c.getInt(columns.mMessageBox);
+                        int threadId = c.getInt(columns.mThreadId);
+                        int read = c.getInt(columns.mRead);
 
                         Msg msg = new Msg(id, type, threadId, read);
                         msgListMms.put(id, msg);
+                        maxId = Math.max(maxId, id);
                     } while (c.moveToNext());
                 }
             } finally {
@@ -1304,6 +1357,7 @@ public class BluetoothMapContentObserver {
 
             synchronized (getMsgListMms()) {
                 getMsgListMms().clear();
+                mMmsMaxId = maxId;
                 setMsgListMms(msgListMms, true); // Set initial folder version counter
             }
         }
@@ -1392,6 +1446,94 @@ public class BluetoothMapContentObserver {
         }
     }
 
+    /**
+     * Column indices of the SMS cursors used to detect changes, resolved once per query. Columns
+     * that are not part of the projection have index -1.
+     */
+    private static class SmsColumns {
+        final int mId;
+        final int mType;
+        final int mThreadId;
+        final int mRead;
+        final int mDate;
+        final int mBody;
+        final int mAddress;
+
+        SmsColumns(Cursor c) {
+            mId = c.getColumnIndexOrThrow(Sms._ID);
+            mType = c.getColumnIndex(Sms.TYPE);
+            mThreadId = c.getColumnIndex(Sms.THREAD_ID);
+            mRead = c.getColumnIndex(Sms.READ);
+            mDate = c.getColumnIndex(Sms.DATE);
+            mBody = c.getColumnIndex(Sms.BODY);
+            mAddress = c.getColumnIndex(Sms.ADDRESS);
+        }
+    }
+
+    /**
+     * Column indices of the MMS cursors used to detect changes, resolved once per query. Columns
+     * that are not part of the projection have index -1.
+     */
+    private static class MmsColumns {
+        final int mId;
+        final int mMessageBox;
+        final int mMessageType;
+        final int mThreadId;
+        final int mRead;
+        final int mDate;
+        final int mSubject;
+        final int mPriority;
+
+        MmsColumns(Cursor c) {
+            mId = c.getColumnIndexOrThrow(Mms._ID);
+            mMessageBox = c.getColumnIndex(Mms.MESSAGE_BOX);
+            mMessageType = c.getColumnIndex(Mms.MESSAGE_TYPE);
+            mThreadId = c.getColumnIndex(Mms.THREAD_ID);
+            mRead = c.getColumnIndex(Mms.READ);
+            mDate = c.getColumnIndex(Mms.DATE);
+            mSubject = c.getColumnIndex(Mms.SUBJECT);
+            mPriority = c.getColumnIndex(Mms.PRIORITY);
+        }
+    }
+
+    /**
+     * Selection matching the messages with an id above a watermark, or in a set of |idCount| ids.
+     * See {@link #getChangedMessagesSelectionArgs(long, Set)}.
+     */
+    private static String getChangedMessagesSelection(String idColumn, int idCount) {
+        StringBuilder selection = new StringBuilder(idColumn).append(" > ?");
+        if (idCount > 0) {
+            selection.append(" OR ").append(idColumn).append(" IN (?");
+            for (int i = 1; i < idCount; i++) {
+                selection.append(",?");
+            }
+            selection.append(")");
+        }
+        return selection.toString();
+    }
+
+    private static String[] getChangedMessagesSelectionArgs(long maxId, Set<Long> ids) {
+        String[] selectionArgs = new String[ids.size() + 1];
+        int i = 0;
+        selectionArgs[i++] = Long.toString(maxId);
+        for (long id : ids) {
+            selectionArgs[i++] = Long.toString(id);
+        }
+        return selectionArgs;
+    }
+
+    private Cursor querySms(String selection, String[] selectionArgs) {
+        String[] projection = mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10
+                ? SMS_PROJECTION_SHORT : SMS_PROJECTION_SHORT_EXT;
+        return mResolver.query(Sms.CONTENT_URI, projection, selection, selectionArgs, null);
+    }
+
+    private Cursor queryMms(String selection, String[] selectionArgs) {
+        String[] projection = mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10
+                ? MMS_PROJECTION_SHORT : MMS_PROJECTION_SHORT_EXT;
+        return mResolver.query(Mms.CONTENT_URI, projection, selection, selectionArgs, null);
+    }
+
     private void handleMsgListChangesSms() {
         if (V) {
             Log.d(TAG, "handleMsgListChangesSms");
@@ -1402,133 +1544,20 @@ public class BluetoothMapContentObserver {
 
         Cursor c;
         synchronized (getMsgListSms()) {
-            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION_SHORT, null, null, null);
-            } else {
-                c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT, null, null, null);
-            }
+            c = querySms(null, null);
+            long maxId = -1;
             try {
                 if (c != null && c.moveToFirst()) {
+                    SmsColumns columns = new SmsColumns(c);
                     do {
-                        int idIndex = c.getColumnIndexOrThrow(Sms._ID);
-                        if (c.isNull(idIndex)) {
+                        if (c.isNull(columns.mId)) {
                             Log.w(TAG, "handleMsgListChangesSms, ID is null");
                             continue;
                         }
-                        long id = c.getLong(idIndex);
-                        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
-                        int read = c.getInt(c.getColumnIndex(Sms.READ));
-
+                        long id = c.getLong(columns.mId);
+                        maxId = Math.max(maxId, id);
                         Msg msg = getMsgListSms().remove(id);
-
-                        /* We must filter out any actions made by the MCE, hence do not send e.g.
-                         * a message deleted and/or MessageShift for messages deleted by the MCE. */
-
-                        if (msg == null) {
-                            /* New message */
-                            msg = new Msg(id, type, threadId, read);
-                            msgListSms.put(id, msg);
-                            listChanged = true;
-                            Event evt;
-                            if (mTransmitEvents && // extract contact details only if needed
-                                    mMapEventReportVersion
-                                            > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                String date = BluetoothMapUtils.getDateTimeString(
-                                        c.getLong(c.getColumnIndex(Sms.DATE)));
-                                String subject = c.getString(c.getColumnIndex(Sms.BODY));
-                                if (subject == null) {
-                                    subject = "";
-                                }
-                                String name = "";
-                                String phone = "";
-                                if (type == 1) { //inbox
-                                    phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
-                                    if (phone != null && !phone.isEmpty()) {
-                                        name = BluetoothMapContent.getContactNameFromPhone(phone,
-                                                mResolver);
-                                        if (name == null || name.isEmpty()) {
-                                            name = phone;
-                                        }
-                                    } else {
-                                        name = phone;
-                                    }
-                                } else {
-                                    TelephonyManager tm =
-                                            (TelephonyManager) mContext.getSystemService(
-                                                    Context.TELEPHONY_SERVICE);
-                                    if (tm != null) {
-                                        phone = tm.getLine1Number();
-                                        name = phone;
-                                    }
-                                }
-                                String priority = "no"; // no priority for sms
-                                /* Incoming message from the network */
-                                if (mMapEventReportVersion
-                                        == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
-                                            mSmsType, date, subject, name, priority);
-                                } else {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
-                                            mSmsType, date, subject, name, priority,
-                                            (long) threadId, null);
-                                }
-                            } else {
-                                /* Incoming message from the network */
-                                evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type), null,
-                                        mSmsType);
-                            }
-                            sendEvent(evt);
-                        } else {
-                            /* Existing message */
-                            if (type != msg.type) {
-                                listChanged = true;
-                                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                                String oldFolder = getSmsFolderName(msg.type);
-                                String newFolder = getSmsFolderName(type);
-                                // Filter out the intermediate outbox steps
-                                if (!oldFolder.equalsIgnoreCase(newFolder)) {
-                                    Event evt =
-                                            new Event(EVENT_TYPE_SHIFT, id, getSmsFolderName(type),
-                                                    oldFolder, mSmsType);
-                                    sendEvent(evt);
-                                }
-                                msg.type = type;
-                            } else if (threadId != msg.threadId) {
-                                listChanged = true;
-                                Log.d(TAG, "Message delete change: type: " + type + " old type: "
-                                        + msg.type + "\n    threadId: " + threadId
-                                        + " old threadId: " + msg.threadId);
-                                if (threadId == DELETED_THREAD_ID) { // Message deleted
-                                    // TODO:
-                                    // We shall only use the folder attribute, but can't remember
-                                    // wether to set it to "deleted" or the name of the folder
-                                    // from which the message have been deleted.
-                                    // "old_folder" used only for MessageShift event
-                                    Event evt = new Event(EVENT_TYPE_DELETE, id,
-                                            getSmsFolderName(msg.type), null, mSmsType);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                } else { // Undelete
-                                    Event evt = new Event(EVENT_TYPE_SHIFT, id,
-                                            getSmsFolderName(msg.type),
-                                            BluetoothMapContract.FOLDER_NAME_DELETED, mSmsType);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                }
-                            }
-                            if (read != msg.flagRead) {
-                                listChanged = true;
-                                msg.flagRead = read;
-                                if (mMapEventReportVersion
-                                        > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id,
-                                            getSmsFolderName(msg.type), mSmsType);
-                                    sendEvent(evt);
-                                }
-                            }
-                            msgListSms.put(id, msg);
-                        }
+                        listChanged |= handleSmsChange(c, columns, id, msg, msgListSms);
                     } while (c.moveToNext());
                 }
             } finally {
@@ -1536,23 +1565,187 @@ public class BluetoothMapContentObserver {
                     c.close();
                 }
             }
-            String eventType = EVENT_TYPE_DELETE;
             for (Msg msg : getMsgListSms().values()) {
-                // "old_folder" used only for MessageShift event
-                if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
-                    eventType = EVENT_TYPE_REMOVED;
-                    if (V) Log.v(TAG," sent EVENT_TYPE_REMOVED");
-                }
-                Event evt = new Event(eventType, msg.id, getSmsFolderName(msg.type), null,
-                        mSmsType);
-                sendEvent(evt);
+                sendSmsDeletedEvent(msg);
                 listChanged = true;
             }
 
+            mSmsMaxId = maxId;
             setMsgListSms(msgListSms, listChanged);
         }
     }
 
+    /**
+     * Handles the changes of the SMS in |ids| and of the SMS added since the last pass, without
+     * querying the rest of the table.
+     */
+    private void handleSmsChanges(Set<Long> ids) {
+        if (V) {
+            Log.d(TAG, "handleSmsChanges: " + ids);
+        }
+
+        boolean listChanged = false;
+        synchronized (getMsgListSms()) {
+            Cursor c = querySms(getChangedMessagesSelection(Sms._ID, ids.size()),
+                    getChangedMessagesSelectionArgs(mSmsMaxId, ids));
+            if (c == null) {
+                return;
+            }
+            Set<Long> deletedIds = new HashSet<>(ids);
+            try {
+                if (c.moveToFirst()) {
+                    SmsColumns columns = new SmsColumns(c);
+                    do {
+                        if (c.isNull(columns.mId)) {
+                            Log.w(TAG, "handleSmsChanges, ID is null");
+                            continue;
+                        }
+                        long id = c.getLong(columns.mId);
+                        deletedIds.remove(id);
+                        mSmsMaxId = Math.max(mSmsMaxId, id);
+                        listChanged |= handleSmsChange(c, columns, id, getMsgListSms().get(id),
+                                getMsgListSms());
+                    } while (c.moveToNext());
+                }
+            } finally {
+                c.close();
+            }
+            for (long id : deletedIds) {
+                Msg msg = getMsgListSms().remove(id);
+                if (msg != null) {
+                    sendSmsDeletedEvent(msg);
+                    listChanged = true;
+                }
+            }
+
+            setMsgListSms(getMsgListSms(), listChanged);
+        }
+    }
+
+    /**
+     * Compares the SMS at the cursor position to |msg|, its tracked state or null if it is new,
+     * sends the matching events and puts the updated state in |msgList|.
+     *
+     * @return true if the tracked state changed
+     */
+    private boolean handleSmsChange(Cursor c, SmsColumns columns, long id, Msg msg,
+            Map<Long, Msg> msgList) {
+        boolean listChanged = false;
+        int type = c.getInt(columns.mType);
+        int threadId = c.getInt(columns.mThreadId);
+        int read = c.getInt(columns.mRead);
+
+        /* We must filter out any actions made by the MCE, hence do not send e.g.
+         * a message deleted and/or MessageShift for messages deleted by the MCE. */
+
+        if (msg == null) {
+            /* New message */
+            msg = new Msg(id, type, threadId, read);
+            msgList.put(id, msg);
+            listChanged = true;
+            Event evt;
+            if (mTransmitEvents && // extract contact details only if needed
+                    mMapEventReportVersion > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                String date = BluetoothMapUtils.getDateTimeString(c.getLong(columns.mDate));
+                String subject = c.getString(columns.mBody);
+                if (subject == null) {
+                    subject = "";
+                }
+                String name = "";
+                String phone = "";
+                if (type == 1) { //inbox
+                    phone = c.getString(columns.mAddress);
+                    if (phone != null && !phone.isEmpty()) {
+                        name = BluetoothMapContent.getContactNameFromPhone(phone, mResolver);
+                        if (name == null || name.isEmpty()) {
+                            name = phone;
+                        }
+                    } else {
+                        name = phone;
+                    }
+                } else {
+                    TelephonyManager tm =
+                            (TelephonyManager) mContext.getSystemService(
+                                    Context.TELEPHONY_SERVICE);
+                    if (tm != null) {
+                        phone = tm.getLine1Number();
+                        name = phone;
+                    }
+                }
+                String priority = "no"; // no priority for sms
+                /* Incoming message from the network */
+                if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type), mSmsType, date,
+                            subject, name, priority);
+                } else {
+                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type), mSmsType, date,
+                            subject, name, priority, (long) threadId, null);
+                }
+            } else {
+                /* Incoming message from the network */
+                evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type), null, mSmsType);
+            }
+            sendEvent(evt);
+        } else {
+            /* Existing message */
+            if (type != msg.type) {
+                listChanged = true;
+                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+                String oldFolder = getSmsFolderName(msg.type);
+                String newFolder = getSmsFolderName(type);
+                // Filter out the intermediate outbox steps
+                if (!oldFolder.equalsIgnoreCase(newFolder)) {
+                    Event evt = new Event(EVENT_TYPE_SHIFT, id, getSmsFolderName(type), oldFolder,
+                            mSmsType);
+                    sendEvent(evt);
+                }
+                msg.type = type;
+            } else if (threadId != msg.threadId) {
+                listChanged = true;
+                Log.d(TAG, "Message delete change: type: " + type + " old type: " + msg.type
+                        + "\n    threadId: " + threadId + " old threadId: " + msg.threadId);
+                if (threadId == DELETED_THREAD_ID) { // Message deleted
+                    // TODO:
+                    // We shall only use the folder attribute, but can't remember
+                    // wether to set it to "deleted" or the name of the folder
+                    // from which the message have been deleted.
+                    // "old_folder" used only for MessageShift event
+                    Event evt = new Event(EVENT_TYPE_DELETE, id, getSmsFolderName(msg.type), null,
+                            mSmsType);
+                    sendEvent(evt);
+                    msg.threadId = threadId;
+                } else { // Undelete
+                    Event evt = new Event(EVENT_TYPE_SHIFT, id, getSmsFolderName(msg.type),
+                            BluetoothMapContract.FOLDER_NAME_DELETED, mSmsType);
+                    sendEvent(evt);
+                    msg.threadId = threadId;
+                }
+            }
+            if (read != msg.flagRead) {
+                listChanged = true;
+                msg.flagRead = read;
+                if (mMapEventReportVersion > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id, getSmsFolderName(msg.type),
+                            mSmsType);
+                    sendEvent(evt);
+                }
+            }
+            msgList.put(id, msg);
+        }
+        return listChanged;
+    }
+
+    private void sendSmsDeletedEvent(Msg msg) {
+        String eventType = EVENT_TYPE_DELETE;
+        // "old_folder" used only for MessageShift event
+        if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
+            eventType = EVENT_TYPE_REMOVED;
+            if (V) Log.v(TAG," sent EVENT_TYPE_REMOVED");
+        }
+        Event evt = new Event(eventType, msg.id, getSmsFolderName(msg.type), null, mSmsType);
+        sendEvent(evt);
+    }
+
     private void handleMsgListChangesMms() {
         if (V) {
             Log.d(TAG, "handleMsgListChangesMms");
@@ -1562,163 +1755,213 @@ public class BluetoothMapContentObserver {
         boolean listChanged = false;
         Cursor c;
         synchronized (getMsgListMms()) {
-            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
-            } else {
-                c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT, null, null, null);
-            }
-
+            c = queryMms(null, null);
+            long maxId = -1;
             try {
                 if (c != null && c.moveToFirst()) {
+                    MmsColumns columns = new MmsColumns(c);
                     do {
-                        int idIndex = c.getColumnIndexOrThrow(Mms._ID);
-                        if (c.isNull(idIndex)) {
+                        if (c.isNull(columns.mId)) {
                             Log.w(TAG, "handleMsgListChangesMms, ID is null");
                             continue;
                         }
-                        long id = c.getLong(idIndex);
-                        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                        int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
-                        // TODO: Go through code to see if we have an issue with mismatch in types
-                        //       for threadId. Seems to be a long in DB??
-                        int read = c.getInt(c.getColumnIndex(Mms.READ));
-
+                        long id = c.getLong(columns.mId);
+                        maxId = Math.max(maxId, id);
                         Msg msg = getMsgListMms().remove(id);
+                        listChanged |= handleMmsChange(c, columns, id, msg, msgListMms);
+                    } while (c.moveToNext());
 
-                        /* We must filter out any actions made by the MCE, hence do not send
-                         * e.g. a message deleted and/or MessageShift for messages deleted by the
-                         * MCE.*/
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            for (Msg msg : getMsgListMms().values()) {
+                sendMmsDeletedEvent(msg);
+                listChanged = true;
+            }
+            mMmsMaxId = maxId;
+            setMsgListMms(msgListMms, listChanged);
+        }
+    }
 
-                        if (msg == null) {
-                            /* New message - only notify on retrieve conf */
-                            listChanged = true;
-                            if (getMmsFolderName(type).equalsIgnoreCase(
-                                    BluetoothMapContract.FOLDER_NAME_INBOX)
-                                    && mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
-                                continue;
-                            }
-                            msg = new Msg(id, type, threadId, read);
-                            msgListMms.put(id, msg);
-                            Event evt;
-                            if (mTransmitEvents && // extract contact details only if needed
-                                    mMapEventReportVersion
-                                            != BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                String date = BluetoothMapUtils.getDateTimeString(
-                                        c.getLong(c.getColumnIndex(Mms.DATE)));
-                                String subject = c.getString(c.getColumnIndex(Mms.SUBJECT));
-                                if (subject == null || subject.length() == 0) {
-                                    /* Get subject from mms text body parts - if any exists */
-                                    subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
-                                    if (subject == null) {
-                                        subject = "";
-                                    }
-                                }
-                                int tmpPri = c.getInt(c.getColumnIndex(Mms.PRIORITY));
-                                Log.d(TAG, "TEMP handleMsgListChangesMms, "
-                                        + "newMessage 'read' state: " + read + "priority: "
-                                        + tmpPri);
-
-                                String address = BluetoothMapContent.getAddressMms(mResolver, id,
-                                        BluetoothMapContent.MMS_FROM);
-                                if (address == null) {
-                                    address = "";
-                                }
+    /**
+     * Handles the changes of the MMS in |ids| and of the MMS added since the last pass, without
+     * querying the rest of the table.
+     */
+    private void handleMmsChanges(Set<Long> ids) {
+        if (V) {
+            Log.d(TAG, "handleMmsChanges: " + ids);
+        }
 
-                                String priority = "no";
-                                if (tmpPri == PduHeaders.PRIORITY_HIGH) {
-                                    priority = "yes";
-                                }
+        boolean listChanged = false;
+        synchronized (getMsgListMms()) {
+            Cursor c = queryMms(getChangedMessagesSelection(Mms._ID, ids.size()),
+                    getChangedMessagesSelectionArgs(mMmsMaxId, ids));
+            if (c == null) {
+                return;
+            }
+            Set<Long> deletedIds = new HashSet<>(ids);
+            try {
+                if (c.moveToFirst()) {
+                    MmsColumns columns = new MmsColumns(c);
+                    do {
+                        if (c.isNull(columns.mId)) {
+                            Log.w(TAG, "handleMmsChanges, ID is null");
+                            continue;
+                        }
+                        long id = c.getLong(columns.mId);
+                        deletedIds.remove(id);
+                        mMmsMaxId = Math.max(mMmsMaxId, id);
+                        listChanged |= handleMmsChange(c, columns, id, getMsgListMms().get(id),
+                                getMsgListMms());
+                    } while (c.moveToNext());
+                }
+            } finally {
+                c.close();
+            }
+            for (long id : deletedIds) {
+                Msg msg = getMsgListMms().remove(id);
+                if (msg != null) {
+                    sendMmsDeletedEvent(msg);
+                    listChanged = true;
+                }
+            }
 
-                                /* Incoming message from the network */
-                                if (mMapEventReportVersion
-                                        == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
-                                            TYPE.MMS, date, subject, address, priority);
-                                } else {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
-                                            TYPE.MMS, date, subject, address, priority,
-                                            (long) threadId, null);
-                                }
+            setMsgListMms(getMsgListMms(), listChanged);
+        }
+    }
 
-                            } else {
-                                /* Incoming message from the network */
-                                evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type), null,
-                                        TYPE.MMS);
-                            }
+    /**
+     * Compares the MMS at the cursor position to |msg|, its tracked state or null if it is new,
+     * sends the matching events and puts the updated state in |msgList|.
+     *
+     * @return true if the tracked state changed
+     */
+    private boolean handleMmsChange(Cursor c, MmsColumns columns, long id, Msg msg,
+            Map<Long, Msg> msgList) {
+        boolean listChanged = false;
+        int type = c.getInt(columns.mMessageBox);
+        int mtype = c.getInt(columns.mMessageType);
+        int threadId = c.getInt(columns.mThreadId);
+        // TODO: Go through code to see if we have an issue with mismatch in types
+        //       for threadId. Seems to be a long in DB??
+        int read = c.getInt(columns.mRead);
+
+        /* We must filter out any actions made by the MCE, hence do not send
+         * e.g. a message deleted and/or MessageShift for messages deleted by the
+         * MCE.*/
+
+        if (msg == null) {
+            /* New message - only notify on retrieve conf */
+            listChanged = true;
+            if (getMmsFolderName(type).equalsIgnoreCase(BluetoothMapContract.FOLDER_NAME_INBOX)
+                    && mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
+                return listChanged;
+            }
+            msg = new Msg(id, type, threadId, read);
+            msgList.put(id, msg);
+            Event evt;
+            if (mTransmitEvents && // extract contact details only if needed
+                    mMapEventReportVersion != BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                String date = BluetoothMapUtils.getDateTimeString(c.getLong(columns.mDate));
+                String subject = c.getString(columns.mSubject);
+                if (subject == null || subject.length() == 0) {
+                    /* Get subject from mms text body parts - if any exists */
+                    subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
+                    if (subject == null) {
+                        subject = "";
+                    }
+                }
+                int tmpPri = c.getInt(columns.mPriority);
+                Log.d(TAG, "TEMP handleMsgListChangesMms, newMessage 'read' state: " + read
+                        + "priority: " + tmpPri);
 
-                            sendEvent(evt);
-                        } else {
-                            /* Existing message */
-                            if (type != msg.type) {
-                                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                                Event evt;
-                                listChanged = true;
-                                if (!msg.localInitiatedSend) {
-                                    // Only send events about local initiated changes
-                                    evt = new Event(EVENT_TYPE_SHIFT, id, getMmsFolderName(type),
-                                            getMmsFolderName(msg.type), TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                                msg.type = type;
+                String address = BluetoothMapContent.getAddressMms(mResolver, id,
+                        BluetoothMapContent.MMS_FROM);
+                if (address == null) {
+                    address = "";
+                }
 
-                                if (getMmsFolderName(type).equalsIgnoreCase(
-                                        BluetoothMapContract.FOLDER_NAME_SENT)
-                                        && msg.localInitiatedSend) {
-                                    // Stop tracking changes for this message
-                                    msg.localInitiatedSend = false;
-                                    evt = new Event(EVENT_TYPE_SENDING_SUCCESS, id,
-                                            getMmsFolderName(type), null, TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                            } else if (threadId != msg.threadId) {
-                                Log.d(TAG, "Message delete change: type: " + type + " old type: "
-                                        + msg.type + "\n    threadId: " + threadId
-                                        + " old threadId: " + msg.threadId);
-                                listChanged = true;
-                                if (threadId == DELETED_THREAD_ID) { // Message deleted
-                                    // "old_folder" used only for MessageShift event
-                                    Event evt = new Event(EVENT_TYPE_DELETE, id,
-                                            getMmsFolderName(msg.type), null, TYPE.MMS);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                } else { // Undelete
-                                    Event evt = new Event(EVENT_TYPE_SHIFT, id,
-                                            getMmsFolderName(msg.type),
-                                            BluetoothMapContract.FOLDER_NAME_DELETED, TYPE.MMS);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                }
-                            }
-                            if (read != msg.flagRead) {
-                                listChanged = true;
-                                msg.flagRead = read;
-                                if (mMapEventReportVersion
-                                        > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id,
-                                            getMmsFolderName(msg.type), TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                            }
-                            msgListMms.put(id, msg);
-                        }
-                    } while (c.moveToNext());
+                String priority = "no";
+                if (tmpPri == PduHeaders.PRIORITY_HIGH) {
+                    priority = "yes";
+                }
 
+                /* Incoming message from the network */
+                if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type), TYPE.MMS, date,
+                            subject, address, priority);
+                } else {
+                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type), TYPE.MMS, date,
+                            subject, address, priority, (long) threadId, null);
                 }
-            } finally {
-                if (c != null) {
-                    c.close();
+
+            } else {
+                /* Incoming message from the network */
+                evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type), null, TYPE.MMS);
+            }
+
+            sendEvent(evt);
+        } else {
+            /* Existing message */
+            if (type != msg.type) {
+                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+                Event evt;
+                listChanged = true;
+                if (!msg.localInitiatedSend) {
+                    // Only send events about local initiated changes
+                    evt = new Event(EVENT_TYPE_SHIFT, id, getMmsFolderName(type),
+                            getMmsFolderName(msg.type), TYPE.MMS);
+                    sendEvent(evt);
+                }
+                msg.type = type;
+
+                if (getMmsFolderName(type).equalsIgnoreCase(BluetoothMapContract.FOLDER_NAME_SENT)
+                        && msg.localInitiatedSend) {
+                    // Stop tracking changes for this message
+                    msg.localInitiatedSend = false;
+                    evt = new Event(EVENT_TYPE_SENDING_SUCCESS, id, getMmsFolderName(type), null,
+                            TYPE.MMS);
+                    sendEvent(evt);
+                }
+            } else if (threadId != msg.threadId) {
+                Log.d(TAG, "Message delete change: type: " + type + " old type: " + msg.type
+                        + "\n    threadId: " + threadId + " old threadId: " + msg.threadId);
+                listChanged = true;
+                if (threadId == DELETED_THREAD_ID) { // Message deleted
+                    // "old_folder" used only for MessageShift event
+                    Event evt = new Event(EVENT_TYPE_DELETE, id, getMmsFolderName(msg.type), null,
+                            TYPE.MMS);
+                    sendEvent(evt);
+                    msg.threadId = threadId;
+                } else { // Undelete
+                    Event evt = new Event(EVENT_TYPE_SHIFT, id, getMmsFolderName(msg.type),
+                            BluetoothMapContract.FOLDER_NAME_DELETED, TYPE.MMS);
+                    sendEvent(evt);
+                    msg.threadId = threadId;
                 }
             }
-            for (Msg msg : getMsgListMms().values()) {
-                // "old_folder" used only for MessageShift event
-                Event evt = new Event(EVENT_TYPE_DELETE, msg.id, getMmsFolderName(msg.type), null,
-                        TYPE.MMS);
-                sendEvent(evt);
+            if (read != msg.flagRead) {
                 listChanged = true;
+                msg.flagRead = read;
+                if (mMapEventReportVersion > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id, getMmsFolderName(msg.type),
+                            TYPE.MMS);
+                    sendEvent(evt);
+                }
             }
-            setMsgListMms(msgListMms, listChanged);
+            msgList.put(id, msg);
         }
+        return listChanged;
+    }
+
+    private void sendMmsDeletedEvent(Msg msg) {
+        // "old_folder" used only for MessageShift event
+        Event evt = new Event(EVENT_TYPE_DELETE, msg.id, getMmsFolderName(msg.type), null,
+                TYPE.MMS);
+        sendEvent(evt);
     }
 
     private void handleMsgListChangesMsg(Uri uri) throws RemoteException {
@@ -1929,8 +2172,93 @@ public class BluetoothMapContentObserver {
         }
         // TODO: check to see if there could be problem with IM and SMS in one instance
         if (mEnableSmsMms) {
+            onSmsMmsChanged(uri);
+        }
+    }
+
+    /**
+     * Records the SMS/MMS change notified for |uri|. The changes notified within
+     * {@link #SMS_MMS_CHANGE_DELAY_MS} are handled together, by querying the messages named by
+     * their URIs and those added since the last pass. URIs that do not name a message, e.g. for
+     * a deleted conversation, trigger a full pass over the table instead.
+     */
+    @VisibleForTesting
+    void onSmsMmsChanged(Uri uri) {
+        String authority = uri.getAuthority();
+        if (Sms.CONTENT_URI.getAuthority().equals(authority)) {
+            long id = getNotifiedMessageId(uri, SMS_URI_FOLDERS);
+            if (id >= 0) {
+                mChangedSmsIds.add(id);
+            } else {
+                mSmsFullPassPending = true;
+            }
+        } else if (Mms.CONTENT_URI.getAuthority().equals(authority)) {
+            long id = getNotifiedMessageId(uri, MMS_URI_FOLDERS);
+            if (id >= 0) {
+                mChangedMmsIds.add(id);
+            } else {
+                mMmsFullPassPending = true;
+            }
+        } else if (MmsSms.CONTENT_URI.getAuthority().equals(authority)) {
+            mSmsMmsChangePending = true;
+        } else {
+            return;
+        }
+        if (!mHandler.hasCallbacks(mSmsMmsChangeRunnable)) {
+            mHandler.postDelayed(mSmsMmsChangeRunnable, SMS_MMS_CHANGE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Returns the id of the message |uri| points to, or -1 if it does not point to one message.
+     */
+    private static long getNotifiedMessageId(Uri uri, Set<String> folders) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() == 1 || (segments.size() == 2 && folders.contains(segments.get(0)))) {
+            try {
+                return Long.parseLong(segments.get(segments.size() - 1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Handles the SMS/MMS changes recorded by {@link #onSmsMmsChanged(Uri)}.
+     */
+    @VisibleForTesting
+    void handleSmsMmsChanges() {
+        mHandler.removeCallbacks(mSmsMmsChangeRunnable);
+        boolean unknownChange = mSmsMmsChangePending && !mSmsFullPassPending
+                && !mMmsFullPassPending && mChangedSmsIds.isEmpty() && mChangedMmsIds.isEmpty();
+        boolean smsFullPass = unknownChange || mSmsFullPassPending
+                || mChangedSmsIds.size() > MAX_CHANGED_MESSAGE_IDS;
+        boolean mmsFullPass = unknownChange || mMmsFullPassPending
+                || mChangedMmsIds.size() > MAX_CHANGED_MESSAGE_IDS;
+        Set<Long> smsIds = new HashSet<>(mChangedSmsIds);
+        Set<Long> mmsIds = new HashSet<>(mChangedMmsIds);
+        mChangedSmsIds.clear();
+        mChangedMmsIds.clear();
+        mSmsFullPassPending = false;
+        mMmsFullPassPending = false;
+        mSmsMmsChangePending = false;
+
+        if (smsFullPass) {
             handleMsgListChangesSms();
+        } else if (!smsIds.isEmpty()) {
+            handleSmsChanges(smsIds);
+        }
+        if (mmsFullPass) {
             handleMsgListChangesMms();
+        } else if (!mmsIds.isEmpty()) {
+            handleMmsChanges(mmsIds);
+        }
+
+        if (smsFullPass && mmsFullPass) {
+            mHandler.removeCallbacks(mSmsMmsReconcileRunnable);
+        } else if (!mHandler.hasCallbacks(mSmsMmsReconcileRunnable)) {
+            mHandler.postDelayed(mSmsMmsReconcileRunnable, SMS_MMS_RECONCILE_DELAY_MS);
         }
     }
 
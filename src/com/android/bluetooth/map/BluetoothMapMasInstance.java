@@ -90,6 +90,7 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
     private BluetoothMapObexServer mMapServer;
     private AtomicLong mDbIndetifier = new AtomicLong();
     private AtomicLong mFolderVersionCounter = new AtomicLong(0);
+    private AtomicLong mMsgListingCountVersion = new AtomicLong(0);
     private AtomicLong mSmsMmsConvoListVersionCounter = new AtomicLong(0);
     private AtomicLong mImEmailConvoListVersionCounter = new AtomicLong(0);
 
@@ -181,6 +182,18 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
      */
     /* package */ void updateFolderVersionCounter() {
         mFolderVersionCounter.incrementAndGet();
+        mMsgListingCountVersion.incrementAndGet();
+    }
+
+    /**
+     * Drop the message listing sizes cached by BluetoothMapContent, without changing the
+     * FOLDER version counter seen by the MCE.
+     * Call when messages change before, or without, the folder version counter being updated:
+     * when an event is sent in the middle of an observer pass, or when the MCE itself sets a
+     * message status or pushes a message.
+     */
+    /* package */ void invalidateMsgListingCounts() {
+        mMsgListingCountVersion.incrementAndGet();
     }
 
     /**
@@ -259,6 +272,11 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
         return mFolderVersionCounter.get();
     }
 
+    /* package*/
+    long getMsgListingCountVersion() {
+        return mMsgListingCountVersion.get();
+    }
+
     /* package */
     long getCombinedConvoListVersionCounter() {
         long combinedVersionCounter = mSmsMmsConvoListVersionCounter.get();
@@ -22,9 +22,14 @@ import com.android.internal.util.FastXmlSerializer;
 
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -67,6 +72,13 @@ public class BluetoothMapMessageListing {
         return mHasUnread;
     }
 
+    /**
+     * Marks the listing as having unread messages, when some are left out of the list.
+     */
+    public void setHasUnread() {
+        mHasUnread = true;
+    }
+
 
     /**
      *  returns the entire list as a list
@@ -91,6 +103,47 @@ public class BluetoothMapMessageListing {
     public byte[] encode(boolean includeThreadId, String version)
             throws UnsupportedEncodingException {
         StringWriter sw = new StringWriter();
+        try {
+            encode(sw, includeThreadId, version);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        /* Fix IOT issue to replace '&amp;' by '&', &lt; by < and '&gt; by '>' in MessageListing */
+        if (isBrezzaCarkit()) {
+            return sw.toString()
+                    .replaceAll("&amp;", "&")
+                    .replaceAll("&lt;", "<")
+                    .replaceAll("&gt;", ">")
+                    .getBytes("UTF-8");
+        }
+        return sw.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) into a UTF-8
+     * formatted XML-string written to |out| while being encoded, so that the listing does not
+     * need to be held in memory as a whole.
+     *
+     * @param out the stream to write to, it is flushed but not closed.
+     * @param version the version as a string, see {@link #encode(boolean, String)}.
+     * @throws IOException if writing to |out| failed.
+     */
+    // TODO: Remove includeThreadId when MAP-IM is adopted
+    public void encode(OutputStream out, boolean includeThreadId, String version)
+            throws IOException {
+        if (isBrezzaCarkit()) {
+            // The workaround needs the whole listing.
+            out.write(encode(includeThreadId, version));
+            out.flush();
+            return;
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        encode(writer, includeThreadId, version);
+        writer.flush();
+    }
+
+    private void encode(Writer writer, boolean includeThreadId, String version)
+            throws IOException {
         XmlSerializer xmlMsgElement = null;
         boolean isBenzCarkit = DeviceWorkArounds.addressStartsWith(
                 BluetoothMapService.getRemoteDevice().getAddress(),
@@ -100,11 +153,11 @@ public class BluetoothMapMessageListing {
                 Log.d(TAG, "java_interop: Remote is Mercedes Benz, "
                         + "using Xml Workaround.");
                 xmlMsgElement = Xml.newSerializer();
-                xmlMsgElement.setOutput(sw);
+                xmlMsgElement.setOutput(writer);
                 xmlMsgElement.text("\n");
             } else {
                 xmlMsgElement = new FastXmlSerializer(0);
-                xmlMsgElement.setOutput(sw);
+                xmlMsgElement.setOutput(writer);
                 xmlMsgElement.startDocument("UTF-8", true);
                 xmlMsgElement.setFeature(
                         "http://xmlpull.org/v1/doc/features.html#indent-output", true);
@@ -121,19 +174,13 @@ public class BluetoothMapMessageListing {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
             Log.w(TAG, e);
-        } catch (IOException e) {
-            Log.w(TAG, e);
         }
-        /* Fix IOT issue to replace '&amp;' by '&', &lt; by < and '&gt; by '>' in MessageListing */
-        if (DeviceWorkArounds.addressStartsWith(BluetoothMapService.getRemoteDevice().getAddress(),
-                    DeviceWorkArounds.BREZZA_ZDI_CARKIT)) {
-            return sw.toString()
-                    .replaceAll("&amp;", "&")
-                    .replaceAll("&lt;", "<")
-                    .replaceAll("&gt;", ">")
-                    .getBytes("UTF-8");
-        }
-        return sw.toString().getBytes("UTF-8");
+    }
+
+    private static boolean isBrezzaCarkit() {
+        return DeviceWorkArounds.addressStartsWith(
+                BluetoothMapService.getRemoteDevice().getAddress(),
+                DeviceWorkArounds.BREZZA_ZDI_CARKIT);
     }
 
     public void sort() {
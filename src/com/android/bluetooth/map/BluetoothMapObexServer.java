@@ -33,6 +33,7 @@ import com.android.bluetooth.SignedLongLong;
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -720,6 +721,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             }
 
             long handle = mObserver.pushMessage(message, folderElement, appParams, mBaseUriString);
+            mMasInstance.invalidateMsgListingCounts();
             if (D) {
                 Log.d(TAG, "pushMessage handle: " + handle);
             }
@@ -817,6 +819,9 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_PRECON_FAILED;
         }
 
+        // The observer updates its list of messages along with the provider, so no event is sent
+        // and the folder version counter is left as is.
+        mMasInstance.invalidateMsgListingCounts();
         if (indicator == BluetoothMapAppParams.STATUS_INDICATOR_DELETED) {
             if (!mObserver.setMessageStatusDeleted(handle, msgType, mCurrentFolder, mBaseUriString,
                     value)) {
@@ -1138,12 +1143,11 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private int sendMessageListingRsp(Operation op, BluetoothMapAppParams appParams,
             String folderName) {
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
+        String version = null;
         if (appParams == null) {
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1192,21 +1196,18 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 outList = mOutContent.msgListing(folderToList, appParams);
                 // Generate the byte stream
                 outAppParams.setMessageListingSize(outList.getCount());
-                String version;
                 if (0 < (mRemoteFeatureMask
                         & BluetoothMapUtils.MAP_FEATURE_MESSAGE_LISTING_FORMAT_V11_BIT)) {
                     version = BluetoothMapUtils.MAP_V11_STR;
                 } else {
                     version = BluetoothMapUtils.MAP_V10_STR;
                 }
-                /* This will only set the version, the bit must also be checked before adding any
-                 * 1.1 bits to the listing. */
-                outBytes = outList.encode(mThreadIdSupport, version);
                 hasUnread = outList.hasUnread();
             } else {
-                listSize = mOutContent.msgListingSize(folderToList, appParams);
-                hasUnread = mOutContent.msgListingHasUnread(folderToList, appParams);
-                outAppParams.setMessageListingSize(listSize);
+                BluetoothMapContent.MsgListingCount count =
+                        mOutContent.msgListingCount(folderToList, appParams);
+                hasUnread = count.hasUnread();
+                outAppParams.setMessageListingSize(count.getSize());
                 op.noBodyHeader();
             }
             folderToList.setIngore(false);
@@ -1261,14 +1262,15 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if (outBytes != null) {
+        if (outList != null) {
+            boolean written = false;
             try {
-                while (bytesWritten < outBytes.length && !mIsAborted) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                /* The listing is encoded while being sent, in chunks of at most the packet size.
+                 * This will only set the version, the bit must also be checked before adding any
+                 * 1.1 bits to the listing. */
+                outList.encode(new AbortableOutputStream(outStream, op.getMaxPacketSize()),
+                        mThreadIdSupport, version);
+                written = true;
             } catch (IOException e) {
                 if (D) {
                     Log.w(TAG, e);
@@ -1282,8 +1284,8 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     }
                 }
             }
-            if (bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG, "sendMessageListingRsp: bytesWritten != outBytes.length"
+            if (!written && !mIsAborted) {
+                Log.w(TAG, "sendMessageListingRsp: listing not fully written"
                         + " - sending OBEX_HTTP_BAD_REQUEST");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
@@ -1298,6 +1300,37 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    /**
+     * Writes to the OBEX body stream in chunks of at most the packet size, and stops writing
+     * once the operation is aborted.
+     */
+    private class AbortableOutputStream extends FilterOutputStream {
+        private final int mMaxChunkSize;
+
+        AbortableOutputStream(OutputStream out, int maxChunkSize) {
+            super(out);
+            mMaxChunkSize = maxChunkSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mIsAborted) {
+                    throw new IOException("Operation aborted");
+                }
+                int bytesToWrite = Math.min(mMaxChunkSize, len);
+                out.write(b, off, bytesToWrite);
+                off += bytesToWrite;
+                len -= bytesToWrite;
+            }
+        }
+    }
+
     /**
      * Update the {@link BluetoothMapAppParams} object message type filter mask to only contain
      * message types supported by this mas instance.
@@ -696,6 +696,8 @@ public class BluetoothMapService extends ProfileService {
         TelephonyManager tm = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
         mSmsCapable = tm.isSmsCapable();
 
+        MapContactNameCache.getInstance().start(getContentResolver());
+
         mEnabledAccounts = mAppObserver.getEnabledAccountItems();
         createMasInstances();  // Uses mEnabledAccounts
 
@@ -885,6 +887,7 @@ public class BluetoothMapService extends ProfileService {
             unregisterReceiver(mMapReceiver);
             mAppObserver.shutdown();
         }
+        MapContactNameCache.getInstance().stop();
         sendShutdownMessage();
         return true;
     }
@@ -1361,5 +1364,6 @@ public class BluetoothMapService extends ProfileService {
         for (BluetoothMapAccountItem account : mEnabledAccounts) {
             println(sb, "  " + account);
         }
+        MapContactNameCache.getInstance().dump(sb);
     }
 }
@@ -19,6 +19,7 @@ import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -28,7 +29,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public abstract class BluetoothMapbMessage {
 
@@ -323,16 +326,58 @@ public abstract class BluetoothMapbMessage {
 
     ;
 
-    private static class BMsgReader {
-        InputStream mInStream;
+    @VisibleForTesting
+    static class BMsgReader {
+        private static final int BUFFER_SIZE = 8 * 1024;
+        private static final byte[] END_MSG = "END:MSG".getBytes(StandardCharsets.UTF_8);
+
+        private final InputStream mInStream;
+        /* The bytes read ahead from mInStream */
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mBufferPos = 0;
+        private int mBufferLength = 0;
+        /* Reused for every line, the line read ends at mLineLength */
+        private byte[] mLine = new byte[256];
+        private int mLineLength = 0;
 
         BMsgReader(InputStream is) {
             this.mInStream = is;
         }
 
-        private byte[] getLineAsBytes() {
-            int readByte;
+        private boolean fillBuffer() throws IOException {
+            int bytesRead;
+            do {
+                bytesRead = mInStream.read(mBuffer, 0, mBuffer.length);
+            } while (bytesRead == 0);
+            if (bytesRead < 0) {
+                return false;
+            }
+            mBufferPos = 0;
+            mBufferLength = bytesRead;
+            return true;
+        }
+
+        private void appendToLine(byte[] data, int offset, int length) {
+            if (mLineLength + length > mLine.length) {
+                mLine = Arrays.copyOf(mLine, Math.max(mLine.length * 2, mLineLength + length));
+            }
+            System.arraycopy(data, offset, mLine, mLineLength, length);
+            mLineLength += length;
+        }
+
+        private void appendToLine(int readByte) {
+            if (mLineLength == mLine.length) {
+                mLine = Arrays.copyOf(mLine, mLine.length * 2);
+            }
+            mLine[mLineLength++] = (byte) readByte;
+        }
 
+        /**
+         * Reads the next line into mLine, after the |lineStart| bytes already in it. Lines end
+         * with CRLF, which is not part of the line, and empty lines are skipped.
+         * @return false at end of stream, if no more bytes were read
+         */
+        private boolean readLine(int lineStart) throws IOException {
             /* TODO: Actually the vCard spec. allows to break lines by using a newLine
              * followed by a white space character(space or tab). Not sure this is a good idea to
              * implement as the Bluetooth MAP spec. illustrates vCards using tab alignment,
@@ -340,50 +385,92 @@ public abstract class BluetoothMapbMessage {
              * If we read such a folded line, the folded part will be skipped in the parser
              * UPDATE: Check if we actually do unfold before parsing the input stream
              */
+            mLineLength = lineStart;
+            while (mBufferPos < mBufferLength || fillBuffer()) {
+                int start = mBufferPos;
+                if (mLineLength == lineStart) {
+                    /* Skip empty lines */
+                    while (start < mBufferLength && mBuffer[start] == '\n') {
+                        start++;
+                    }
+                }
+                int end = start;
+                while (end < mBufferLength && mBuffer[end] != '\r') {
+                    end++;
+                }
+                appendToLine(mBuffer, start, end - start);
+                mBufferPos = end;
+                if (end == mBufferLength) {
+                    continue;
+                }
 
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            try {
-                while ((readByte = mInStream.read()) != -1) {
-                    if (readByte == '\r') {
-                        if ((readByte = mInStream.read()) != -1 && readByte == '\n') {
-                            if (output.size() == 0) {
-                                continue; /* Skip empty lines */
-                            } else {
-                                break;
-                            }
-                        } else {
-                            output.write('\r');
-                        }
-                    } else if (readByte == '\n' && output.size() == 0) {
-                        /* Empty line - skip */
-                        continue;
+                mBufferPos++;
+                if (mBufferPos == mBufferLength && !fillBuffer()) {
+                    appendToLine('\r');
+                    break;
+                }
+                int readByte = mBuffer[mBufferPos++];
+                if (readByte == '\n') {
+                    if (mLineLength > lineStart) {
+                        return true;
                     }
+                    /* Skip empty lines */
+                } else {
+                    // A lone CR is part of the line, along with the byte following it
+                    appendToLine('\r');
+                    appendToLine(readByte);
+                }
+            }
+            return mLineLength > lineStart;
+        }
 
-                    output.write(readByte);
+        private boolean lineEquals(int lineStart, byte[] value) {
+            if (mLineLength - lineStart != value.length) {
+                return false;
+            }
+            for (int i = 0; i < value.length; i++) {
+                if (mLine[lineStart + i] != value[i]) {
+                    return false;
                 }
-            } catch (IOException e) {
-                Log.w(TAG, e);
-                return null;
             }
-            return output.toByteArray();
+            return true;
         }
 
         /**
          * Read a line of text from the BMessage.
-         * @return the next line of text, or null at end of file, or if UTF-8 is not supported.
+         * @return the next line of text, or null at end of file, or if an error occurs.
          */
         public String getLine() {
             try {
-                byte[] line = getLineAsBytes();
-                if (line.length == 0) {
+                if (!readLine(0)) {
                     return null;
-                } else {
-                    return new String(line, "UTF-8");
                 }
-            } catch (UnsupportedEncodingException e) {
+            } catch (IOException e) {
                 Log.w(TAG, e);
                 return null;
             }
+            return new String(mLine, 0, mLineLength, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Read the lines of a message up to the END:MSG line, joined without line breaks. The
+         * lines are read straight into one buffer, and decoded once.
+         * @return the message content
+         * @throws IllegalArgumentException if we run out of lines before END:MSG.
+         */
+        public String getMsgContent() {
+            int length = 0;
+            try {
+                while (readLine(length)) {
+                    if (lineEquals(length, END_MSG)) {
+                        return new String(mLine, 0, length, StandardCharsets.UTF_8);
+                    }
+                    length = mLineLength;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, e);
+            }
+            throw new IllegalArgumentException("Bmessage too short");
         }
 
         /**
@@ -449,9 +536,11 @@ public abstract class BluetoothMapbMessage {
             byte[] data = new byte[length];
             try {
                 int bytesRead;
-                int offset = 0;
-                while ((bytesRead = mInStream.read(data, offset, length - offset)) != (length
-                        - offset)) {
+                int offset = Math.min(length, mBufferLength - mBufferPos);
+                System.arraycopy(mBuffer, mBufferPos, data, 0, offset);
+                mBufferPos += offset;
+                while (offset < length) {
+                    bytesRead = mInStream.read(data, offset, length - offset);
                     if (bytesRead == -1) {
                         return null;
                     }
@@ -775,12 +864,7 @@ public abstract class BluetoothMapbMessage {
                  * the length field.*/
 
                 // Read until we receive END:MSG as some carkits send bad message lengths
-                String data = "";
-                String messageLine = "";
-                while (!messageLine.equals("END:MSG")) {
-                    data += messageLine;
-                    messageLine = reader.getLineEnforce();
-                }
+                String data = reader.getMsgContent();
 
                 // The MAP spec says that all END:MSG strings in the body
                 // of the message must be escaped upon encoding and the
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.PhoneLookup;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.ProfileService;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of the contacts matching phone numbers, shared by the MAP message listings,
+ * conversation listings and new message events.
+ *
+ * <p>Contacts are only cached while the cache is started, as a contacts observer is needed to
+ * drop entries that may be stale. Numbers without a matching contact are cached as well. The
+ * least recently used entries are evicted above {@link #MAX_ENTRIES}.
+ */
+/*package*/ class MapContactNameCache {
+    private static final String TAG = "MapContactNameCache";
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 1000;
+    // Work profile contacts changes are not notified to this user, hence the cache is also
+    // dropped once it gets this old.
+    private static final long MAX_AGE_MS = 60 * 60 * 1000;
+
+    private static final String[] CONTACT_PROJECTION = {Contacts._ID, Contacts.DISPLAY_NAME};
+    private static final String CONTACT_SEL_VISIBLE = Contacts.IN_VISIBLE_GROUP + "=1";
+    private static final String CONTACT_ORDER_BY = Contacts.DISPLAY_NAME + " ASC";
+
+    // Cached for numbers without a matching contact.
+    private static final MapContact NO_CONTACT = MapContact.create(-1, null);
+
+    private static MapContactNameCache sInstance;
+    private static final Object INSTANCE_LOCK = new Object();
+
+    @GuardedBy("this")
+    private final Map<String, MapContact> mContacts =
+            new LinkedHashMap<String, MapContact>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MapContact> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    // Non null while started.
+    @GuardedBy("this")
+    private ContentResolver mResolver;
+    // Incremented on every invalidation, so that lookups racing with one are not cached.
+    @GuardedBy("this")
+    private int mGeneration;
+    @GuardedBy("this")
+    private long mFirstEntryMillis;
+    @GuardedBy("this")
+    private long mHits;
+    @GuardedBy("this")
+    private long mNoContactHits;
+    @GuardedBy("this")
+    private long mMisses;
+    @GuardedBy("this")
+    private long mInvalidations;
+
+    @VisibleForTesting
+    final ContentObserver mContentObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    @VisibleForTesting
+    MapContactNameCache() {}
+
+    /**
+     * Get the process wide instance
+     *
+     * @return the instance, guaranteed not null
+     */
+    static MapContactNameCache getInstance() {
+        synchronized (INSTANCE_LOCK) {
+            if (sInstance == null) {
+                sInstance = new MapContactNameCache();
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts caching the contacts, until {@link #stop()} is called.
+     *
+     * @param resolver the ContentResolver used to observe the contacts changes
+     */
+    void start(ContentResolver resolver) {
+        synchronized (this) {
+            if (mResolver != null) {
+                return;
+            }
+        }
+        try {
+            resolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                    mContentObserver);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Unable to observe contacts changes, contacts will not be cached", e);
+            return;
+        }
+        synchronized (this) {
+            mResolver = resolver;
+        }
+    }
+
+    /**
+     * Stops caching the contacts and drops the cached ones.
+     */
+    void stop() {
+        ContentResolver resolver;
+        synchronized (this) {
+            resolver = mResolver;
+            mResolver = null;
+            mContacts.clear();
+            mGeneration++;
+        }
+        if (resolver != null) {
+            resolver.unregisterContentObserver(mContentObserver);
+        }
+    }
+
+    private synchronized void invalidate() {
+        if (mContacts.size() > 0) {
+            mInvalidations++;
+        }
+        mContacts.clear();
+        mGeneration++;
+    }
+
+    /**
+     * Lookup a contact in the Android Contacts database.
+     *
+     * @param phone the phone number of the contact
+     * @param resolver the ContentResolver to use
+     * @return the contact, or null if no contact was found
+     */
+    MapContact getContact(String phone, ContentResolver resolver) {
+        if (TextUtils.isEmpty(phone)) {
+            return null;
+        }
+        int generation;
+        synchronized (this) {
+            if (mContacts.size() > 0
+                    && SystemClock.elapsedRealtime() - mFirstEntryMillis > MAX_AGE_MS) {
+                invalidate();
+            }
+            MapContact contact = mContacts.get(phone);
+            if (contact == NO_CONTACT) {
+                mHits++;
+                mNoContactHits++;
+                return null;
+            } else if (contact != null) {
+                mHits++;
+                return contact;
+            }
+            mMisses++;
+            generation = mGeneration;
+        }
+
+        MapContact contact = queryContact(phone, resolver);
+        synchronized (this) {
+            if (mResolver != null && generation == mGeneration) {
+                if (mContacts.isEmpty()) {
+                    mFirstEntryMillis = SystemClock.elapsedRealtime();
+                }
+                mContacts.put(phone, contact != null ? contact : NO_CONTACT);
+            }
+        }
+        return contact;
+    }
+
+    /**
+     * Lookup a contact name in the Android Contacts database.
+     *
+     * @return the name of the contact, or null if no contact was found
+     */
+    String getName(String phone, ContentResolver resolver) {
+        MapContact contact = getContact(phone, resolver);
+        return contact != null ? contact.getName() : null;
+    }
+
+    private static MapContact queryContact(String phone, ContentResolver resolver) {
+        Uri uri =
+                Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, Uri.encode(phone));
+        Cursor c = resolver.query(uri, CONTACT_PROJECTION, CONTACT_SEL_VISIBLE, null,
+                CONTACT_ORDER_BY);
+        try {
+            if (c != null && c.moveToFirst()) {
+                return MapContact.create(c.getLong(c.getColumnIndex(Contacts._ID)),
+                        c.getString(c.getColumnIndex(Contacts.DISPLAY_NAME)));
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return null;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        long lookups = mHits + mMisses;
+        ProfileService.println(sb, "Contact name cache (" + (mResolver != null ? "started"
+                : "stopped") + "): " + mContacts.size() + " entries, " + mHits + " hits ("
+                + mNoContactHits + " without contact), " + mMisses + " misses, hit rate "
+                + (lookups > 0 ? mHits * 100 / lookups : 0) + "%, " + mInvalidations
+                + " invalidations");
+    }
+}
@@ -19,9 +19,6 @@ import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
-import android.provider.ContactsContract;
-import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.PhoneLookup;
 import android.provider.Telephony.CanonicalAddressesColumns;
 import android.provider.Telephony.MmsSms;
 import android.util.Log;
@@ -32,7 +29,8 @@ import java.util.regex.Pattern;
 
 /**
  * Use these functions when extracting data for listings. It caches frequently used data to
- * speed up building large listings - e.g. before applying filtering.
+ * speed up building large listings - e.g. before applying filtering. Contacts are cached by the
+ * process wide {@link MapContactNameCache}.
  */
 @TargetApi(19)
 public class SmsMmsContacts {
@@ -40,7 +38,6 @@ public class SmsMmsContacts {
     private static final String TAG = "SmsMmsContacts";
 
     private HashMap<Long, String> mPhoneNumbers = null;
-    private final HashMap<String, MapContact> mNames = new HashMap<String, MapContact>(10);
 
     private static final Uri ADDRESS_URI =
             MmsSms.CONTENT_URI.buildUpon().appendPath("canonical-addresses").build();
@@ -53,13 +50,6 @@ public class SmsMmsContacts {
     private static final int COL_ADDR_ADDR =
             Arrays.asList(ADDRESS_PROJECTION).indexOf(CanonicalAddressesColumns.ADDRESS);
 
-    private static final String[] CONTACT_PROJECTION = {Contacts._ID, Contacts.DISPLAY_NAME};
-    private static final String CONTACT_SEL_VISIBLE = Contacts.IN_VISIBLE_GROUP + "=1";
-    private static final int COL_CONTACT_ID =
-            Arrays.asList(CONTACT_PROJECTION).indexOf(Contacts._ID);
-    private static final int COL_CONTACT_NAME =
-            Arrays.asList(CONTACT_PROJECTION).indexOf(Contacts.DISPLAY_NAME);
-
     /**
      * Get a contacts phone number based on the canonical addresses id of the contact.
      * (The ID listed in the Threads table.)
@@ -101,9 +91,6 @@ public class SmsMmsContacts {
         if (mPhoneNumbers != null) {
             mPhoneNumbers.clear();
         }
-        if (mNames != null) {
-            mNames.clear();
-        }
     }
 
     /**
@@ -147,61 +134,30 @@ public class SmsMmsContacts {
     }
 
     /**
-     * Lookup a contacts name in the Android Contacts database.
+     * Lookup a contacts name in the Android Contacts database, through the shared
+     * {@link MapContactNameCache}.
      * @param phone the phone number of the contact
      * @param resolver the ContentResolver to use.
+     * @param contactNameFilter if not null, only return a contact whose name contains it, with
+     *                          "*" as wildcard.
      * @return the name of the contact or null, if no contact was found.
      */
     public MapContact getContactNameFromPhone(String phone, ContentResolver resolver,
             String contactNameFilter) {
-        MapContact contact = mNames.get(phone);
-
-        if (contact != null) {
-            if (contact.getId() < 0) {
-                return null;
-            }
-            if (contactNameFilter == null) {
-                return contact;
-            }
-            // Validate filter
-            String searchString = contactNameFilter.replace("*", ".*");
-            searchString = ".*" + searchString + ".*";
-            Pattern p = Pattern.compile(Pattern.quote(searchString), Pattern.CASE_INSENSITIVE);
-            if (p.matcher(contact.getName()).find()) {
-                return contact;
-            }
-            return null;
+        MapContact contact = MapContactNameCache.getInstance().getContact(phone, resolver);
+        if (contact == null || contactNameFilter == null) {
+            return contact;
         }
-
-        // TODO: Should we change to extract both formatted name, and display name?
-
-        Uri uri =
-                Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, Uri.encode(phone));
-        String selection = CONTACT_SEL_VISIBLE;
-        String[] selectionArgs = null;
-        if (contactNameFilter != null) {
-            selection += "AND " + ContactsContract.Contacts.DISPLAY_NAME + " like ?";
-            selectionArgs = new String[]{"%" + contactNameFilter.replace("*", "%") + "%"};
+        // Same match as "LIKE %filter%" with "*" replaced by "%"
+        StringBuilder searchString = new StringBuilder(".*");
+        for (String part : contactNameFilter.split("\\*", -1)) {
+            searchString.append(Pattern.quote(part)).append(".*");
         }
-
-        Cursor c = resolver.query(uri, CONTACT_PROJECTION, selection, selectionArgs, null);
-        try {
-            if (c != null && c.getCount() >= 1) {
-                c.moveToFirst();
-                long id = c.getLong(COL_CONTACT_ID);
-                String name = c.getString(COL_CONTACT_NAME);
-                contact = MapContact.create(id, name);
-                mNames.put(phone, contact);
-            } else {
-                contact = MapContact.create(-1, null);
-                mNames.put(phone, contact);
-                contact = null;
-            }
-        } finally {
-            if (c != null) {
-                c.close();
-            }
+        Pattern p = Pattern.compile(searchString.toString(),
+                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+        if (contact.getName() != null && p.matcher(contact.getName()).matches()) {
+            return contact;
         }
-        return contact;
+        return null;
     }
 }
@@ -51,6 +51,7 @@ import com.android.bluetooth.hfp.HeadsetService;
 import androidx.annotation.VisibleForTesting;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
@@ -190,6 +191,7 @@ public class BluetoothInCallService extends InCallService {
             if (call.isExternalCall()) {
                 return;
             }
+            mCallInfo.updateCallStates();
             if (state == Call.STATE_DISCONNECTING) {
                 mLastState = state;
                 return;
@@ -345,6 +347,7 @@ public class BluetoothInCallService extends InCallService {
         synchronized (LOCK) {
             enforceModifyPermission();
             Log.i(TAG, "BT - answering call");
+            mCallInfo.updateCallStates();
             BluetoothCall call = mCallInfo.getRingingOrSimulatedRingingCall();
             if (mCallInfo.isNullCall(call)) {
                 return false;
@@ -359,6 +362,7 @@ public class BluetoothInCallService extends InCallService {
         synchronized (LOCK) {
             enforceModifyPermission();
             Log.i(TAG, "BT - hanging up call");
+            mCallInfo.updateCallStates();
             BluetoothCall call = mCallInfo.getForegroundCall();
             if (mCallInfo.isNullCall(call)) {
                 return false;
@@ -384,6 +388,7 @@ public class BluetoothInCallService extends InCallService {
         synchronized (LOCK) {
             enforceModifyPermission();
             Log.i(TAG, "BT - sendDtmf " + dtmf);
+            mCallInfo.updateCallStates();
             BluetoothCall call = mCallInfo.getForegroundCall();
             if (mCallInfo.isNullCall(call)) {
                 return false;
@@ -401,6 +406,7 @@ public class BluetoothInCallService extends InCallService {
         synchronized (LOCK) {
             enforceModifyPermission();
             Log.i(TAG, "getNetworkOperator");
+            mCallInfo.updateCallStates();
             PhoneAccount account = mCallInfo.getBestPhoneAccount();
             if (account != null && account.getLabel() != null) {
                 return account.getLabel().toString();
@@ -415,6 +421,7 @@ public class BluetoothInCallService extends InCallService {
         synchronized (LOCK) {
             enforceModifyPermission();
             Log.i(TAG, "getSubscriberNumber");
+            mCallInfo.updateCallStates();
             String address = null;
             PhoneAccount account = mCallInfo.getBestPhoneAccount();
             if (account != null) {
@@ -443,6 +450,7 @@ public class BluetoothInCallService extends InCallService {
             if (logQuery) {
                 Log.i(TAG, "listcurrentCalls");
             }
+            mCallInfo.updateCallStates();
 
             sendListOfCalls(logQuery);
             return true;
@@ -465,6 +473,7 @@ public class BluetoothInCallService extends InCallService {
             enforceModifyPermission();
             long token = Binder.clearCallingIdentity();
             Log.i(TAG, "processChld " + chld);
+            mCallInfo.updateCallStates();
             return _processChld(chld);
         }
     }
@@ -480,7 +489,11 @@ public class BluetoothInCallService extends InCallService {
             call.registerCallback(callback);
 
             mBluetoothCallHashMap.put(call.getTelecomCallId(), call);
+            mCallInfo.onCallAdded(call);
             updateHeadsetWithCallState(false /* force */);
+        } else {
+            // A call that is no longer external is tracked again.
+            mCallInfo.onCallAdded(call);
         }
     }
 
@@ -519,6 +532,8 @@ public class BluetoothInCallService extends InCallService {
     }
 
     public void onCallRemoved(BluetoothCall call) {
+        // Also stop tracking a call that turned external, or that was external when removed.
+        mCallInfo.onCallRemoved(call);
         if (call.isExternalCall()) {
             return;
         }
@@ -828,6 +843,7 @@ public class BluetoothInCallService extends InCallService {
      * has changed.
      */
     private void updateHeadsetWithCallState(boolean force) {
+        mCallInfo.updateCallStates();
         BluetoothCall activeCall = mCallInfo.getActiveCall();
         BluetoothCall ringingCall = mCallInfo.getRingingOrSimulatedRingingCall();
         BluetoothCall heldCall = mCallInfo.getHeldCall();
@@ -1044,29 +1060,93 @@ public class BluetoothInCallService extends InCallService {
     // extract call information functions out into this part, so we can mock it in testing
     @VisibleForTesting
     public class CallInfo {
+        // Call states are used as indexes, up to the highest Call.STATE_* value.
+        private static final int CALL_STATE_COUNT = Call.STATE_SIMULATED_RINGING + 1;
+
+        // Calls added with onCallAdded(), in the order they were added.
+        private final ArrayList<BluetoothCall> mCalls = new ArrayList<>();
+        // Position in mCalls of the first call in each state, -1 if there is none.
+        private final int[] mFirstPositionByState = new int[CALL_STATE_COUNT];
+        // Number of calls in each state.
+        private final int[] mNumCallsByState = new int[CALL_STATE_COUNT];
+        private int mNumIndexedCalls;
+
+        public CallInfo() {
+            Arrays.fill(mFirstPositionByState, -1);
+        }
+
+        public synchronized void onCallAdded(BluetoothCall call) {
+            if (mCalls.contains(call)) {
+                return;
+            }
+            mCalls.add(call);
+            updateCallStates();
+        }
+
+        public synchronized void onCallRemoved(BluetoothCall call) {
+            mCalls.remove(call);
+            updateCallStates();
+        }
+
+        /**
+         * Indexes the calls by their current state, in one pass and without allocating, so the
+         * getters below do not need to go through the calls again.
+         */
+        public synchronized void updateCallStates() {
+            Arrays.fill(mFirstPositionByState, -1);
+            Arrays.fill(mNumCallsByState, 0);
+            mNumIndexedCalls = 0;
+            for (int position = 0; position < mCalls.size(); position++) {
+                BluetoothCall call = mCalls.get(position);
+                if (isNullCall(call)) {
+                    continue;
+                }
+                mNumIndexedCalls++;
+                int state = call.getState();
+                if (state < 0 || state >= CALL_STATE_COUNT) {
+                    continue;
+                }
+                if (mFirstPositionByState[state] == -1) {
+                    mFirstPositionByState[state] = position;
+                }
+                mNumCallsByState[state]++;
+            }
+        }
+
+        private int getFirstPosition(int state) {
+            if (state < 0 || state >= CALL_STATE_COUNT) {
+                return -1;
+            }
+            return mFirstPositionByState[state];
+        }
 
-        public BluetoothCall getForegroundCall() {
-            LinkedHashSet<Integer> states = new LinkedHashSet<Integer>();
+        private int getEarlierPosition(int position, int otherPosition) {
+            if (position == -1 || (otherPosition != -1 && otherPosition < position)) {
+                return otherPosition;
+            }
+            return position;
+        }
+
+        private BluetoothCall getCallAt(int position) {
+            return position == -1 ? null : mCalls.get(position);
+        }
+
+        public synchronized BluetoothCall getForegroundCall() {
             BluetoothCall foregroundCall;
 
-            states.add(Call.STATE_CONNECTING);
-            foregroundCall = getCallByStates(states);
+            foregroundCall = getCallByState(Call.STATE_CONNECTING);
             if (!mCallInfo.isNullCall(foregroundCall)) {
                 return foregroundCall;
             }
 
-            states.clear();
-            states.add(Call.STATE_ACTIVE);
-            states.add(Call.STATE_DIALING);
-            states.add(Call.STATE_PULLING_CALL);
-            foregroundCall = getCallByStates(states);
+            foregroundCall = getCallAt(getEarlierPosition(getEarlierPosition(
+                    getFirstPosition(Call.STATE_ACTIVE), getFirstPosition(Call.STATE_DIALING)),
+                    getFirstPosition(Call.STATE_PULLING_CALL)));
             if (!mCallInfo.isNullCall(foregroundCall)) {
                 return foregroundCall;
             }
 
-            states.clear();
-            states.add(Call.STATE_RINGING);
-            foregroundCall = getCallByStates(states);
+            foregroundCall = getCallByState(Call.STATE_RINGING);
             if (!mCallInfo.isNullCall(foregroundCall)) {
                 return foregroundCall;
             }
@@ -1074,67 +1154,46 @@ public class BluetoothInCallService extends InCallService {
             return null;
         }
 
-        public BluetoothCall getCallByStates(LinkedHashSet<Integer> states) {
-            List<BluetoothCall> calls = getBluetoothCalls();
-            for (BluetoothCall call : calls) {
-                if (states.contains(call.getState())) {
-                    return call;
-                }
+        public synchronized BluetoothCall getCallByStates(LinkedHashSet<Integer> states) {
+            int position = -1;
+            for (int state : states) {
+                position = getEarlierPosition(position, getFirstPosition(state));
             }
-            return null;
+            return getCallAt(position);
         }
 
-        public BluetoothCall getCallByState(int state) {
-            List<BluetoothCall> calls = getBluetoothCalls();
-            for (BluetoothCall call : calls) {
-                if (state == call.getState()) {
-                    return call;
-                }
-            }
-            return null;
+        public synchronized BluetoothCall getCallByState(int state) {
+            return getCallAt(getFirstPosition(state));
         }
 
-        public int getNumHeldCalls() {
-            int number = 0;
-            List<BluetoothCall> calls = getBluetoothCalls();
-            for (BluetoothCall call : calls) {
-                if (call.getState() == Call.STATE_HOLDING) {
-                    number++;
-                }
-            }
-            return number;
+        public synchronized int getNumHeldCalls() {
+            return mNumCallsByState[Call.STATE_HOLDING];
         }
 
-        public boolean hasOnlyDisconnectedCalls() {
-            List<BluetoothCall> calls = getBluetoothCalls();
-            if (calls.size() == 0) {
-                return false;
-            }
-            for (BluetoothCall call : calls) {
-                if (call.getState() != Call.STATE_DISCONNECTED) {
-                    return false;
-                }
-            }
-            return true;
+        public synchronized boolean hasOnlyDisconnectedCalls() {
+            return mNumIndexedCalls > 0
+                    && mNumCallsByState[Call.STATE_DISCONNECTED] == mNumIndexedCalls;
         }
 
-        public List<BluetoothCall> getBluetoothCalls() {
-            return getBluetoothCallsByIds(BluetoothCall.getIds(getCalls()));
+        public synchronized List<BluetoothCall> getBluetoothCalls() {
+            List<BluetoothCall> calls = new ArrayList<>(mCalls.size());
+            for (BluetoothCall call : mCalls) {
+                if (!isNullCall(call)) {
+                    calls.add(call);
+                }
+            }
+            return calls;
         }
 
-        public BluetoothCall getOutgoingCall() {
-            LinkedHashSet<Integer> states = new LinkedHashSet<Integer>();
-            states.add(Call.STATE_CONNECTING);
-            states.add(Call.STATE_DIALING);
-            states.add(Call.STATE_PULLING_CALL);
-            return getCallByStates(states);
+        public synchronized BluetoothCall getOutgoingCall() {
+            return getCallAt(getEarlierPosition(getEarlierPosition(
+                    getFirstPosition(Call.STATE_CONNECTING), getFirstPosition(Call.STATE_DIALING)),
+                    getFirstPosition(Call.STATE_PULLING_CALL)));
         }
 
-        public BluetoothCall getRingingOrSimulatedRingingCall() {
-            LinkedHashSet<Integer> states = new LinkedHashSet<Integer>();
-            states.add(Call.STATE_RINGING);
-            states.add(Call.STATE_SIMULATED_RINGING);
-            return getCallByStates(states);
+        public synchronized BluetoothCall getRingingOrSimulatedRingingCall() {
+            return getCallAt(getEarlierPosition(getFirstPosition(Call.STATE_RINGING),
+                    getFirstPosition(Call.STATE_SIMULATED_RINGING)));
         }
 
         public BluetoothCall getActiveCall() {
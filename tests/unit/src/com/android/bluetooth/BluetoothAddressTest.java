@@ -0,0 +1,87 @@
+package com.android.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link BluetoothAddress}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothAddressTest {
+    private static final String TEST_ADDRESS = "00:11:22:AA:BB:CC";
+    private static final byte[] TEST_ADDRESS_BYTES =
+            new byte[] {0x00, 0x11, 0x22, (byte) 0xaa, (byte) 0xbb, (byte) 0xcc};
+    private static final int TEST_DEVICE_COUNT = 300;
+
+    @Test
+    public void testConversions() {
+        BluetoothAddress address = BluetoothAddress.fromBytes(TEST_ADDRESS_BYTES);
+        Assert.assertEquals(0x001122AABBCCL, address.toLong());
+        Assert.assertEquals(TEST_ADDRESS, address.toString());
+        Assert.assertEquals(Utils.getAddressStringFromByte(TEST_ADDRESS_BYTES),
+                address.toString());
+        Assert.assertArrayEquals(TEST_ADDRESS_BYTES, address.toBytes());
+        Assert.assertEquals(address, BluetoothAddress.fromString("00:11:22:aa:bb:cc"));
+        Assert.assertEquals(address, BluetoothAddress.of(0xFFFF001122AABBCCL));
+    }
+
+    @Test
+    public void testInterning() {
+        BluetoothAddress address = BluetoothAddress.fromString(TEST_ADDRESS);
+        Assert.assertSame(address, BluetoothAddress.fromBytes(TEST_ADDRESS_BYTES));
+        Assert.assertSame(address.toString(), BluetoothAddress.fromString(TEST_ADDRESS).toString());
+
+        BluetoothDevice device = address.getAnonymousDevice();
+        Assert.assertEquals(TEST_ADDRESS, device.getAddress());
+        // Devices are mutable, so each caller gets its own.
+        BluetoothDevice other = BluetoothAddress.fromBytes(TEST_ADDRESS_BYTES).getAnonymousDevice();
+        Assert.assertNotSame(device, other);
+        Assert.assertEquals(device, other);
+    }
+
+    @Test
+    public void testInvalidAddress() {
+        String[] invalid = {"00:11:22:AA:BB", "00-11-22-AA-BB-CC", "00:11:22:AA:BB:CG", null};
+        for (String address : invalid) {
+            try {
+                BluetoothAddress.fromString(address);
+                Assert.fail("Accepted " + address);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            BluetoothAddress.fromBytes(new byte[5]);
+            Assert.fail("Accepted a 5 byte address");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Checks that {@link BluetoothAddress} agrees with {@link Utils} and
+     * {@link BluetoothAdapter#getRemoteDevice} over many reported addresses.
+     */
+    @Test
+    public void testConversions_matchUtils() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        for (int i = 0; i < TEST_DEVICE_COUNT; i++) {
+            byte[] bytes = new byte[] {0x10, 0x20, 0x30, 0x40, (byte) (i >> 8), (byte) i};
+            String expected = Utils.getAddressStringFromByte(bytes);
+
+            BluetoothAddress address = BluetoothAddress.fromBytes(bytes);
+            Assert.assertEquals(expected, address.toString());
+            Assert.assertEquals(adapter.getRemoteDevice(expected),
+                    address.getAnonymousDevice());
+            Assert.assertSame(address, BluetoothAddress.fromString(expected));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import static org.mockito.Mockito.*;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.a2dp.A2dpService;
+import com.android.bluetooth.avrcp.AvrcpTargetService;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ProfileStartSchedulerTest {
+    private ProfileStartScheduler mScheduler;
+    private ProfileService mA2dp;
+    private ProfileService mAvrcp;
+
+    @Before
+    public void setUp() {
+        // Start parallel profiles inline so the order of starts is deterministic.
+        mScheduler = new ProfileStartScheduler(new Handler(Looper.getMainLooper()), Runnable::run);
+        mA2dp = mockProfile("A2dpService");
+        mAvrcp = mockProfile("AvrcpTargetService");
+    }
+
+    private static ProfileService mockProfile(String name) {
+        ProfileService profile = mock(ProfileService.class);
+        doReturn(name).when(profile).getName();
+        doReturn(true).when(profile).supportsParallelStart();
+        return profile;
+    }
+
+    @Test
+    public void testSchedule_holdsBackProfileUntilDependencyStarted() {
+        mScheduler.setParallelStartEnabled(true);
+        mScheduler.beginStartup(new Class[] {A2dpService.class, AvrcpTargetService.class});
+
+        mScheduler.schedule(mAvrcp);
+        verify(mAvrcp, never()).startProfile();
+
+        mScheduler.schedule(mA2dp);
+        InOrder order = inOrder(mA2dp, mAvrcp);
+        order.verify(mA2dp).startProfile();
+        order.verify(mAvrcp).startProfile();
+
+        StringWriter dump = new StringWriter();
+        mScheduler.dump(new PrintWriter(dump));
+        Assert.assertTrue(dump.toString().contains("AvrcpTargetService: "));
+        Assert.assertFalse(dump.toString().contains("in progress"));
+    }
+
+    @Test
+    public void testCancel_dropsHeldBackProfile() {
+        mScheduler.setParallelStartEnabled(true);
+        mScheduler.beginStartup(new Class[] {A2dpService.class, AvrcpTargetService.class});
+
+        mScheduler.schedule(mAvrcp);
+        Assert.assertTrue(mScheduler.cancel(mAvrcp));
+        mScheduler.schedule(mA2dp);
+
+        verify(mA2dp).startProfile();
+        verify(mAvrcp, never()).startProfile();
+    }
+
+    @Test
+    public void testDump_reportsCostOfDeferredActivations() {
+        mScheduler.setLazyActivationEnabled(true);
+        mScheduler.beginStartup(new Class[] {A2dpService.class, AvrcpTargetService.class});
+        mScheduler.onProfileActivated("A2dpService", 20, 4096, 8192);
+        mScheduler.onActivationDeferred("AvrcpTargetService");
+
+        // Deferred again in the next startup, with the cost measured on first use.
+        mScheduler.onProfileActivated("AvrcpTargetService", 12, 2048, 1024);
+        mScheduler.beginStartup(new Class[] {A2dpService.class, AvrcpTargetService.class});
+        mScheduler.onActivationDeferred("AvrcpTargetService");
+
+        StringWriter dump = new StringWriter();
+        mScheduler.dump(new PrintWriter(dump));
+        Assert.assertTrue(dump.toString().contains("AvrcpTargetService: deferred, not used yet"));
+        Assert.assertTrue(
+                dump.toString().contains("saved: startup 12 ms, heap 2 KB, native heap 1 KB"));
+    }
+}
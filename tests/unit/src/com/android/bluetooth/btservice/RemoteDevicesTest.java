@@ -469,6 +469,26 @@ public class RemoteDevicesTest {
         return intent;
     }
 
+    @Test
+    public void testAddDeviceProperties_evictsOldestUnbondedDevice() {
+        byte[] bonded = Utils.getBytesFromAddress("00:00:00:00:00:01");
+        mRemoteDevices.addDeviceProperties(bonded).setBondState(BluetoothDevice.BOND_BONDED);
+        byte[] oldest = Utils.getBytesFromAddress("00:00:00:00:00:02");
+        mRemoteDevices.addDeviceProperties(oldest);
+        for (int i = 0; i < 200; i++) {
+            mRemoteDevices.addDeviceProperties(new byte[] {0x10, 0, 0, 0, (byte) (i >> 8),
+                    (byte) i});
+        }
+
+        // The bonded device is pinned, the next oldest one is evicted.
+        Assert.assertNotNull(mRemoteDevices.getDevice(bonded));
+        Assert.assertNull(mRemoteDevices.getDevice(oldest));
+        Assert.assertNotNull(mRemoteDevices.getDevice(new byte[] {0x10, 0, 0, 0, 0, 0}));
+        Assert.assertNotNull(mRemoteDevices.getDeviceProperties(
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:00:00:00:00:01")));
+        verify(mAdapterService, never()).getBondedDevices();
+    }
+
     private static Intent getVendorSpecificHeadsetEventIntent(String command, int companyId,
             int commandType, Object[] arguments, BluetoothDevice device) {
         Intent intent = new Intent(BluetoothHeadset.ACTION_VENDOR_SPECIFIC_HEADSET_EVENT);
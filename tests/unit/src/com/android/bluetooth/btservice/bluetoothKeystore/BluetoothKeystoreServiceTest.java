@@ -113,6 +113,9 @@ public final class BluetoothKeystoreServiceTest {
             "LE_KEY_LID ="
             );
 
+    // Number of synthetic bonded devices, each with all the encrypted key types.
+    private static final int LARGE_CONFIG_DEVICE_COUNT = 200;
+
     private List<String> mConfigData = new ArrayList<>();
 
     private Map<String, String> mNameDecryptKeyResult = new HashMap<>();
@@ -176,6 +179,24 @@ public final class BluetoothKeystoreServiceTest {
                 "aec555555555555555555555555555555555555555555555");
     }
 
+    private List<String> createLargeConfigData(Map<String, String> expectedKeys) {
+        List<String> data = new ArrayList<>(mConfigTestData.subList(0, 15));
+        List<String> keyNames = List.of("LinkKey", "LE_KEY_PENC", "LE_KEY_PID", "LE_KEY_LID",
+                "LE_KEY_PCSRK", "LE_KEY_LENC", "LE_KEY_LCSRK");
+        for (int device = 0; device < LARGE_CONFIG_DEVICE_COUNT; device++) {
+            String address = String.format("00:11:22:33:%02x:%02x", device >> 8, device & 0xff);
+            data.add("");
+            data.add("[" + address + "]");
+            data.add("Name = Device" + device);
+            for (String keyName : keyNames) {
+                String value = String.format("%08x%032x", device, keyName.hashCode());
+                data.add(keyName + " = " + value);
+                expectedKeys.put(address + "-" + keyName, value);
+            }
+        }
+        return data;
+    }
+
     private boolean doCompareKeySet(Map<String, String> map1, Map<String, String> map2) {
         return map1.keySet().equals(map2.keySet());
     }
@@ -309,4 +330,148 @@ public final class BluetoothKeystoreServiceTest {
 
         Assert.assertTrue(mBluetoothKeystoreService.getCompareResult() == 0);
     }
+
+    @Test
+    public void testEncryptDecryptLargeConfig() {
+        Map<String, String> expectedKeys = new HashMap<>();
+        overwriteConfigFile(createLargeConfigData(expectedKeys));
+        Assert.assertTrue(expectedKeys.size() >= 1000);
+
+        Assert.assertTrue(parseConfigFile(CONFIG_FILE_PATH));
+        // Wait for encryption to complete
+        mBluetoothKeystoreService.stopThread();
+        Assert.assertTrue(doCompareKeySet(expectedKeys,
+                mBluetoothKeystoreService.getNameEncryptKey()));
+
+        mBluetoothKeystoreService.saveEncryptedKey();
+        mBluetoothKeystoreService.cleanupMemory();
+
+        Assert.assertTrue(loadEncryptionFile(CONFIG_FILE_ENCRYPTION_PATH, true));
+        // Wait for decryption to complete
+        mBluetoothKeystoreService.stopThread();
+        Assert.assertTrue(doCompareMap(expectedKeys,
+                mBluetoothKeystoreService.getNameDecryptKey()));
+    }
+
+    @Test
+    public void testSetEncryptKeyRepeatedlyKeepsLastValue() {
+        String prefixString = "aa:bb:cc:dd:ee:ff-LinkKey";
+        String removedPrefixString = "11:22:33:44:55:77-LinkKey";
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(setEncryptKeyOrRemoveKey(prefixString, String.format("%032x", i)));
+        }
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(removedPrefixString,
+                "00112233445566778899aabbccddeeff"));
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(removedPrefixString, ""));
+
+        // Waits for the pending keys without stopping the compute threads.
+        mBluetoothKeystoreService.saveEncryptedKey();
+        Assert.assertFalse(mBluetoothKeystoreService.getNameEncryptKey()
+                .containsKey(removedPrefixString));
+
+        mBluetoothKeystoreService.cleanupMemory();
+        Assert.assertTrue(loadEncryptionFile(CONFIG_FILE_ENCRYPTION_PATH, true));
+        // Wait for decryption to complete
+        mBluetoothKeystoreService.stopThread();
+        Assert.assertEquals(String.format("%032x", 99),
+                mBluetoothKeystoreService.getNameDecryptKey().get(prefixString));
+        Assert.assertFalse(mBluetoothKeystoreService.getNameDecryptKey()
+                .containsKey(removedPrefixString));
+    }
+
+    private List<String> createTwoDeviceConfigData() {
+        List<String> data = new ArrayList<>(mConfigTestData);
+        data.addAll(List.of("",
+                "[11:22:33:44:55:77]",
+                "Name = Other",
+                "LinkKey = 00112233445566778899aabbccddeeff"));
+        return data;
+    }
+
+    private void setUpTwoDeviceConfig() {
+        overwriteConfigFile(createTwoDeviceConfigData());
+        for (Map.Entry<String, String> entry : mNameDecryptKeyResult.entrySet()) {
+            Assert.assertTrue(setEncryptKeyOrRemoveKey(entry.getKey(), entry.getValue()));
+        }
+        Assert.assertTrue(setEncryptKeyOrRemoveKey("11:22:33:44:55:77-LinkKey",
+                "00112233445566778899aabbccddeeff"));
+        // First checksum, the reference for the next ones.
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(CONFIG_FILE_PREFIX, CONFIG_FILE_HASH));
+    }
+
+    @Test
+    public void testSetSameKey_isNotEncryptedAgain() {
+        String prefixString = "aa:bb:cc:dd:ee:ff-LinkKey";
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(prefixString,
+                "11223344556677889900aabbccddeeff"));
+        // Wait for encryption to complete
+        mBluetoothKeystoreService.saveEncryptedKey();
+        String encryptedKey = mBluetoothKeystoreService.getNameEncryptKey().get(prefixString);
+        Assert.assertNotNull(encryptedKey);
+
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(prefixString,
+                "11223344556677889900aabbccddeeff"));
+        mBluetoothKeystoreService.saveEncryptedKey();
+        Assert.assertEquals(encryptedKey,
+                mBluetoothKeystoreService.getNameEncryptKey().get(prefixString));
+
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(prefixString,
+                "ffeeddccbbaa00998877665544332211"));
+        mBluetoothKeystoreService.saveEncryptedKey();
+        Assert.assertNotEquals(encryptedKey,
+                mBluetoothKeystoreService.getNameEncryptKey().get(prefixString));
+    }
+
+    @Test
+    public void testChecksum_keyRemovedFromOneSection() {
+        setUpTwoDeviceConfig();
+
+        List<String> data = new ArrayList<>(createTwoDeviceConfigData());
+        data.remove("LE_KEY_PID = d222222222222222222222222222222222222222222222");
+        overwriteConfigFile(data);
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(CONFIG_FILE_PREFIX, CONFIG_FILE_HASH));
+
+        Assert.assertNull(mBluetoothKeystoreService.getKey("aa:bb:cc:dd:ee:ff-LE_KEY_PID"));
+        Assert.assertFalse(mBluetoothKeystoreService.getNameEncryptKey()
+                .containsKey("aa:bb:cc:dd:ee:ff-LE_KEY_PID"));
+        Assert.assertEquals("11223344556677889900aabbccddeeff",
+                mBluetoothKeystoreService.getKey("aa:bb:cc:dd:ee:ff-LinkKey"));
+        Assert.assertEquals("00112233445566778899aabbccddeeff",
+                mBluetoothKeystoreService.getKey("11:22:33:44:55:77-LinkKey"));
+    }
+
+    @Test
+    public void testChecksum_sectionRemoved() {
+        setUpTwoDeviceConfig();
+
+        overwriteConfigFile(mConfigTestData);
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(CONFIG_FILE_PREFIX, CONFIG_FILE_HASH));
+
+        Assert.assertNull(mBluetoothKeystoreService.getKey("11:22:33:44:55:77-LinkKey"));
+        for (Map.Entry<String, String> entry : mNameDecryptKeyResult.entrySet()) {
+            Assert.assertEquals(entry.getValue(),
+                    mBluetoothKeystoreService.getKey(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testChecksum_sectionChangedWithoutKeyChange() {
+        setUpTwoDeviceConfig();
+        mBluetoothKeystoreService.stopThread();
+        Map<String, String> encryptedKeys =
+                new HashMap<>(mBluetoothKeystoreService.getNameEncryptKey());
+
+        List<String> data = new ArrayList<>(createTwoDeviceConfigData());
+        data.set(data.indexOf("Name = Other"), "Name = Renamed");
+        overwriteConfigFile(data);
+        Assert.assertTrue(setEncryptKeyOrRemoveKey(CONFIG_FILE_PREFIX, CONFIG_FILE_HASH));
+        mBluetoothKeystoreService.stopThread();
+
+        Assert.assertEquals(encryptedKeys.get("11:22:33:44:55:77-LinkKey"),
+                mBluetoothKeystoreService.getNameEncryptKey().get("11:22:33:44:55:77-LinkKey"));
+        for (String prefixString : mNameDecryptKeyResult.keySet()) {
+            Assert.assertEquals(encryptedKeys.get(prefixString),
+                    mBluetoothKeystoreService.getNameEncryptKey().get(prefixString));
+        }
+    }
 }
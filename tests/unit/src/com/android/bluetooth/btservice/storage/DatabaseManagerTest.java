@@ -57,6 +57,7 @@ import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @MediumTest
 @RunWith(AndroidJUnit4.class)
@@ -103,6 +104,8 @@ public final class DatabaseManagerTest {
         when(mAdapterService.getPackageManager()).thenReturn(
                 InstrumentationRegistry.getTargetContext().getPackageManager());
         mDatabaseManager = new DatabaseManager(mAdapterService);
+        // Write updates right away, so that waiting for the handler is enough to see them.
+        mDatabaseManager.setWriteBehindWindowMillis(0);
 
         BluetoothDevice[] bondedDevices = {mTestDevice};
         doReturn(bondedDevices).when(mAdapterService).getBondedDevices();
@@ -146,6 +149,27 @@ public final class DatabaseManagerTest {
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
     }
 
+    @Test
+    public void testUpdatesAreCoalescedAndFlushedOnCleanup() {
+        BluetoothDevice[] bondedDevices = {mTestDevice, mTestDevice2};
+        doReturn(bondedDevices).when(mAdapterService).getBondedDevices();
+        mDatabaseManager.setWriteBehindWindowMillis(TimeUnit.MINUTES.toMillis(1));
+
+        for (int i = 0; i < 3; i++) {
+            mDatabaseManager.setConnection(mTestDevice, false);
+            mDatabaseManager.setConnection(mTestDevice2, false);
+        }
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+        // Nothing is written before the window ends
+        Assert.assertEquals(0, mDatabase.load().size());
+
+        mDatabaseManager.cleanup();
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(2, list.size());
+        Assert.assertEquals(TEST_BT_ADDR2, list.get(0).getAddress());
+        Assert.assertEquals(TEST_BT_ADDR, list.get(1).getAddress());
+    }
+
     @Test
     public void testSetGetProfileConnectionPolicy() {
         int badConnectionPolicy = -100;
@@ -437,6 +461,38 @@ public final class DatabaseManagerTest {
                 value, true);
     }
 
+    @Test
+    public void testLoadDatabase_restoresRecencyOrderAndSingleActiveA2dpDevice() {
+        String[] addresses = {TEST_BT_ADDR2, TEST_BT_ADDR, TEST_BT_ADDR3};
+        for (int i = 0; i < addresses.length; i++) {
+            Metadata data = new Metadata(addresses[i]);
+            data.last_active_time = i;
+            // Both TEST_BT_ADDR2 and TEST_BT_ADDR are flagged as the active a2dp device
+            data.is_active_a2dp_device = i < 2;
+            mDatabase.insert(data);
+        }
+        restartDatabaseManagerHelper();
+
+        List<BluetoothDevice> mostRecentlyConnectedDevicesOrdered =
+                mDatabaseManager.getMostRecentlyConnectedDevices();
+        Assert.assertEquals(3, mostRecentlyConnectedDevicesOrdered.size());
+        Assert.assertEquals(mTestDevice3, mostRecentlyConnectedDevicesOrdered.get(0));
+        Assert.assertEquals(mTestDevice, mostRecentlyConnectedDevicesOrdered.get(1));
+        Assert.assertEquals(mTestDevice2, mostRecentlyConnectedDevicesOrdered.get(2));
+        Assert.assertEquals(mTestDevice, mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+        Assert.assertFalse(mDatabaseManager
+                .mMetadataCache.get(TEST_BT_ADDR2).is_active_a2dp_device);
+
+        // Unbonding the active a2dp device clears it
+        mDatabaseManager.bondStateChanged(mTestDevice, BluetoothDevice.BOND_NONE);
+        Assert.assertNull(mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+
+        mDatabaseManager.factoryReset();
+        mDatabaseManager.mMetadataCache.clear();
+        // Wait for clear database
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+    }
+
     @Test
     public void testSetConnection() {
         // Verify pre-conditions to ensure a fresh test
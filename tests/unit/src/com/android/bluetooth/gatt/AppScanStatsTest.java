@@ -0,0 +1,81 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanSettings;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link AppScanStats.ScanHistory}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AppScanStatsTest {
+
+    private static AppScanStats.LastScan newScan(long timestamp, int scannerId, int results) {
+        AppScanStats.LastScan scan = new AppScanStats.LastScan(timestamp, true, false, true,
+                scannerId, ScanSettings.SCAN_MODE_BALANCED,
+                ScanSettings.CALLBACK_TYPE_ALL_MATCHES, ScanSettings.PHY_LE_ALL_SUPPORTED,
+                ScanSettings.SCAN_RESULT_TYPE_FULL, 0, 1, ScanSettings.MATCH_MODE_STICKY);
+        scan.results.set(results);
+        scan.duration = 1000;
+        scan.isTimeout = true;
+        scan.filterString = "filter" + scannerId;
+        return scan;
+    }
+
+    @Test
+    public void testScanHistoryRoundTrip() {
+        AppScanStats.ScanHistory history = new AppScanStats.ScanHistory(3);
+        history.add(newScan(100, 1, 42));
+
+        AppScanStats.LastScan scan = history.get(0, null);
+        Assert.assertEquals(100, scan.timestamp);
+        Assert.assertEquals(1000, scan.duration);
+        Assert.assertEquals(1, scan.scannerId);
+        Assert.assertEquals(42, scan.results.get());
+        Assert.assertEquals(ScanSettings.SCAN_MODE_BALANCED, scan.scanMode);
+        Assert.assertEquals("filter1", scan.filterString);
+        Assert.assertTrue(scan.isFilterScan);
+        Assert.assertFalse(scan.isCallbackScan);
+        Assert.assertTrue(scan.isLegacy);
+        Assert.assertTrue(scan.isTimeout);
+        Assert.assertFalse(scan.isBatchScan);
+    }
+
+    @Test
+    public void testScanHistoryOverwritesOldest() {
+        AppScanStats.ScanHistory history = new AppScanStats.ScanHistory(3);
+        for (int i = 0; i < 5; i++) {
+            history.add(newScan(i * 10, i, i));
+        }
+
+        Assert.assertEquals(3, history.size());
+        Assert.assertEquals(20, history.getTimestamp(0));
+        Assert.assertEquals(3, history.get(1, null).scannerId);
+        Assert.assertEquals(40, history.getTimestamp(2));
+    }
+
+    @Test
+    public void testScanHistorySetCapacityKeepsNewest() {
+        AppScanStats.ScanHistory history = new AppScanStats.ScanHistory(4);
+        for (int i = 0; i < 6; i++) {
+            history.add(newScan(i * 10, i, i));
+        }
+
+        history.setCapacity(2);
+        Assert.assertEquals(2, history.size());
+        Assert.assertEquals(40, history.getTimestamp(0));
+        Assert.assertEquals(50, history.getTimestamp(1));
+
+        history.setCapacity(3);
+        history.add(newScan(60, 6, 6));
+        Assert.assertEquals(3, history.size());
+        Assert.assertEquals(40, history.getTimestamp(0));
+        Assert.assertEquals("filter6", history.get(2, null).filterString);
+    }
+}
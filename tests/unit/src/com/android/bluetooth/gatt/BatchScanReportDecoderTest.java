@@ -0,0 +1,167 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Test cases for {@link BatchScanReportDecoder}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatchScanReportDecoderTest {
+    private static final long NOW_NANOS = 1000000000000L;
+    private static final int LARGE_REPORT_RECORDS = 500;
+
+    private static final byte[] TEST_ADV_DATA = new byte[] {
+            0x02, 0x01, 0x1a, 0x03, 0x03, (byte) 0xaa, (byte) 0xfe};
+    private static final byte[] TEST_SCAN_RESPONSE = new byte[] {0x05, 0x09, 'T', 'e', 's', 't'};
+
+    private final Function<byte[], BluetoothDevice> mDeviceFactory =
+            address -> BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+
+    private static void writeHeader(ByteArrayOutputStream out, int index, int timestampUnits) {
+        // Address in reverse byte order.
+        out.write(index & 0xff);
+        out.write((index >> 8) & 0xff);
+        out.write(0x04);
+        out.write(0x03);
+        out.write(0x02);
+        out.write(0x01);
+        // Address type, tx power, rssi.
+        out.write(0x00);
+        out.write(0x7f);
+        out.write(-60);
+        out.write(timestampUnits & 0xff);
+        out.write((timestampUnits >> 8) & 0xff);
+    }
+
+    private static byte[] buildFullReport(int numRecords, byte[] adv, byte[] scanResponse) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < numRecords; i++) {
+            writeHeader(out, i, i);
+            out.write(adv.length);
+            out.write(adv, 0, adv.length);
+            out.write(scanResponse.length);
+            out.write(scanResponse, 0, scanResponse.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] buildTruncatedReport(int numRecords) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < numRecords; i++) {
+            writeHeader(out, i, i);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testDecodeFull() {
+        byte[] report = buildFullReport(1, TEST_ADV_DATA, TEST_SCAN_RESPONSE);
+        Set<ScanResult> results =
+                new BatchScanReportDecoder(report, mDeviceFactory).decodeFull(1, NOW_NANOS);
+
+        Assert.assertEquals(1, results.size());
+        ScanResult result = results.iterator().next();
+        Assert.assertEquals("01:02:03:04:00:00", result.getDevice().getAddress());
+        Assert.assertEquals(-60, result.getRssi());
+        Assert.assertEquals(NOW_NANOS, result.getTimestampNanos());
+        byte[] expected = new byte[TEST_ADV_DATA.length + TEST_SCAN_RESPONSE.length];
+        System.arraycopy(TEST_ADV_DATA, 0, expected, 0, TEST_ADV_DATA.length);
+        System.arraycopy(TEST_SCAN_RESPONSE, 0, expected, TEST_ADV_DATA.length,
+                TEST_SCAN_RESPONSE.length);
+        Assert.assertArrayEquals(expected, result.getScanRecord().getBytes());
+        Assert.assertEquals("Test", result.getScanRecord().getDeviceName());
+    }
+
+    @Test
+    public void testDecodeFullUnsignedLength() {
+        byte[] adv = new byte[200];
+        adv[0] = (byte) 199;
+        adv[1] = (byte) 0xff;
+        byte[] report = buildFullReport(2, adv, new byte[0]);
+        Set<ScanResult> results =
+                new BatchScanReportDecoder(report, mDeviceFactory).decodeFull(2, NOW_NANOS);
+
+        Assert.assertEquals(2, results.size());
+        for (ScanResult result : results) {
+            Assert.assertEquals(200, result.getScanRecord().getBytes().length);
+        }
+    }
+
+    @Test
+    public void testDecodeFullMalformedLength() {
+        byte[] report = buildFullReport(3, TEST_ADV_DATA, TEST_SCAN_RESPONSE);
+        // Cut the last record in the middle of its scan response.
+        byte[] truncated = Arrays.copyOf(report, report.length - 2);
+        Set<ScanResult> results =
+                new BatchScanReportDecoder(truncated, mDeviceFactory).decodeFull(3, NOW_NANOS);
+        Assert.assertEquals(2, results.size());
+
+        // Only part of a header left.
+        truncated = Arrays.copyOf(report, report.length / 3 + 4);
+        results = new BatchScanReportDecoder(truncated, mDeviceFactory).decodeFull(3, NOW_NANOS);
+        Assert.assertEquals(1, results.size());
+    }
+
+    @Test
+    public void testDecodeTruncated() {
+        byte[] report = buildTruncatedReport(3);
+        Set<ScanResult> results =
+                new BatchScanReportDecoder(report, mDeviceFactory).decodeTruncated(3, NOW_NANOS);
+
+        Assert.assertEquals(3, results.size());
+        for (ScanResult result : results) {
+            Assert.assertEquals(-60, result.getRssi());
+            Assert.assertEquals(0, result.getScanRecord().getBytes().length);
+        }
+
+        // More records announced than the report holds.
+        results = new BatchScanReportDecoder(Arrays.copyOf(report, report.length - 1),
+                mDeviceFactory).decodeTruncated(3, NOW_NANOS);
+        Assert.assertEquals(2, results.size());
+    }
+
+    @Test
+    public void testTimestamp() {
+        Assert.assertEquals(99700000000L, BatchScanReportDecoder.timestampUnitsToNanos(1994));
+        byte[] report = buildTruncatedReport(1);
+        report[9] = (byte) 0xff;
+        report[10] = (byte) 0xff;
+        ScanResult result = new BatchScanReportDecoder(report, mDeviceFactory)
+                .decodeTruncated(1, NOW_NANOS).iterator().next();
+        Assert.assertEquals(NOW_NANOS - BatchScanReportDecoder.timestampUnitsToNanos(0xffff),
+                result.getTimestampNanos());
+    }
+
+    @Test
+    public void testDecodeFull_largeReport() {
+        byte[] report = buildFullReport(LARGE_REPORT_RECORDS, TEST_ADV_DATA, TEST_SCAN_RESPONSE);
+        Set<ScanResult> results = new BatchScanReportDecoder(report, mDeviceFactory)
+                .decodeFull(LARGE_REPORT_RECORDS, NOW_NANOS);
+        Assert.assertEquals(LARGE_REPORT_RECORDS, results.size());
+
+        Set<String> addresses = new HashSet<>();
+        for (ScanResult result : results) {
+            addresses.add(result.getDevice().getAddress());
+            Assert.assertEquals("Test", result.getScanRecord().getDeviceName());
+        }
+        Assert.assertEquals(LARGE_REPORT_RECORDS, addresses.size());
+        Assert.assertTrue(addresses.contains(String.format("01:02:03:04:%02X:%02X",
+                (LARGE_REPORT_RECORDS - 1) >> 8, (LARGE_REPORT_RECORDS - 1) & 0xff)));
+    }
+}
@@ -0,0 +1,58 @@
+package com.android.bluetooth.gatt;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link CallbackQueue}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CallbackQueueTest {
+    private static final String TEST_ADDRESS = "00:01:02:03:04:05";
+    private static final String TEST_OTHER_ADDRESS = "00:01:02:03:04:06";
+
+    @Test
+    public void testFifoOrder() {
+        CallbackQueue queue = new CallbackQueue(4);
+        for (int i = 0; i < 10; i++) {
+            queue.add(new CallbackInfo(TEST_ADDRESS, 0, i));
+            Assert.assertEquals(i, queue.poll().handle);
+        }
+        queue.add(new CallbackInfo(TEST_ADDRESS, 0, 1));
+        queue.add(new CallbackInfo(TEST_ADDRESS, 0, 2));
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(1, queue.poll().handle);
+        Assert.assertEquals(2, queue.poll().handle);
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testGrowsWhenFullWithoutLosingCallbacks() {
+        CallbackQueue queue = new CallbackQueue(2);
+        queue.add(new CallbackInfo(TEST_ADDRESS, 0, 1));
+        Assert.assertEquals(1, queue.poll().handle);
+        // Wrapped around the ring before growing.
+        for (int i = 0; i < 5; i++) {
+            queue.add(new CallbackInfo(i % 2 == 0 ? TEST_ADDRESS : TEST_OTHER_ADDRESS, i, 2));
+        }
+
+        Assert.assertEquals(5, queue.size());
+        Assert.assertEquals(8, queue.getCapacity());
+        for (int i = 0; i < 5; i++) {
+            CallbackInfo callbackInfo = queue.poll();
+            Assert.assertEquals(i, callbackInfo.status);
+            Assert.assertEquals(i % 2 == 0 ? TEST_ADDRESS : TEST_OTHER_ADDRESS,
+                    callbackInfo.address);
+        }
+        Assert.assertNull(queue.poll());
+
+        StringBuilder sb = new StringBuilder();
+        queue.dump(sb);
+        Assert.assertTrue(sb.toString().contains("queued=6, pending=0, maxPending=5"));
+    }
+}
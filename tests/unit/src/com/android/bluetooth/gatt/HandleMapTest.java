@@ -0,0 +1,144 @@
+package com.android.bluetooth.gatt;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+
+/**
+ * Test cases for {@link HandleMap}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HandleMapTest {
+    private static final UUID TEST_SERVICE_UUID = UUID.randomUUID();
+    private static final UUID TEST_CHAR_UUID = UUID.randomUUID();
+    private static final UUID TEST_DESC_UUID = UUID.randomUUID();
+    private static final int LARGE_MAP_SERVERS = 4;
+    private static final int LARGE_MAP_SERVICES_PER_SERVER = 10;
+
+    private HandleMap mHandleMap;
+
+    @Before
+    public void setUp() {
+        mHandleMap = new HandleMap();
+    }
+
+    // Adds a service with one characteristic and one descriptor at consecutive handles.
+    private void addService(int serverIf, int serviceHandle) {
+        mHandleMap.addService(serverIf, serviceHandle, TEST_SERVICE_UUID, 0, 0, false);
+        mHandleMap.addCharacteristic(serverIf, serviceHandle + 1, TEST_CHAR_UUID, serviceHandle);
+        mHandleMap.addDescriptor(serverIf, serviceHandle + 2, TEST_DESC_UUID, serviceHandle);
+    }
+
+    @Test
+    public void testGetByHandle() {
+        addService(1, 10);
+        addService(2, 20);
+
+        HandleMap.Entry entry = mHandleMap.getByHandle(22);
+        Assert.assertEquals(HandleMap.TYPE_DESCRIPTOR, entry.type);
+        Assert.assertEquals(2, entry.serverIf);
+        Assert.assertEquals(20, entry.serviceHandle);
+        Assert.assertEquals(21, entry.charHandle);
+        Assert.assertNull(mHandleMap.getByHandle(30));
+
+        mHandleMap.addRequest(5, 11);
+        Assert.assertEquals(TEST_CHAR_UUID, mHandleMap.getByRequestId(5).uuid);
+    }
+
+    @Test
+    public void testSetStartedAndCheckServiceExists() {
+        addService(1, 10);
+
+        mHandleMap.setStarted(1, 10, true);
+        Assert.assertTrue(mHandleMap.getByHandle(10).started);
+        // Wrong server or not a service handle.
+        mHandleMap.setStarted(2, 10, false);
+        mHandleMap.setStarted(1, 11, false);
+        Assert.assertTrue(mHandleMap.getByHandle(10).started);
+
+        Assert.assertTrue(mHandleMap.checkServiceExists(TEST_SERVICE_UUID, 10));
+        Assert.assertFalse(mHandleMap.checkServiceExists(TEST_CHAR_UUID, 11));
+        Assert.assertFalse(mHandleMap.checkServiceExists(TEST_SERVICE_UUID, 30));
+    }
+
+    @Test
+    public void testDeleteService() {
+        addService(1, 10);
+        addService(1, 20);
+        addService(2, 30);
+
+        mHandleMap.deleteService(1, 10);
+
+        Assert.assertNull(mHandleMap.getByHandle(10));
+        Assert.assertNull(mHandleMap.getByHandle(12));
+        Assert.assertNotNull(mHandleMap.getByHandle(21));
+        Assert.assertEquals(6, mHandleMap.getEntries().size());
+        Assert.assertEquals(3, mHandleMap.getEntriesByServer(1).size());
+        Assert.assertEquals(3, mHandleMap.getEntriesByServer(2).size());
+
+        mHandleMap.deleteService(1, 20);
+        Assert.assertTrue(mHandleMap.getEntriesByServer(1).isEmpty());
+        Assert.assertEquals(3, mHandleMap.getEntries().size());
+    }
+
+    @Test
+    public void testDeleteServiceKeepsSharedHandle() {
+        addService(1, 10);
+        // A second server reusing the handles of the first one.
+        addService(2, 10);
+
+        Assert.assertEquals(1, mHandleMap.getByHandle(10).serverIf);
+        mHandleMap.deleteService(1, 10);
+        Assert.assertEquals(2, mHandleMap.getByHandle(10).serverIf);
+        Assert.assertEquals(2, mHandleMap.getByHandle(12).serverIf);
+    }
+
+    @Test
+    public void testClear() {
+        addService(1, 10);
+        mHandleMap.clear();
+        Assert.assertTrue(mHandleMap.getEntries().isEmpty());
+        Assert.assertTrue(mHandleMap.getEntriesByServer(1).isEmpty());
+        Assert.assertFalse(mHandleMap.checkServiceExists(TEST_SERVICE_UUID, 10));
+    }
+
+    @Test
+    public void testGetByHandle_manyServers() {
+        int handle = 1;
+        for (int server = 0; server < LARGE_MAP_SERVERS; server++) {
+            for (int service = 0; service < LARGE_MAP_SERVICES_PER_SERVER; service++) {
+                mHandleMap.addService(server, handle, TEST_SERVICE_UUID, 0, 0, false);
+                int serviceHandle = handle++;
+                for (int characteristic = 0; characteristic < 8; characteristic++) {
+                    mHandleMap.addCharacteristic(server, handle++, TEST_CHAR_UUID,
+                            serviceHandle);
+                    mHandleMap.addDescriptor(server, handle++, TEST_DESC_UUID, serviceHandle);
+                }
+            }
+        }
+        int attributesPerServer = LARGE_MAP_SERVICES_PER_SERVER * 17;
+
+        for (int h = 1; h < handle; h++) {
+            HandleMap.Entry entry = mHandleMap.getByHandle(h);
+            int offset = (h - 1) % 17;
+            Assert.assertEquals(h, entry.handle);
+            Assert.assertEquals((h - 1) / attributesPerServer, entry.serverIf);
+            Assert.assertEquals(offset == 0 ? 0 : h - offset, entry.serviceHandle);
+            Assert.assertEquals(offset == 0 ? HandleMap.TYPE_SERVICE
+                    : offset % 2 == 1 ? HandleMap.TYPE_CHARACTERISTIC
+                    : HandleMap.TYPE_DESCRIPTOR, entry.type);
+        }
+        Assert.assertNull(mHandleMap.getByHandle(handle));
+        for (int server = 0; server < LARGE_MAP_SERVERS; server++) {
+            Assert.assertEquals(attributesPerServer,
+                    mHandleMap.getEntriesByServer(server).size());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterIndex}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanFilterIndexTest {
+    private static final String TEST_ADDRESS = "00:01:02:03:04:05";
+    private static final String TEST_OTHER_ADDRESS = "00:01:02:03:04:06";
+    private static final String TEST_ORIGINAL_ADDRESS = "00:0A:0B:0C:0D:0E";
+    private static final ParcelUuid TEST_SERVICE_UUID =
+            ParcelUuid.fromString("0000feaa-0000-1000-8000-00805f9b34fb");
+    private static final ParcelUuid TEST_OTHER_UUID =
+            ParcelUuid.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+
+    // Flags, a complete 16 bit service UUID (0xfeaa), service data for it and manufacturer
+    // data for company 0x004c.
+    private static final byte[] TEST_ADV_DATA = new byte[] {
+            0x02, 0x01, 0x1a,
+            0x03, 0x03, (byte) 0xaa, (byte) 0xfe,
+            0x04, 0x16, (byte) 0xaa, (byte) 0xfe, 0x10,
+            0x04, (byte) 0xff, 0x4c, 0x00, 0x02};
+
+    private static ScanClient newClient(int scannerId, ScanFilter... filters) {
+        return new ScanClient(scannerId, null, new ArrayList<>(Arrays.asList(filters)));
+    }
+
+    private static ScanResult newResult(String address) {
+        return new ScanResult(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address),
+                ScanRecord.parseFromBytes(TEST_ADV_DATA), -60, 0);
+    }
+
+    private static void assertCandidatesMatch(ScanFilterIndex.Candidates candidates,
+            ScanClient client, ScanResult result) {
+        for (int i = 0; i < client.filters.size(); i++) {
+            if (client.filters.get(i).matches(result)) {
+                Assert.assertTrue(candidates.isCandidate(client, i));
+            }
+        }
+    }
+
+    @Test
+    public void testKeyedFiltersAreNarrowed() {
+        ScanClient addressClient = newClient(1,
+                new ScanFilter.Builder().setDeviceAddress(TEST_OTHER_ADDRESS).build(),
+                new ScanFilter.Builder().setDeviceAddress(TEST_ADDRESS).build());
+        ScanClient uuidClient = newClient(2,
+                new ScanFilter.Builder().setServiceUuid(TEST_OTHER_UUID).build(),
+                new ScanFilter.Builder().setServiceUuid(TEST_SERVICE_UUID).build());
+        ScanClient dataClient = newClient(3,
+                new ScanFilter.Builder().setManufacturerData(0x0006, new byte[0]).build(),
+                new ScanFilter.Builder().setManufacturerData(0x004c, new byte[0]).build(),
+                new ScanFilter.Builder().setServiceData(TEST_SERVICE_UUID, new byte[0]).build());
+        ScanFilterIndex index =
+                new ScanFilterIndex(Arrays.asList(addressClient, uuidClient, dataClient));
+
+        ScanResult result = newResult(TEST_ADDRESS);
+        ScanFilterIndex.Candidates candidates = index.lookup(result, null);
+
+        Assert.assertFalse(candidates.isCandidate(addressClient, 0));
+        Assert.assertTrue(candidates.isCandidate(addressClient, 1));
+        Assert.assertFalse(candidates.isCandidate(uuidClient, 0));
+        Assert.assertTrue(candidates.isCandidate(uuidClient, 1));
+        Assert.assertFalse(candidates.isCandidate(dataClient, 0));
+        Assert.assertTrue(candidates.isCandidate(dataClient, 1));
+        Assert.assertTrue(candidates.isCandidate(dataClient, 2));
+        assertCandidatesMatch(candidates, addressClient, result);
+        assertCandidatesMatch(candidates, uuidClient, result);
+        assertCandidatesMatch(candidates, dataClient, result);
+    }
+
+    @Test
+    public void testOriginalAddressIsCandidate() {
+        ScanClient client = newClient(1, new ScanFilter.Builder()
+                .setDeviceAddress(TEST_ORIGINAL_ADDRESS).build());
+        ScanFilterIndex index = new ScanFilterIndex(Arrays.asList(client));
+
+        ScanResult result = newResult(TEST_ADDRESS);
+        Assert.assertFalse(index.lookup(result, null).isCandidate(client, 0));
+        Assert.assertTrue(index.lookup(result, TEST_ORIGINAL_ADDRESS.toLowerCase())
+                .isCandidate(client, 0));
+    }
+
+    @Test
+    public void testReusedCandidatesOnlyKeepLastLookup() {
+        ScanClient client = newClient(1,
+                new ScanFilter.Builder().setDeviceAddress(TEST_OTHER_ADDRESS).build(),
+                new ScanFilter.Builder().setDeviceAddress(TEST_ADDRESS).build());
+        ScanFilterIndex index = new ScanFilterIndex(Arrays.asList(client));
+        ScanFilterIndex.Candidates candidates = new ScanFilterIndex.Candidates();
+
+        Assert.assertSame(candidates, index.lookup(newResult(TEST_ADDRESS), null, candidates));
+        Assert.assertFalse(candidates.isCandidate(client, 0));
+        Assert.assertTrue(candidates.isCandidate(client, 1));
+
+        index.lookup(newResult(TEST_OTHER_ADDRESS), null, candidates);
+        Assert.assertTrue(candidates.isCandidate(client, 0));
+        Assert.assertFalse(candidates.isCandidate(client, 1));
+
+        // Reused with a larger index.
+        ScanClient otherClient = newClient(2,
+                new ScanFilter.Builder().setServiceUuid(TEST_OTHER_UUID).build(),
+                new ScanFilter.Builder().setServiceUuid(TEST_SERVICE_UUID).build());
+        ScanFilterIndex largerIndex = new ScanFilterIndex(Arrays.asList(client, otherClient));
+        largerIndex.lookup(newResult(TEST_ADDRESS), null, candidates);
+        Assert.assertFalse(candidates.isCandidate(client, 0));
+        Assert.assertTrue(candidates.isCandidate(client, 1));
+        Assert.assertFalse(candidates.isCandidate(otherClient, 0));
+        Assert.assertTrue(candidates.isCandidate(otherClient, 1));
+    }
+
+    @Test
+    public void testResidualFiltersAlwaysCandidates() {
+        ScanClient client = newClient(1,
+                new ScanFilter.Builder().setDeviceName("Test").build(),
+                new ScanFilter.Builder().setServiceUuid(TEST_OTHER_UUID,
+                        ParcelUuid.fromString("0000ffff-0000-0000-0000-000000000000")).build());
+        ScanFilterIndex index = new ScanFilterIndex(Arrays.asList(client));
+
+        ScanFilterIndex.Candidates candidates = index.lookup(newResult(TEST_ADDRESS), null);
+        Assert.assertTrue(candidates.isCandidate(client, 0));
+        Assert.assertTrue(candidates.isCandidate(client, 1));
+    }
+
+    @Test
+    public void testUnindexedClientFallsBackToAllFilters() {
+        ScanFilterIndex index = new ScanFilterIndex(new ArrayList<>());
+        ScanClient client = newClient(1,
+                new ScanFilter.Builder().setDeviceAddress(TEST_OTHER_ADDRESS).build());
+
+        Assert.assertTrue(index.lookup(newResult(TEST_ADDRESS), null).isCandidate(client, 0));
+
+        // A client whose filter list was replaced after the index was built.
+        ScanFilterIndex staleIndex = new ScanFilterIndex(Arrays.asList(client));
+        List<ScanFilter> filters = new ArrayList<>(client.filters);
+        client.filters = filters;
+        Assert.assertTrue(
+                staleIndex.lookup(newResult(TEST_ADDRESS), null).isCandidate(client, 0));
+    }
+}
@@ -0,0 +1,152 @@
+package com.android.bluetooth.gatt;
+
+import static org.mockito.Mockito.*;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.MediumTest;
+import androidx.test.rule.ServiceTestRule;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.R;
+import com.android.bluetooth.TestUtils;
+import com.android.bluetooth.btservice.AdapterService;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replays synthetic advertising traces through {@link GattService} with {@link
+ * ScanReplayHarness}. Throughput, allocations and latency are only logged, as they are too
+ * noisy on shared test devices to assert on; the number of delivered results is checked.
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class ScanReplayBenchmarkTest {
+    private static final String TAG = "ScanReplayBenchmarkTest";
+    private static final int TRACE_DEVICES = 200;
+    private static final int TRACE_ADVERTS = 2000;
+    private static final int BATCH_ADVERTS = 500;
+    private static final int ROUNDS = 5;
+    private static final int MANUFACTURER_IDS = 4;
+
+    private Context mTargetContext;
+    private GattService mService;
+    private ScanReplayHarness mHarness;
+
+    @Rule public final ServiceTestRule mServiceRule = new ServiceTestRule();
+
+    @Mock private AdapterService mAdapterService;
+
+    @Before
+    public void setUp() throws Exception {
+        mTargetContext = InstrumentationRegistry.getTargetContext();
+        Assume.assumeTrue("Ignore test when GattService is not enabled",
+                mTargetContext.getResources().getBoolean(R.bool.profile_supported_gatt));
+        MockitoAnnotations.initMocks(this);
+        TestUtils.setAdapterService(mAdapterService);
+        doReturn(true).when(mAdapterService).isStartedProfile(anyString());
+        TestUtils.startService(mServiceRule, GattService.class);
+        mService = GattService.getGattService();
+        Assert.assertNotNull(mService);
+        mHarness = new ScanReplayHarness(mService);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (!mTargetContext.getResources().getBoolean(R.bool.profile_supported_gatt)) {
+            return;
+        }
+        mHarness.release();
+        doReturn(false).when(mAdapterService).isStartedProfile(anyString());
+        TestUtils.stopService(mServiceRule, GattService.class);
+        TestUtils.clearAdapterService(mAdapterService);
+    }
+
+    private static ScanSettings regularSettings() {
+        return new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .build();
+    }
+
+    private static List<ScanFilter> manufacturerFilters(int... manufacturerIds) {
+        List<ScanFilter> filters = new ArrayList<>();
+        for (int manufacturerId : manufacturerIds) {
+            filters.add(new ScanFilter.Builder()
+                    .setManufacturerData(manufacturerId, new byte[0])
+                    .build());
+        }
+        return filters;
+    }
+
+    @Test
+    public void benchmarkRegularScanResults() throws Exception {
+        // One unfiltered scanner, one scanner per manufacturer id and a few scanners without
+        // permission, which must not receive anything.
+        mHarness.addScanner(regularSettings(), Collections.emptyList(), true);
+        for (int id = 0; id < MANUFACTURER_IDS; id++) {
+            mHarness.addScanner(regularSettings(), manufacturerFilters(id), true);
+        }
+        for (int id = 0; id < MANUFACTURER_IDS; id++) {
+            mHarness.addScanner(regularSettings(), manufacturerFilters(id), false);
+        }
+        List<ScanReplayHarness.Advert> trace =
+                ScanReplayHarness.syntheticTrace(TRACE_DEVICES, TRACE_ADVERTS, 1);
+
+        // Warm up the result path before measuring.
+        mHarness.replay(trace, 1);
+        ScanReplayHarness.Report report = mHarness.replay(trace, ROUNDS);
+
+        Assert.assertEquals((long) TRACE_ADVERTS * ROUNDS, report.adverts);
+        Assert.assertEquals(2L * TRACE_ADVERTS * ROUNDS, report.callbacks);
+        Log.i(TAG, "regular: " + report);
+    }
+
+    @Test
+    public void benchmarkFullBatchScanReports() throws Exception {
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                .setReportDelay(5000)
+                .setScanResultType(ScanSettings.SCAN_RESULT_TYPE_FULL)
+                .build();
+        int scannerId = mHarness.addScanner(settings, manufacturerFilters(0, 1, 2, 3), true);
+        List<ScanReplayHarness.Advert> trace =
+                ScanReplayHarness.syntheticTrace(TRACE_DEVICES, BATCH_ADVERTS, 2);
+
+        mHarness.replayBatch(scannerId, trace, 1);
+        ScanReplayHarness.Report report = mHarness.replayBatch(scannerId, trace, ROUNDS);
+
+        Assert.assertEquals((long) BATCH_ADVERTS * ROUNDS, report.callbacks);
+        Log.i(TAG, "batch: " + report);
+    }
+
+    @Test
+    public void testParseTrace() {
+        List<ScanReplayHarness.Advert> trace = ScanReplayHarness.parseTrace(Arrays.asList(
+                "# eventType,address,rssi,advData",
+                "0x1b,DD:34:02:05:5C:4D,-54,0201060303AAFE",
+                ""));
+
+        Assert.assertEquals(1, trace.size());
+        Assert.assertEquals(0x1b, trace.get(0).eventType);
+        Assert.assertEquals("DD:34:02:05:5C:4D", trace.get(0).address);
+        Assert.assertEquals(-54, trace.get(0).rssi);
+        Assert.assertEquals(7, trace.get(0).advData.length);
+    }
+}
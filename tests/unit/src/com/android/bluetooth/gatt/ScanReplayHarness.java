@@ -0,0 +1,281 @@
+package com.android.bluetooth.gatt;
+
+import static org.mockito.Mockito.*;
+
+import android.bluetooth.le.IScannerCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.os.Debug;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.android.internal.util.HexDump;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Replays advertising traces through the scan result path of a running {@link GattService},
+ * without radio hardware.
+ *
+ * <p>Scanners are added straight to the {@link ScanManager} queues, adverts are fed to
+ * {@link GattService#onScanResultInternal} and batch reports to
+ * {@link GattService#onBatchScanReportsInternal}, and every callback is timed against the
+ * start of the dispatch that produced it. Allocations are counted on the replaying thread and
+ * include those of the mocked scanner callbacks.
+ */
+class ScanReplayHarness {
+    private static final int FIRST_SCANNER_ID = 1000;
+    private static final int ADDRESS_TYPE_RANDOM = 0x1;
+    private static final int PHY_LE_1M = 1;
+    private static final int ADVERTISING_SID_NONE = 0xff;
+    private static final int TX_POWER_NONE = 127;
+    private static final int EVENT_TYPE_LEGACY_CONNECTABLE = 0x1b;
+
+    /**
+     * One advertising report of a trace.
+     */
+    static class Advert {
+        final int eventType;
+        final String address;
+        final int rssi;
+        final byte[] advData;
+
+        Advert(int eventType, String address, int rssi, byte[] advData) {
+            this.eventType = eventType;
+            this.address = address;
+            this.rssi = rssi;
+            this.advData = advData;
+        }
+    }
+
+    /**
+     * Measurements of one replay.
+     */
+    static class Report {
+        long adverts;
+        long callbacks;
+        long elapsedNanos;
+        long allocations;
+        long p50LatencyNanos;
+        long p90LatencyNanos;
+        long p99LatencyNanos;
+
+        double getAdvertsPerSecond() {
+            return elapsedNanos == 0 ? 0 : adverts * 1e9 / elapsedNanos;
+        }
+
+        double getAllocationsPerAdvert() {
+            return adverts == 0 ? 0 : (double) allocations / adverts;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("adverts=%d callbacks=%d advertsPerSec=%.0f allocsPerAdvert=%.1f"
+                    + " latencyUs(p50/p90/p99)=%d/%d/%d", adverts, callbacks,
+                    getAdvertsPerSecond(), getAllocationsPerAdvert(), p50LatencyNanos / 1000,
+                    p90LatencyNanos / 1000, p99LatencyNanos / 1000);
+        }
+    }
+
+    private final GattService mService;
+    private final ScanManager mScanManager;
+    private final List<ScanClient> mClients = new ArrayList<>();
+    private int mNextScannerId = FIRST_SCANNER_ID;
+
+    // Callbacks run on the replaying thread, so these need no synchronization.
+    private long mDispatchStartNanos;
+    private long[] mLatencies = new long[1024];
+    private int mLatencyCount;
+    private long mCallbacks;
+
+    ScanReplayHarness(GattService service) {
+        mService = service;
+        mScanManager = service.getScanManager();
+    }
+
+    /**
+     * Adds a scanner and returns its id. Scanners without permission only receive results of
+     * their associated devices, which are none here.
+     */
+    int addScanner(ScanSettings settings, List<ScanFilter> filters, boolean hasPermission)
+            throws RemoteException {
+        IScannerCallback callback = mock(IScannerCallback.class, withSettings().stubOnly());
+        doAnswer(invocation -> {
+            onCallback(1);
+            return null;
+        }).when(callback).onScanResult(any());
+        doAnswer(invocation -> {
+            onCallback(((List<?>) invocation.getArgument(0)).size());
+            return null;
+        }).when(callback).onBatchScanResults(any());
+
+        int scannerId = mNextScannerId++;
+        GattService.ScannerMap.App app =
+                mService.mScannerMap.add(UUID.randomUUID(), null, callback, null, mService);
+        app.setId(scannerId);
+
+        ScanClient client = new ScanClient(scannerId, settings, filters);
+        client.hasNetworkSettingsPermission = hasPermission;
+        client.associatedDevices = Collections.emptyList();
+        mScanManager.addReplayScanClient(client);
+        mClients.add(client);
+        return scannerId;
+    }
+
+    /**
+     * Removes all scanners added by this harness.
+     */
+    void release() {
+        for (ScanClient client : mClients) {
+            mScanManager.removeReplayScanClient(client);
+            mService.mScannerMap.remove(client.scannerId);
+        }
+        mClients.clear();
+    }
+
+    /**
+     * Replays |trace| |rounds| times as individual advertising reports.
+     */
+    Report replay(List<Advert> trace, int rounds) {
+        startMeasuring();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < trace.size(); i++) {
+                Advert advert = trace.get(i);
+                mDispatchStartNanos = SystemClock.elapsedRealtimeNanos();
+                mService.onScanResultInternal(advert.eventType, ADDRESS_TYPE_RANDOM,
+                        advert.address, PHY_LE_1M, 0, ADVERTISING_SID_NONE, TX_POWER_NONE,
+                        advert.rssi, 0, advert.advData, advert.address);
+            }
+        }
+        return stopMeasuring((long) trace.size() * rounds, start);
+    }
+
+    /**
+     * Replays |trace| |rounds| times as full batch scan reports of |scannerId|.
+     */
+    Report replayBatch(int scannerId, List<Advert> trace, int rounds) throws RemoteException {
+        byte[] report = buildFullBatchReport(trace);
+        startMeasuring();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int round = 0; round < rounds; round++) {
+            mDispatchStartNanos = SystemClock.elapsedRealtimeNanos();
+            mService.onBatchScanReportsInternal(0, scannerId, ScanManager.SCAN_RESULT_TYPE_FULL,
+                    trace.size(), report);
+        }
+        return stopMeasuring((long) trace.size() * rounds, start);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void startMeasuring() {
+        mLatencyCount = 0;
+        mCallbacks = 0;
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+    }
+
+    @SuppressWarnings("deprecation")
+    private Report stopMeasuring(long adverts, long startNanos) {
+        Report report = new Report();
+        report.elapsedNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        Debug.stopAllocCounting();
+        report.allocations = Debug.getThreadAllocCount();
+        report.adverts = adverts;
+        report.callbacks = mCallbacks;
+
+        long[] latencies = Arrays.copyOf(mLatencies, mLatencyCount);
+        Arrays.sort(latencies);
+        report.p50LatencyNanos = percentile(latencies, 50);
+        report.p90LatencyNanos = percentile(latencies, 90);
+        report.p99LatencyNanos = percentile(latencies, 99);
+        return report;
+    }
+
+    private void onCallback(int results) {
+        long latency = SystemClock.elapsedRealtimeNanos() - mDispatchStartNanos;
+        if (mLatencyCount == mLatencies.length) {
+            mLatencies = Arrays.copyOf(mLatencies, mLatencies.length * 2);
+        }
+        mLatencies[mLatencyCount++] = latency;
+        mCallbacks += results;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    /**
+     * Builds a trace of |adverts| reports from |devices| devices, each advertising flags, a
+     * 16-bit service UUID and manufacturer data for one of four manufacturer ids.
+     */
+    static List<Advert> syntheticTrace(int devices, int adverts, long seed) {
+        Random random = new Random(seed);
+        List<Advert> trace = new ArrayList<>(adverts);
+        for (int i = 0; i < adverts; i++) {
+            int device = random.nextInt(devices);
+            String address = String.format("C0:00:00:00:%02X:%02X", device >> 8, device & 0xff);
+            int manufacturerId = device % 4;
+            byte[] advData = new byte[] {
+                    0x02, 0x01, 0x06,
+                    0x03, 0x03, (byte) (0xaa + manufacturerId), (byte) 0xfe,
+                    0x07, (byte) 0xff, (byte) manufacturerId, 0x00,
+                    (byte) random.nextInt(), (byte) random.nextInt(), (byte) i, (byte) (i >> 8)};
+            trace.add(new Advert(EVENT_TYPE_LEGACY_CONNECTABLE, address,
+                    -40 - random.nextInt(50), advData));
+        }
+        return trace;
+    }
+
+    /**
+     * Parses a recorded trace with one "eventType,address,rssi,advDataHex" report per line.
+     * Empty lines and lines starting with '#' are skipped.
+     */
+    static List<Advert> parseTrace(List<String> lines) {
+        List<Advert> trace = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            trace.add(new Advert(Integer.decode(fields[0]), fields[1],
+                    Integer.parseInt(fields[2]), HexDump.hexStringToByteArray(fields[3])));
+        }
+        return trace;
+    }
+
+    /**
+     * Encodes |trace| in the controller's full batch scan report format.
+     */
+    static byte[] buildFullBatchReport(List<Advert> trace) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < trace.size(); i++) {
+            Advert advert = trace.get(i);
+            String[] octets = advert.address.split(":");
+            // Address in reverse byte order.
+            for (int j = octets.length - 1; j >= 0; j--) {
+                out.write(Integer.parseInt(octets[j], 16));
+            }
+            // Address type, tx power, rssi and timestamp.
+            out.write(ADDRESS_TYPE_RANDOM);
+            out.write(TX_POWER_NONE);
+            out.write(advert.rssi);
+            out.write(i & 0xff);
+            out.write((i >> 8) & 0xff);
+            out.write(advert.advData.length);
+            out.write(advert.advData, 0, advert.advData.length);
+            // No scan response.
+            out.write(0);
+        }
+        return out.toByteArray();
+    }
+}
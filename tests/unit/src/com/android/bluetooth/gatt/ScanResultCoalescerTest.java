@@ -0,0 +1,71 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanResultCoalescer}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanResultCoalescerTest {
+    private static final String TEST_ADDRESS = "00:01:02:03:04:05";
+    private static final String TEST_OTHER_ADDRESS = "00:01:02:03:04:06";
+    private static final byte[] TEST_ADV_DATA = new byte[] {0x02, 0x01, 0x1a};
+    private static final byte[] TEST_OTHER_ADV_DATA = new byte[] {0x02, 0x01, 0x06};
+
+    private static ScanResult newResult(String address, byte[] advData, int rssi) {
+        return new ScanResult(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address),
+                ScanRecord.parseFromBytes(advData), rssi, 0);
+    }
+
+    @Test
+    public void testDuplicatesReplacePendingResult() {
+        ScanResultCoalescer coalescer = new ScanResultCoalescer(100);
+
+        Assert.assertTrue(coalescer.offer(newResult(TEST_ADDRESS, TEST_ADV_DATA, -70)));
+        Assert.assertFalse(coalescer.offer(newResult(TEST_OTHER_ADDRESS, TEST_ADV_DATA, -50)));
+        Assert.assertFalse(coalescer.offer(newResult(TEST_ADDRESS, TEST_ADV_DATA, -60)));
+
+        List<ScanResult> results = coalescer.drain(null);
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(TEST_ADDRESS, results.get(0).getDevice().getAddress());
+        Assert.assertEquals(-60, results.get(0).getRssi());
+        Assert.assertEquals(TEST_OTHER_ADDRESS, results.get(1).getDevice().getAddress());
+    }
+
+    @Test
+    public void testChangedPayloadIsKept() {
+        ScanResultCoalescer coalescer = new ScanResultCoalescer(100);
+
+        coalescer.offer(newResult(TEST_ADDRESS, TEST_ADV_DATA, -70));
+        coalescer.offer(newResult(TEST_ADDRESS, TEST_OTHER_ADV_DATA, -70));
+        // Same as the latest payload of the address.
+        coalescer.offer(newResult(TEST_ADDRESS, TEST_OTHER_ADV_DATA, -65));
+
+        List<ScanResult> results = coalescer.drain(null);
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(-70, results.get(0).getRssi());
+        Assert.assertEquals(-65, results.get(1).getRssi());
+    }
+
+    @Test
+    public void testDrainStartsNewWindow() {
+        ScanResultCoalescer coalescer = new ScanResultCoalescer(100);
+
+        Assert.assertTrue(coalescer.offer(newResult(TEST_ADDRESS, TEST_ADV_DATA, -70)));
+        Assert.assertEquals(1, coalescer.drain(null).size());
+        Assert.assertTrue(coalescer.drain(null).isEmpty());
+        Assert.assertTrue(coalescer.offer(newResult(TEST_ADDRESS, TEST_ADV_DATA, -70)));
+    }
+}
@@ -0,0 +1,110 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+import android.os.SystemClock;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Test cases for {@link SharedScanResult}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SharedScanResultTest {
+    private static final String TEST_ADDRESS = "00:01:02:03:04:05";
+    private static final String TEST_ORIGINAL_ADDRESS = "00:0A:0B:0C:0D:0E";
+    private static final int[] FAN_OUT_SCANNER_COUNTS = {1, 5, 15, 25};
+
+    // Flags, a complete 16 bit service UUID and a short local name.
+    private static final byte[] TEST_ADV_DATA = new byte[] {
+            0x02, 0x01, 0x1a,
+            0x03, 0x03, (byte) 0xaa, (byte) 0xfe,
+            0x05, 0x09, 'T', 'e', 's', 't'};
+
+    private Function<String, BluetoothDevice> mDeviceFactory;
+    private int mDeviceLookups;
+
+    @Before
+    public void setUp() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mDeviceLookups = 0;
+        mDeviceFactory = address -> {
+            mDeviceLookups++;
+            return adapter.getRemoteDevice(address);
+        };
+    }
+
+    private SharedScanResult newSharedResult(byte[] advData) {
+        return new SharedScanResult(0x1b, TEST_ADDRESS, 1, 0, 0xff, 127, -60, 0, advData,
+                TEST_ORIGINAL_ADDRESS, SystemClock.elapsedRealtimeNanos(), mDeviceFactory);
+    }
+
+    @Test
+    public void testParsedOncePerView() {
+        SharedScanResult shared = newSharedResult(TEST_ADV_DATA);
+
+        ScanResult first = shared.getResult(false);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(first, shared.getResult(false));
+        }
+        Assert.assertEquals(1, shared.getParseCount());
+        Assert.assertEquals(1, mDeviceLookups);
+
+        ScanResult legacy = shared.getResult(true);
+        Assert.assertSame(legacy, shared.getResult(true));
+        Assert.assertEquals(2, shared.getParseCount());
+        Assert.assertEquals(1, mDeviceLookups);
+    }
+
+    @Test
+    public void testLegacyViewIsFixedSize() {
+        SharedScanResult shared = newSharedResult(TEST_ADV_DATA);
+
+        byte[] legacyBytes = shared.getResult(true).getScanRecord().getBytes();
+        Assert.assertEquals(SharedScanResult.LEGACY_ADV_DATA_LENGTH, legacyBytes.length);
+        Assert.assertArrayEquals(TEST_ADV_DATA,
+                Arrays.copyOfRange(legacyBytes, 0, TEST_ADV_DATA.length));
+        Assert.assertArrayEquals(TEST_ADV_DATA,
+                shared.getResult(false).getScanRecord().getBytes());
+        Assert.assertEquals("Test", shared.getResult(true).getScanRecord().getDeviceName());
+    }
+
+    @Test
+    public void testOriginalAddressResultSharesRecord() {
+        SharedScanResult shared = newSharedResult(TEST_ADV_DATA);
+
+        ScanResult result = shared.getResult(false);
+        ScanResult original = shared.getOriginalAddressResult(false);
+        Assert.assertEquals(TEST_ADDRESS, result.getDevice().getAddress());
+        Assert.assertEquals(TEST_ORIGINAL_ADDRESS, original.getDevice().getAddress());
+        Assert.assertSame(result.getScanRecord(), original.getScanRecord());
+        Assert.assertEquals(result.getTimestampNanos(), original.getTimestampNanos());
+        Assert.assertEquals(1, shared.getParseCount());
+    }
+
+    @Test
+    public void testFanOutParsesOncePerView() {
+        for (int scanners : FAN_OUT_SCANNER_COUNTS) {
+            mDeviceLookups = 0;
+            SharedScanResult shared = newSharedResult(TEST_ADV_DATA);
+            for (int s = 0; s < scanners; s++) {
+                shared.getResult((s & 1) == 0);
+                shared.getOriginalAddressResult((s & 1) == 0);
+            }
+            Assert.assertEquals(Math.min(scanners, 2), shared.getParseCount());
+            // One lookup for the address and one for the original address.
+            Assert.assertEquals(2, mDeviceLookups);
+        }
+    }
+}
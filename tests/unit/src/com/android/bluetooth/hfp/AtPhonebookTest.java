@@ -0,0 +1,154 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import static org.mockito.Mockito.*;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.provider.CallLog;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.PhoneLookup;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.R;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+
+/**
+ * Tests for {@link AtPhonebook}
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class AtPhonebookTest {
+    private static final int CALL_COUNT = 5000;
+    private static final int NUMBER_COUNT = 100;
+
+    private BluetoothDevice mTestDevice;
+    private AtPhonebook mAtPhonebook;
+    private int mCallLogQueries;
+    private int mCallerIdLookups;
+
+    @Mock private Context mContext;
+    @Mock private HeadsetNativeInterface mNativeInterface;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mTestDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:01:02:03:04:05");
+        MockContentResolver contentResolver = new MockContentResolver();
+        contentResolver.addProvider(CallLog.AUTHORITY, new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, Bundle queryArgs,
+                    CancellationSignal cancellationSignal) {
+                mCallLogQueries++;
+                MatrixCursor cursor = new MatrixCursor(projection);
+                for (int i = 0; i < CALL_COUNT; i++) {
+                    cursor.addRow(new Object[] {i, getNumber(i % NUMBER_COUNT),
+                            Calls.PRESENTATION_ALLOWED});
+                }
+                return cursor;
+            }
+        });
+        contentResolver.addProvider(ContactsContract.AUTHORITY, new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, Bundle queryArgs,
+                    CancellationSignal cancellationSignal) {
+                mCallerIdLookups++;
+                MatrixCursor cursor = new MatrixCursor(new String[] {PhoneLookup.DISPLAY_NAME});
+                cursor.addRow(new Object[] {"Contact " + uri.getLastPathSegment()});
+                return cursor;
+            }
+        });
+        doReturn(contentResolver).when(mContext).getContentResolver();
+        doReturn("com.android.settings").when(mContext).getString(R.string.pairing_ui_package);
+        doReturn("Unknown").when(mContext).getString(R.string.unknownNumber);
+        mAtPhonebook = new AtPhonebook(mContext, mNativeInterface);
+        mAtPhonebook.handleCpbsCommand("AT+CPBS=\"MC\"", AtPhonebook.TYPE_SET, mTestDevice);
+    }
+
+    @After
+    public void tearDown() {
+        mAtPhonebook.cleanup();
+    }
+
+    private static String getNumber(int index) {
+        return String.format("555%07d", index);
+    }
+
+    @Test
+    public void testProcessCpbrCommand_looksUpEachNumberOnce() {
+        mAtPhonebook.setCpbrIndex(1, CALL_COUNT);
+        Assert.assertEquals(HeadsetHalConstants.AT_RESPONSE_OK,
+                mAtPhonebook.processCpbrCommand(mTestDevice));
+
+        ArgumentCaptor<String> records = ArgumentCaptor.forClass(String.class);
+        verify(mNativeInterface, times(CALL_COUNT)).atResponseString(eq(mTestDevice),
+                records.capture());
+        List<String> values = records.getAllValues();
+        Assert.assertEquals("+CPBR: 1,\"5550000000\",129,\"Contact 5550000000\"\r\n\r\n",
+                values.get(0));
+        Assert.assertEquals("+CPBR: " + CALL_COUNT + ",\"5550000099\",129,"
+                + "\"Contact 5550000099\"\r\n\r\n", values.get(CALL_COUNT - 1));
+        Assert.assertEquals(NUMBER_COUNT, mCallerIdLookups);
+    }
+
+    @Test
+    public void testSnapshot_reusedUntilCallLogChanges() {
+        mAtPhonebook.handleCpbsCommand("AT+CPBS?", AtPhonebook.TYPE_READ, mTestDevice);
+        mAtPhonebook.handleCpbrCommand("AT+CPBR=?", AtPhonebook.TYPE_TEST, mTestDevice);
+        mAtPhonebook.setCpbrIndex(1, 10);
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+        verify(mNativeInterface).atResponseString(mTestDevice, "+CPBS: \"MC\",5000,8192");
+        verify(mNativeInterface).atResponseString(mTestDevice, "+CPBR: (1-5000),30,30");
+        Assert.assertEquals(1, mCallLogQueries);
+
+        mAtPhonebook.mContentObserver.onChange(false, Calls.CONTENT_URI);
+        mAtPhonebook.handleCpbsCommand("AT+CPBS?", AtPhonebook.TYPE_READ, mTestDevice);
+        Assert.assertEquals(2, mCallLogQueries);
+        // Caller id names only depend on the contacts.
+        mAtPhonebook.setCpbrIndex(1, 10);
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+        Assert.assertEquals(10, mCallerIdLookups);
+
+        mAtPhonebook.mContentObserver.onChange(false, ContactsContract.AUTHORITY_URI);
+        mAtPhonebook.setCpbrIndex(1, 10);
+        mAtPhonebook.processCpbrCommand(mTestDevice);
+        Assert.assertEquals(2, mCallLogQueries);
+        Assert.assertEquals(20, mCallerIdLookups);
+    }
+}
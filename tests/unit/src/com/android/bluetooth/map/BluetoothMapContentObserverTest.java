@@ -18,15 +18,18 @@ package com.android.bluetooth.map;
 
 import static org.mockito.Mockito.*;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Looper;
 import android.os.RemoteException;
 import android.os.UserManager;
 import android.provider.Telephony.Mms;
+import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.Sms;
 import android.telephony.TelephonyManager;
 import android.test.mock.MockContentProvider;
@@ -43,10 +46,15 @@ import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 @MediumTest
 @RunWith(AndroidJUnit4.class)
@@ -82,6 +90,43 @@ public class BluetoothMapContentObserverTest {
         }
     }
 
+    static class MessagesTestProvider extends MockContentProvider {
+        TreeSet<Long> mSmsIds = new TreeSet<Long>();
+        int mRowsRead = 0;
+
+        MessagesTestProvider(Context context) {
+            super(context);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            MatrixCursor cursor = new MatrixCursor(projection);
+            if (!Sms.CONTENT_URI.equals(uri)) {
+                return cursor;
+            }
+            // Selection of the changed messages: _id > ? OR _id IN (?,...)
+            Set<Long> ids = mSmsIds;
+            if (selection != null) {
+                ids = new TreeSet<Long>(mSmsIds.tailSet(Long.parseLong(selectionArgs[0]), false));
+                for (int i = 1; i < selectionArgs.length; i++) {
+                    if (mSmsIds.contains(Long.parseLong(selectionArgs[i]))) {
+                        ids.add(Long.parseLong(selectionArgs[i]));
+                    }
+                }
+            }
+            for (long id : ids) {
+                MatrixCursor.RowBuilder row = cursor.newRow();
+                row.add(Sms._ID, id);
+                row.add(Sms.THREAD_ID, 1);
+                row.add(Sms.TYPE, Sms.MESSAGE_TYPE_INBOX);
+                row.add(Sms.READ, 1);
+            }
+            mRowsRead += cursor.getCount();
+            return cursor;
+        }
+    }
+
     @Before
     public void setUp() {
         mTargetContext = InstrumentationRegistry.getTargetContext();
@@ -181,4 +226,100 @@ public class BluetoothMapContentObserverTest {
         Assert.assertTrue(mockProvider.mContents.contains(TEST_NUMBER_TWO));
     }
 
+    @Test
+    public void testHandleSmsMmsChanges_queriesOnlyNotifiedMessages() throws RemoteException {
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        final int smsCount = 30000;
+        Context mockContext = mock(Context.class);
+        MockContentResolver mockResolver = new MockContentResolver();
+        MessagesTestProvider mockProvider = new MessagesTestProvider(mockContext);
+        for (long id = 1; id <= smsCount; id++) {
+            mockProvider.mSmsIds.add(id);
+        }
+        mockResolver.addProvider("sms", mockProvider);
+        mockResolver.addProvider("mms", mockProvider);
+        mockResolver.addProvider("mms-sms", mockProvider);
+        TelephonyManager mockTelephony = mock(TelephonyManager.class);
+        UserManager mockUserService = mock(UserManager.class);
+        BluetoothMapMasInstance mockMas = mock(BluetoothMapMasInstance.class);
+
+        when(mockUserService.isUserUnlocked()).thenReturn(true);
+        when(mockContext.getContentResolver()).thenReturn(mockResolver);
+        when(mockContext.getSystemService(Context.TELEPHONY_SERVICE)).thenReturn(mockTelephony);
+        when(mockContext.getSystemService(Context.USER_SERVICE)).thenReturn(mockUserService);
+
+        BluetoothMapContentObserver observer =
+                new BluetoothMapContentObserver(mockContext, null, mockMas, null, true);
+        Assert.assertEquals(smsCount, mockProvider.mRowsRead);
+
+        // A burst with a received and a deleted message, each notified with MmsSms.CONTENT_URI.
+        mockProvider.mRowsRead = 0;
+        mockProvider.mSmsIds.add(smsCount + 1L);
+        mockProvider.mSmsIds.remove(1L);
+        observer.onSmsMmsChanged(ContentUris.withAppendedId(Sms.Inbox.CONTENT_URI, smsCount + 1));
+        observer.onSmsMmsChanged(MmsSms.CONTENT_URI);
+        observer.onSmsMmsChanged(ContentUris.withAppendedId(Sms.CONTENT_URI, 1));
+        observer.onSmsMmsChanged(MmsSms.CONTENT_URI);
+        observer.handleSmsMmsChanges();
+        Assert.assertEquals(1, mockProvider.mRowsRead);
+
+        ArgumentCaptor<Map> msgList = ArgumentCaptor.forClass(Map.class);
+        verify(mockMas, atLeastOnce()).setMsgListSms(msgList.capture());
+        Assert.assertEquals(smsCount, msgList.getValue().size());
+        Assert.assertTrue(msgList.getValue().containsKey(smsCount + 1L));
+        Assert.assertFalse(msgList.getValue().containsKey(1L));
+
+        // Messages added without their own notification are found above the highest known id.
+        mockProvider.mRowsRead = 0;
+        mockProvider.mSmsIds.add(smsCount + 2L);
+        observer.onSmsMmsChanged(ContentUris.withAppendedId(Sms.CONTENT_URI, smsCount + 1));
+        observer.handleSmsMmsChanges();
+        Assert.assertEquals(2, mockProvider.mRowsRead);
+
+        // A change that does not name a message is handled by a full pass.
+        mockProvider.mRowsRead = 0;
+        observer.onSmsMmsChanged(MmsSms.CONTENT_URI);
+        observer.handleSmsMmsChanges();
+        Assert.assertEquals(smsCount + 1, mockProvider.mRowsRead);
+    }
+
+    @Test
+    public void testSendEvent_invalidatesListingCountsFirst() throws RemoteException {
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        Context mockContext = mock(Context.class);
+        MockContentResolver mockResolver = new MockContentResolver();
+        MessagesTestProvider mockProvider = new MessagesTestProvider(mockContext);
+        mockProvider.mSmsIds.add(1L);
+        mockResolver.addProvider("sms", mockProvider);
+        mockResolver.addProvider("mms", mockProvider);
+        mockResolver.addProvider("mms-sms", mockProvider);
+        TelephonyManager mockTelephony = mock(TelephonyManager.class);
+        UserManager mockUserService = mock(UserManager.class);
+        BluetoothMapMasInstance mockMas = mock(BluetoothMapMasInstance.class);
+        BluetoothMnsObexClient mockMns = mock(BluetoothMnsObexClient.class);
+
+        when(mockUserService.isUserUnlocked()).thenReturn(true);
+        when(mockContext.getContentResolver()).thenReturn(mockResolver);
+        when(mockContext.getSystemService(Context.TELEPHONY_SERVICE)).thenReturn(mockTelephony);
+        when(mockContext.getSystemService(Context.USER_SERVICE)).thenReturn(mockUserService);
+        when(mockMns.isConnected()).thenReturn(true);
+
+        BluetoothMapContentObserver observer =
+                new BluetoothMapContentObserver(mockContext, mockMns, mockMas, null, true);
+        clearInvocations(mockMas);
+
+        // The listing counts cached by BluetoothMapContent are invalidated before the MCE is
+        // told about the new message, not only at the end of the pass.
+        mockProvider.mSmsIds.add(2L);
+        observer.onSmsMmsChanged(ContentUris.withAppendedId(Sms.Inbox.CONTENT_URI, 2));
+        observer.handleSmsMmsChanges();
+        InOrder inOrder = inOrder(mockMas, mockMns);
+        inOrder.verify(mockMas).invalidateMsgListingCounts();
+        inOrder.verify(mockMns).sendEvent(any(byte[].class), anyInt());
+    }
+
 }
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import static org.mockito.Mockito.*;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Sms;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.TestUtils;
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+import com.android.bluetooth.mapapi.BluetoothMapContract;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothMapContentTest {
+    private static final String TEST_ADDRESS = "00:01:02:03:04:05";
+    private static final String TEST_AUTHORITY = "com.android.bluetooth.map.test";
+    // Message types, in the order equal dates are listed.
+    private static final int TYPE_SMS = 0;
+    private static final int TYPE_MMS = 1;
+    private static final int TYPE_EMAIL = 2;
+    private static final int TYPE_IM = 3;
+    private static final TYPE[] TYPES = {TYPE.SMS_GSM, TYPE.MMS, TYPE.EMAIL, TYPE.IM};
+    // Datetime, type and read
+    private static final long PARAMETER_MASK = 0x00001042;
+
+    private final List<String> mQueries = new ArrayList<>();
+    private Context mContext;
+    private BluetoothMapContent mContent;
+    private BluetoothMapFolderElement mInbox;
+    private Object mRemoteDevice;
+
+    /* Messages with the read values |reads|, whatever the selection */
+    private class ReadStatusTestProvider extends MockContentProvider {
+        private final int[] mReads;
+
+        ReadStatusTestProvider(int... reads) {
+            mReads = reads;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueries.add(uri + " " + selection);
+            MatrixCursor cursor = new MatrixCursor(projection);
+            for (int i = 0; i < mReads.length; i++) {
+                cursor.addRow(projection.length > 1 ? new Object[] {i, mReads[i]}
+                        : new Object[] {i});
+            }
+            return cursor;
+        }
+    }
+
+    /* Messages of every type, each type listed by date like the real providers do */
+    private static class MessageTestProvider extends MockContentProvider {
+        // {handle, date in ms, read} of the messages, by message type
+        private final List<List<long[]>> mMessages = new ArrayList<>();
+
+        MessageTestProvider() {
+            for (int i = 0; i < TYPES.length; i++) {
+                mMessages.add(new ArrayList<>());
+            }
+        }
+
+        void addMessage(int msgType, long handle, long date, boolean read) {
+            mMessages.get(msgType).add(new long[] {handle, date, read ? 1 : 0});
+        }
+
+        List<long[]> getMessages(int msgType) {
+            List<long[]> messages = new ArrayList<>(mMessages.get(msgType));
+            messages.sort((a, b) -> Long.compare(b[1], a[1]));
+            return messages;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            int msgType;
+            if (Sms.CONTENT_URI.equals(uri)) {
+                msgType = TYPE_SMS;
+            } else if (Mms.CONTENT_URI.equals(uri)) {
+                msgType = TYPE_MMS;
+            } else if (Arrays.equals(projection,
+                    BluetoothMapContract.BT_INSTANT_MESSAGE_PROJECTION)) {
+                msgType = TYPE_IM;
+            } else {
+                msgType = TYPE_EMAIL;
+            }
+            MatrixCursor cursor = new MatrixCursor(projection);
+            for (long[] message : getMessages(msgType)) {
+                MatrixCursor.RowBuilder row = cursor.newRow();
+                row.add(BaseColumns._ID, message[0]);
+                // MMS dates are in seconds.
+                row.add(Sms.DATE, msgType == TYPE_MMS ? message[1] / 1000 : message[1]);
+                row.add(Sms.READ, message[2]);
+                row.add(BluetoothMapContract.MessageColumns.FLAG_READ, message[2]);
+            }
+            return cursor;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(Sms.CONTENT_URI.getAuthority(), new ReadStatusTestProvider(1, 0, 1));
+        resolver.addProvider(Mms.CONTENT_URI.getAuthority(), new ReadStatusTestProvider(1));
+        mContext = mock(Context.class);
+        doReturn(resolver).when(mContext).getContentResolver();
+        mContent = new BluetoothMapContent(mContext, null, null);
+        mInbox = new BluetoothMapFolderElement("inbox", null);
+        mInbox.setHasSmsMmsContent(true);
+        // The message listing encoding looks up the remote device for workarounds.
+        mRemoteDevice = TestUtils.replaceField(BluetoothMapService.class, "sRemoteDevice", null,
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(TEST_ADDRESS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestUtils.replaceField(BluetoothMapService.class, "sRemoteDevice", null, mRemoteDevice);
+    }
+
+    private BluetoothMapMessageListing msgListing(MessageTestProvider provider, int maxListCount,
+            int startOffset) {
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(Sms.CONTENT_URI.getAuthority(), provider);
+        resolver.addProvider(Mms.CONTENT_URI.getAuthority(), provider);
+        resolver.addProvider(TEST_AUTHORITY, provider);
+        Context context = mock(Context.class);
+        doReturn(resolver).when(context).getContentResolver();
+        BluetoothMapAccountItem account = BluetoothMapAccountItem.create("1", "Test",
+                "com.android.bluetooth.map.test", TEST_AUTHORITY, null, TYPE.EMAIL);
+        BluetoothMapContent content = new BluetoothMapContent(context, account, null);
+        BluetoothMapFolderElement inbox = new BluetoothMapFolderElement("inbox", null);
+        inbox.setHasSmsMmsContent(true);
+        inbox.setHasEmailContent(true);
+        inbox.setHasImContent(true);
+        inbox.setFolderId(100);
+
+        BluetoothMapAppParams ap = new BluetoothMapAppParams();
+        ap.setParameterMask(PARAMETER_MASK);
+        ap.setMaxListCount(maxListCount);
+        ap.setStartOffset(startOffset);
+        return content.msgListing(inbox, ap);
+    }
+
+    /* The listing as built before the merge: all messages by type, sorted, then segmented */
+    private static BluetoothMapMessageListing sortAndSegment(MessageTestProvider provider,
+            int maxListCount, int startOffset) {
+        BluetoothMapMessageListing listing = new BluetoothMapMessageListing();
+        for (int msgType = 0; msgType < TYPES.length; msgType++) {
+            for (long[] message : provider.getMessages(msgType)) {
+                BluetoothMapMessageListingElement e = new BluetoothMapMessageListingElement();
+                e.setHandle(message[0]);
+                e.setDateTime(message[1]);
+                e.setType(TYPES[msgType], true);
+                e.setRead(message[2] == 1, true);
+                listing.add(e);
+            }
+        }
+        listing.sort();
+        listing.segment(maxListCount, startOffset);
+        return listing;
+    }
+
+    private static void assertSameListing(BluetoothMapMessageListing expected,
+            BluetoothMapMessageListing listing) {
+        Assert.assertEquals(expected.hasUnread(), listing.hasUnread());
+        Assert.assertEquals(expected.getCount(), listing.getCount());
+        for (int i = 0; i < expected.getCount(); i++) {
+            BluetoothMapMessageListingElement e = expected.getList().get(i);
+            BluetoothMapMessageListingElement element = listing.getList().get(i);
+            Assert.assertEquals(e.getType(), element.getType());
+            Assert.assertEquals(e.getHandle(), element.getHandle());
+            Assert.assertEquals(e.getDateTime(), element.getDateTime());
+            Assert.assertEquals(e.getReadBool(), element.getReadBool());
+        }
+    }
+
+    @Test
+    public void testMsgListingCount_singlePassPerProviderAndCached() {
+        BluetoothMapAppParams ap = new BluetoothMapAppParams();
+        BluetoothMapContent.MsgListingCount count = mContent.msgListingCount(mInbox, ap);
+        Assert.assertEquals(4, count.getSize());
+        Assert.assertTrue(count.hasUnread());
+        Assert.assertEquals(2, mQueries.size());
+
+        Assert.assertSame(count, mContent.msgListingCount(mInbox, ap));
+        Assert.assertEquals(4, mContent.msgListingSize(mInbox, ap));
+        Assert.assertEquals(2, mQueries.size());
+    }
+
+    @Test
+    public void testMsgListingCount_recountedOnceInvalidated() {
+        BluetoothMapMasInstance mas = mock(BluetoothMapMasInstance.class);
+        BluetoothMapContent content = new BluetoothMapContent(mContext, null, mas);
+        BluetoothMapAppParams ap = new BluetoothMapAppParams();
+        BluetoothMapContent.MsgListingCount count = content.msgListingCount(mInbox, ap);
+        Assert.assertSame(count, content.msgListingCount(mInbox, ap));
+        Assert.assertEquals(2, mQueries.size());
+
+        // A message status set by the MCE does not change the folder version counter.
+        doReturn(1L).when(mas).getMsgListingCountVersion();
+        Assert.assertNotSame(count, content.msgListingCount(mInbox, ap));
+        Assert.assertEquals(4, mQueries.size());
+    }
+
+    @Test
+    public void testMsgListingCount_readStatusFilteredInSinglePass() {
+        BluetoothMapAppParams ap = new BluetoothMapAppParams();
+        ap.setFilterReadStatus(0x02);
+        BluetoothMapContent.MsgListingCount count = mContent.msgListingCount(mInbox, ap);
+        Assert.assertEquals(3, count.getSize());
+        Assert.assertTrue(count.hasUnread());
+        Assert.assertEquals(2, mQueries.size());
+
+        // Other filters need their own query.
+        ap.setFilterPriority(0x02);
+        count = mContent.msgListingCount(mInbox, ap);
+        Assert.assertEquals(3, count.getSize());
+        Assert.assertTrue(count.hasUnread());
+        Assert.assertEquals(4, mQueries.size());
+    }
+
+    @Test
+    public void testMsgListing_mergedLikeSortedListing() {
+        MessageTestProvider provider = new MessageTestProvider();
+        // Equal dates across the types are listed by type.
+        for (int msgType = 0; msgType < TYPES.length; msgType++) {
+            provider.addMessage(msgType, 1, 5000, true);
+        }
+        provider.addMessage(TYPE_SMS, 2, 3000, false);
+        provider.addMessage(TYPE_MMS, 2, 4000, true);
+        provider.addMessage(TYPE_EMAIL, 2, 3000, true);
+        provider.addMessage(TYPE_IM, 2, 6000, true);
+        provider.addMessage(TYPE_IM, 3, 1000, false);
+
+        for (int startOffset = 0; startOffset <= 10; startOffset++) {
+            for (int maxListCount = 1; maxListCount <= 10; maxListCount++) {
+                assertSameListing(sortAndSegment(provider, maxListCount, startOffset),
+                        msgListing(provider, maxListCount, startOffset));
+            }
+        }
+    }
+
+    @Test
+    public void testMsgListing_offsetBeyondListing() {
+        MessageTestProvider provider = new MessageTestProvider();
+        provider.addMessage(TYPE_SMS, 1, 2000, true);
+        provider.addMessage(TYPE_MMS, 1, 1000, false);
+        provider.addMessage(TYPE_EMAIL, 1, 3000, true);
+
+        BluetoothMapMessageListing listing = msgListing(provider, 10, 20);
+        Assert.assertEquals(0, listing.getCount());
+        Assert.assertTrue(listing.hasUnread());
+        assertSameListing(sortAndSegment(provider, 10, 20), listing);
+    }
+
+    @Test
+    public void testMsgListing_unreadOnlyAfterPage() {
+        MessageTestProvider provider = new MessageTestProvider();
+        for (int i = 1; i <= 5; i++) {
+            provider.addMessage(TYPE_SMS, i, i * 1000, true);
+            provider.addMessage(TYPE_EMAIL, i, i * 1000, true);
+        }
+        provider.addMessage(TYPE_MMS, 1, 0, false);
+
+        BluetoothMapMessageListing listing = msgListing(provider, 2, 1);
+        Assert.assertEquals(2, listing.getCount());
+        Assert.assertTrue(listing.getList().get(0).getReadBool());
+        Assert.assertTrue(listing.getList().get(1).getReadBool());
+        Assert.assertTrue(listing.hasUnread());
+        assertSameListing(sortAndSegment(provider, 2, 1), listing);
+    }
+
+    @Test
+    public void testEncode_streamedLikeEncodedBytes() throws Exception {
+        BluetoothMapMessageListing listing = new BluetoothMapMessageListing();
+        for (int i = 1; i <= 3; i++) {
+            BluetoothMapMessageListingElement e = new BluetoothMapMessageListingElement();
+            e.setHandle(i);
+            e.setDateTime(i * 1000L);
+            e.setType(TYPE.SMS_GSM, true);
+            e.setRead(i != 2, true);
+            e.setSubject("S\u00fcbject <" + i + "> & \u2713");
+            listing.add(e);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        listing.encode(out, false, "1.0");
+        Assert.assertArrayEquals(listing.encode(false, "1.0"), out.toByteArray());
+        String xml = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(xml.contains("<MAP-msg-listing version=\"1.0\""));
+        Assert.assertTrue(xml.contains("S\u00fcbject &lt;3&gt; &amp; \u2713"));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothMapbMessageTest {
+    private static final int FUZZ_ITERATIONS = 500;
+    private static final byte[] FUZZ_BYTES = {'\r', '\n', 'A', ':', (byte) 0xc3, (byte) 0xa9};
+
+    /* Returns the data in chunks of random sizes, as an OBEX stream does */
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream mIn;
+        private final Random mRandom;
+
+        ChunkedInputStream(byte[] data, Random random) {
+            mIn = new ByteArrayInputStream(data);
+            mRandom = random;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return mIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return mIn.read(b, off, Math.min(len, 1 + mRandom.nextInt(64)));
+        }
+    }
+
+    /* The byte by byte line reader BMsgReader used to implement */
+    private static List<byte[]> readLinesByteByByte(byte[] data) {
+        InputStream in = new ByteArrayInputStream(data);
+        List<byte[]> lines = new ArrayList<>();
+        while (true) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int readByte;
+            while ((readByte = in.read()) != -1) {
+                if (readByte == '\r') {
+                    if ((readByte = in.read()) != -1 && readByte == '\n') {
+                        if (output.size() == 0) {
+                            continue;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        output.write('\r');
+                        if (readByte == -1) {
+                            break;
+                        }
+                    }
+                } else if (readByte == '\n' && output.size() == 0) {
+                    continue;
+                }
+                output.write(readByte);
+            }
+            if (output.size() == 0) {
+                return lines;
+            }
+            lines.add(output.toByteArray());
+        }
+    }
+
+    private static byte[] randomBytes(Random random) {
+        byte[] data = new byte[random.nextInt(3 * 8 * 1024)];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextInt(4) == 0 ? (byte) random.nextInt(256)
+                    : FUZZ_BYTES[random.nextInt(FUZZ_BYTES.length)];
+        }
+        return data;
+    }
+
+    @Test
+    public void testGetLine_fuzzedInputMatchesByteByByteReader() {
+        Random random = new Random(0);
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            byte[] data = randomBytes(random);
+            BluetoothMapbMessage.BMsgReader reader = new BluetoothMapbMessage.BMsgReader(
+                    new ChunkedInputStream(data, random));
+            for (byte[] expected : readLinesByteByByte(data)) {
+                Assert.assertEquals(new String(expected, StandardCharsets.UTF_8), reader.getLine());
+            }
+            Assert.assertNull(reader.getLine());
+        }
+    }
+
+    @Test
+    public void testGetMsgContent_fuzzedInputMatchesJoinedLines() {
+        Random random = new Random(0);
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            byte[] data = randomBytes(random);
+            ByteArrayOutputStream input = new ByteArrayOutputStream();
+            input.write(data, 0, data.length);
+            input.write(0);
+            input.write(new byte[] {'\r', '\n', 'E', 'N', 'D', ':', 'M', 'S', 'G', '\r', '\n'},
+                    0, 11);
+            // The lines are joined before being decoded.
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            for (byte[] line : readLinesByteByByte(input.toByteArray())) {
+                if (Arrays.equals(line, "END:MSG".getBytes(StandardCharsets.UTF_8))) {
+                    break;
+                }
+                expected.write(line, 0, line.length);
+            }
+
+            BluetoothMapbMessage.BMsgReader reader = new BluetoothMapbMessage.BMsgReader(
+                    new ChunkedInputStream(input.toByteArray(), random));
+            Assert.assertEquals(new String(expected.toByteArray(), StandardCharsets.UTF_8),
+                    reader.getMsgContent());
+        }
+    }
+
+    @Test
+    public void testParse_multiMegabyteMessage() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; body.length() < 4 * 1024 * 1024; i++) {
+            body.append(String.format("Line %08d of a long message éèê", i));
+        }
+        String bMessage = "BEGIN:BMSG\r\n"
+                + "VERSION:1.0\r\n"
+                + "STATUS:UNREAD\r\n"
+                + "TYPE:SMS_GSM\r\n"
+                + "FOLDER:telecom/msg/outbox\r\n"
+                + "BEGIN:BENV\r\n"
+                + "BEGIN:VCARD\r\n"
+                + "VERSION:2.1\r\n"
+                + "TEL:5551212\r\n"
+                + "END:VCARD\r\n"
+                + "BEGIN:BBODY\r\n"
+                + "CHARSET:UTF-8\r\n"
+                + "LENGTH:" + body.length() + "\r\n"
+                + "BEGIN:MSG\r\n"
+                + body.toString().replaceAll("(Line [0-9]{8})", "$1\r\n")
+                + "\r\nEND:MSG\r\n"
+                + "END:BBODY\r\n"
+                + "END:BENV\r\n"
+                + "END:BMSG\r\n";
+        byte[] data = bMessage.getBytes(StandardCharsets.UTF_8);
+
+        BluetoothMapbMessageSms sms = (BluetoothMapbMessageSms) BluetoothMapbMessage.parse(
+                new ChunkedInputStream(data, new Random(0)), BluetoothMapAppParams.CHARSET_UTF8);
+
+        Assert.assertEquals(body.toString(), sms.getSmsBody());
+        Assert.assertEquals(BluetoothMapUtils.TYPE.SMS_GSM, sms.getType());
+    }
+}
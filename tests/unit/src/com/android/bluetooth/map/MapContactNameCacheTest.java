@@ -0,0 +1,126 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class MapContactNameCacheTest {
+    private static final String TEST_NUMBER = "5551212";
+    private static final String TEST_NUMBER_NO_CONTACT = "5551234";
+
+    private MockContentResolver mResolver;
+    private MapContactNameCache mCache;
+    private int mLookups;
+
+    @Before
+    public void setUp() {
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ContactsContract.AUTHORITY, new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, Bundle queryArgs,
+                    CancellationSignal cancellationSignal) {
+                mLookups++;
+                MatrixCursor cursor =
+                        new MatrixCursor(new String[] {Contacts._ID, Contacts.DISPLAY_NAME});
+                if (!TEST_NUMBER_NO_CONTACT.equals(uri.getLastPathSegment())) {
+                    cursor.addRow(new Object[] {1, "Contact " + uri.getLastPathSegment()});
+                }
+                return cursor;
+            }
+        });
+        mCache = new MapContactNameCache();
+        mCache.start(mResolver);
+    }
+
+    @After
+    public void tearDown() {
+        mCache.stop();
+    }
+
+    @Test
+    public void testGetName_cachesContactsAndNumbersWithoutContact() {
+        Assert.assertEquals("Contact " + TEST_NUMBER, mCache.getName(TEST_NUMBER, mResolver));
+        Assert.assertEquals("Contact " + TEST_NUMBER, mCache.getName(TEST_NUMBER, mResolver));
+        Assert.assertNull(mCache.getName(TEST_NUMBER_NO_CONTACT, mResolver));
+        Assert.assertNull(mCache.getName(TEST_NUMBER_NO_CONTACT, mResolver));
+        Assert.assertEquals(2, mLookups);
+
+        StringBuilder dump = new StringBuilder();
+        mCache.dump(dump);
+        Assert.assertTrue(dump.toString().contains(
+                "2 entries, 2 hits (1 without contact), 2 misses, hit rate 50%"));
+    }
+
+    @Test
+    public void testGetName_lookedUpAgainAfterContactsChange() {
+        mCache.getName(TEST_NUMBER, mResolver);
+        mCache.mContentObserver.onChange(false);
+        mCache.getName(TEST_NUMBER, mResolver);
+        Assert.assertEquals(2, mLookups);
+    }
+
+    @Test
+    public void testGetName_notCachedWhenStopped() {
+        mCache.stop();
+        mCache.getName(TEST_NUMBER, mResolver);
+        mCache.getName(TEST_NUMBER, mResolver);
+        Assert.assertEquals(2, mLookups);
+    }
+
+    @Test
+    public void testGetName_looksUpEachNumberOnceAndEvictsLeastRecentlyUsed() {
+        List<String> phones = new ArrayList<>();
+        for (int i = 0; i < MapContactNameCache.MAX_ENTRIES; i++) {
+            phones.add(String.format("555%04d", i));
+        }
+        for (String phone : phones) {
+            mCache.getName(phone, mResolver);
+            mCache.getName(phone, mResolver);
+        }
+        Assert.assertEquals(MapContactNameCache.MAX_ENTRIES, mLookups);
+
+        // The first number is now the most recently used.
+        mCache.getName(phones.get(0), mResolver);
+        mCache.getName(TEST_NUMBER, mResolver);
+        mCache.getName(phones.get(0), mResolver);
+        Assert.assertEquals(MapContactNameCache.MAX_ENTRIES + 1, mLookups);
+        mCache.getName(phones.get(1), mResolver);
+        Assert.assertEquals(MapContactNameCache.MAX_ENTRIES + 2, mLookups);
+    }
+}
@@ -1162,6 +1162,93 @@ public class BluetoothInCallServiceTest {
                 eq("5550000"), eq(PhoneNumberUtils.TOA_Unknown), nullable(String.class));
     }
 
+    @Test
+    public void testCallInfo_indexesCallsByState() {
+        BluetoothInCallService.CallInfo callInfo = mBluetoothInCallService.new CallInfo();
+        BluetoothCall heldCall = getMockCall();
+        when(heldCall.getState()).thenReturn(Call.STATE_HOLDING);
+        BluetoothCall activeCall = getMockCall();
+        when(activeCall.getState()).thenReturn(Call.STATE_ACTIVE);
+        BluetoothCall otherHeldCall = getMockCall();
+        when(otherHeldCall.getState()).thenReturn(Call.STATE_HOLDING);
+        BluetoothCall ringingCall = getMockCall();
+        when(ringingCall.getState()).thenReturn(Call.STATE_RINGING);
+        callInfo.onCallAdded(heldCall);
+        callInfo.onCallAdded(activeCall);
+        callInfo.onCallAdded(otherHeldCall);
+        callInfo.onCallAdded(ringingCall);
+
+        Assert.assertEquals(activeCall, callInfo.getActiveCall());
+        Assert.assertEquals(heldCall, callInfo.getHeldCall());
+        Assert.assertEquals(2, callInfo.getNumHeldCalls());
+        Assert.assertEquals(ringingCall, callInfo.getRingingOrSimulatedRingingCall());
+        Assert.assertEquals(activeCall, callInfo.getForegroundCall());
+        Assert.assertNull(callInfo.getOutgoingCall());
+        Assert.assertFalse(callInfo.hasOnlyDisconnectedCalls());
+        Assert.assertEquals(Arrays.asList(heldCall, activeCall, otherHeldCall, ringingCall),
+                callInfo.getBluetoothCalls());
+
+        // States are read again on update, and the first call added wins among several states.
+        when(activeCall.getState()).thenReturn(Call.STATE_DIALING);
+        when(heldCall.getState()).thenReturn(Call.STATE_CONNECTING);
+        callInfo.updateCallStates();
+        Assert.assertNull(callInfo.getActiveCall());
+        Assert.assertEquals(otherHeldCall, callInfo.getHeldCall());
+        Assert.assertEquals(1, callInfo.getNumHeldCalls());
+        Assert.assertEquals(heldCall, callInfo.getOutgoingCall());
+        Assert.assertEquals(heldCall, callInfo.getForegroundCall());
+
+        callInfo.onCallRemoved(heldCall);
+        callInfo.onCallRemoved(otherHeldCall);
+        callInfo.onCallRemoved(ringingCall);
+        Assert.assertEquals(activeCall, callInfo.getOutgoingCall());
+        Assert.assertEquals(activeCall, callInfo.getForegroundCall());
+        Assert.assertNull(callInfo.getRingingOrSimulatedRingingCall());
+
+        when(activeCall.getState()).thenReturn(Call.STATE_DISCONNECTED);
+        callInfo.updateCallStates();
+        Assert.assertTrue(callInfo.hasOnlyDisconnectedCalls());
+        callInfo.onCallRemoved(activeCall);
+        Assert.assertFalse(callInfo.hasOnlyDisconnectedCalls());
+    }
+
+    @Test
+    public void testCallInfo_externalCallRemoved() {
+        BluetoothInCallService.CallInfo callInfo = mBluetoothInCallService.new CallInfo();
+        mBluetoothInCallService.mCallInfo = callInfo;
+        BluetoothCall activeCall = getMockCall();
+        when(activeCall.getState()).thenReturn(Call.STATE_ACTIVE);
+        mBluetoothInCallService.onCallAdded(activeCall);
+        Assert.assertEquals(activeCall, callInfo.getActiveCall());
+
+        // The call is pulled to another device, then removed by telecom.
+        when(activeCall.isExternalCall()).thenReturn(true);
+        mBluetoothInCallService.getCallback(activeCall).onDetailsChanged(activeCall, null);
+        Assert.assertNull(callInfo.getActiveCall());
+        Assert.assertTrue(callInfo.getBluetoothCalls().isEmpty());
+        mBluetoothInCallService.onCallRemoved(activeCall);
+        Assert.assertNull(callInfo.getActiveCall());
+        Assert.assertTrue(callInfo.getBluetoothCalls().isEmpty());
+    }
+
+    @Test
+    public void testCallInfo_externalCallTrackedAgain() {
+        BluetoothInCallService.CallInfo callInfo = mBluetoothInCallService.new CallInfo();
+        mBluetoothInCallService.mCallInfo = callInfo;
+        BluetoothCall activeCall = getMockCall();
+        when(activeCall.getState()).thenReturn(Call.STATE_ACTIVE);
+        mBluetoothInCallService.onCallAdded(activeCall);
+
+        when(activeCall.isExternalCall()).thenReturn(true);
+        mBluetoothInCallService.getCallback(activeCall).onDetailsChanged(activeCall, null);
+        Assert.assertNull(callInfo.getActiveCall());
+
+        when(activeCall.isExternalCall()).thenReturn(false);
+        mBluetoothInCallService.getCallback(activeCall).onDetailsChanged(activeCall, null);
+        Assert.assertEquals(activeCall, callInfo.getActiveCall());
+        Assert.assertEquals(Arrays.asList(activeCall), callInfo.getBluetoothCalls());
+    }
+
     private void addCallCapability(BluetoothCall call, int capability) {
         when(call.can(capability)).thenReturn(true);
     }